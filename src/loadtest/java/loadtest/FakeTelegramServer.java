@@ -0,0 +1,103 @@
+package loadtest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local fake of the telegram bot api. Every method succeeds, the calls are counted per method and per chat.
+ */
+public class FakeTelegramServer {
+
+	private static final Pattern METHOD = Pattern.compile("/bot[^/]+/(\\w+)");
+	private static final Pattern CHAT_ID = Pattern.compile("\"chat_id\"\\s*:\\s*\"?(-?\\d+)");
+
+	private final HttpServer server;
+	private final AtomicInteger messageIds = new AtomicInteger();
+
+	private final Map<String, AtomicInteger> calls = new ConcurrentHashMap<>();
+	private final Map<Long, AtomicInteger> messagesPerChat = new ConcurrentHashMap<>();
+
+	public FakeTelegramServer() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/", this::handle);
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(0);
+	}
+
+	/** Returns the base url to configure in the bot, the token is appended by the library. */
+	public String getBaseUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/bot";
+	}
+
+	/** Returns the number of calls of the specified method since the last reset. */
+	public int getCalls(String method) {
+		return calls.getOrDefault(method, new AtomicInteger()).get();
+	}
+
+	/** Returns the number of calls of every method since the last reset. */
+	public int getTotalCalls() {
+		return calls.values().stream().mapToInt(AtomicInteger::get).sum();
+	}
+
+	/** Returns the number of messages sent to the specified chat since the last reset. */
+	public int getMessages(Long chatId) {
+		return messagesPerChat.getOrDefault(chatId, new AtomicInteger()).get();
+	}
+
+	public void reset() {
+		calls.clear();
+		messagesPerChat.clear();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			final Matcher matcher = METHOD.matcher(exchange.getRequestURI().getPath());
+			final String method = matcher.matches() ? matcher.group(1) : "unknown";
+			final String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+			calls.computeIfAbsent(method, k -> new AtomicInteger()).incrementAndGet();
+
+			final Matcher chat = CHAT_ID.matcher(body);
+			final long chatId = chat.find() ? Long.parseLong(chat.group(1)) : 0;
+
+			final String result = switch (method) {
+			case "sendMessage", "sendPhoto", "editMessageText", "editMessageReplyMarkup" -> {
+				if (!"editMessageReplyMarkup".equals(method)) { messagesPerChat.computeIfAbsent(chatId, k -> new AtomicInteger()).incrementAndGet(); }
+				yield """
+						{"message_id":%s,"date":%s,"chat":{"id":%s,"type":"private"},"text":""}"""//
+						.formatted(messageIds.incrementAndGet(), System.currentTimeMillis() / 1000, chatId);
+			}
+			case "getUpdates" -> "[]";
+			case "getMe" -> "{\"id\":1,\"is_bot\":true,\"first_name\":\"loadtest\",\"username\":\"loadtest_bot\"}";
+			default -> "true";
+			};
+
+			final byte[] bytes = "{\"ok\":true,\"result\":%s}".formatted(result).getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "application/json");
+			exchange.sendResponseHeaders(200, bytes.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(bytes);
+			}
+		} finally {
+			exchange.close();
+		}
+	}
+
+}
@@ -0,0 +1,155 @@
+package loadtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local http server that replays the product pages of the fixture corpus.
+ * <p>
+ * The urls have the original host as first segment of the path (<code>/www.zalando.it/product-12.html</code>), the number in the page name selects the
+ * fixture and drives the script that changes price, stock and coupons at every cycle.
+ * <li><code>latencyMillis</code> is added to every response</li>
+ * <li><code>errorRate</code> is the probability of answering with 429, 503 or a challenge page</li>
+ */
+public class FakeZalandoServer {
+
+	private static final String[] FIXTURES = { "fixtures/product-sneakers.html", "fixtures/product-jacket.html" };
+	private static final String[] SIZES = { "40", "41", "42", "43", "44", "45" };
+	private static final String[] QUANTITIES = { "MANY", "FEW", "ONE", "OUT_OF_STOCK" };
+	private static final Pattern PRODUCT = Pattern.compile("/(www\\.zalando\\.[a-z.]+)/product-(\\d+)\\.html");
+
+	private final HttpServer server;
+	private final List<String> fixtures = new ArrayList<>();
+	private final long latencyMillis;
+	private final double errorRate;
+
+	private volatile int cycle = 0;
+	private final AtomicInteger requests = new AtomicInteger();
+	private final AtomicInteger errors = new AtomicInteger();
+
+	public FakeZalandoServer(long latencyMillis, double errorRate) throws IOException {
+		this.latencyMillis = latencyMillis;
+		this.errorRate = errorRate;
+
+		for (final String fixture : FIXTURES) {
+			try (InputStream in = FakeZalandoServer.class.getClassLoader().getResourceAsStream(fixture)) {
+				fixtures.add(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+			}
+		}
+
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.createContext("/", this::handle);
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(0);
+	}
+
+	public String getBaseUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort();
+	}
+
+	/** Moves the script to the specified cycle. */
+	public void setCycle(int cycle) {
+		this.cycle = cycle;
+	}
+
+	/** Returns the number of requests received since the last call. */
+	public int drainRequests() {
+		return requests.getAndSet(0);
+	}
+
+	/** Returns the number of injected errors since the last call. */
+	public int drainErrors() {
+		return errors.getAndSet(0);
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		requests.incrementAndGet();
+		try {
+			if (latencyMillis > 0) { Thread.sleep(latencyMillis); }
+
+			final Matcher matcher = PRODUCT.matcher(exchange.getRequestURI().getPath());
+			if (!matcher.matches()) {
+				respond(exchange, 404, "<html>not found</html>");
+				return;
+			}
+
+			final double random = ThreadLocalRandom.current().nextDouble();
+			if (random < errorRate) {
+				errors.incrementAndGet();
+				final double kind = random / errorRate;
+				if (kind < 0.33) {
+					respond(exchange, 429, "<html>too many requests</html>");
+				} else if (kind < 0.66) {
+					respond(exchange, 503, "<html>unavailable</html>");
+				} else {
+					respond(exchange, 200, "<html>please verify you are a human</html>");
+				}
+				return;
+			}
+
+			final int product = Integer.parseInt(matcher.group(2));
+			respond(exchange, 200, render(product));
+
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/** Renders the page of the product at the current cycle. */
+	private String render(int product) {
+		final int step = cycle + product;
+
+		// every 4 cycles the price drops by 10%, then it goes back
+		final int basePrice = 4990 + (product % 20) * 500;
+		final boolean onSale = step % 4 == 3;
+		final int price = onSale ? basePrice * 9 / 10 : basePrice;
+
+		final List<String> simples = new ArrayList<>();
+		for (int i = 0; i < SIZES.length; i++) {
+			final String quantity = QUANTITIES[(step + i) % QUANTITIES.length];
+			final boolean available = !"OUT_OF_STOCK".equals(quantity);
+			simples.add("""
+					{"sku":"P%s-%s","size":"%s","offer":{"price":{"original":{"amount":%s},"promotional":%s},"stock":{"quantity":"%s"},\
+					"isMeaningfulOffer":%s,"allOffers":[{"merchant":"zalando"}]}}"""//
+					.formatted(product, i, SIZES[i], basePrice, onSale ? "{\"amount\":%s}".formatted(price) : "null", quantity, available));
+		}
+
+		final String coupon = step % 5 == 0 ? "-20% su questo e altri articoli selezionati con il codice SALE20" : "";
+
+		return fixtures.get(product % fixtures.size())//
+				.replace("{{SIMPLES}}", "[" + String.join(",", simples) + "]")//
+				.replace("{{COUPON}}", coupon);
+	}
+
+	private void respond(HttpExchange exchange, int status, String body) throws IOException {
+		final byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/html; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+}
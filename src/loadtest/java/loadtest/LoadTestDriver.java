@@ -0,0 +1,193 @@
+package loadtest;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import org.apache.commons.io.FileUtils;
+import org.telegram.telegrambots.meta.api.objects.Update;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import pojo.TrackedItem;
+import pojo.TrackedItem.PriceHistory;
+import pojo.TrackedItem.TrackedSize;
+import runner.Runner;
+import runner.TelegramBot;
+import util.LogicUtility;
+
+/**
+ * Runs check cycles against the local {@link FakeZalandoServer} and {@link FakeTelegramServer} and reports cycle time, fetches, notifications, heap
+ * and bot latency.
+ * <p>
+ * It must be started in an empty working directory (the <code>loadTest</code> gradle task uses <code>build/loadtest</code>) because it writes its own
+ * <code>config.yml</code> and <code>userdata/</code>. The parameters are system properties:
+ * <li><code>loadtest.users</code>, <code>loadtest.items</code> items per user, <code>loadtest.products</code> distinct products</li>
+ * <li><code>loadtest.cycles</code>, <code>loadtest.latencyMillis</code>, <code>loadtest.errorRate</code></li>
+ * <li><code>loadtest.periodSeconds</code> runs the continuous checks with this period instead of the sweeps, reporting the requests per second</li>
+ */
+public class LoadTestDriver {
+
+	/** File that marks a working directory created by the driver, any other directory is left untouched */
+	private static final String MARKER = ".loadtest";
+
+	private static final long ADMIN_ID = 1;
+	private static final long FIRST_USER_ID = 1000;
+	private static final int BOT_SAMPLES = 20;
+
+	public static void main(String[] args) throws Exception {
+		final int users = Integer.getInteger("loadtest.users", 50);
+		final int items = Integer.getInteger("loadtest.items", 20);
+		final int products = Integer.getInteger("loadtest.products", Math.max(1, users * items / 2));
+		final int cycles = Integer.getInteger("loadtest.cycles", 3);
+		final long latencyMillis = Long.getLong("loadtest.latencyMillis", 50);
+		final double errorRate = Double.parseDouble(System.getProperty("loadtest.errorRate", "0.02"));
+		final int periodSeconds = Integer.getInteger("loadtest.periodSeconds", 0);
+
+		final File home = new File(LogicUtility.CURRENT_FOLDER);
+		prepareHome(home);
+
+		final FakeZalandoServer zalando = new FakeZalandoServer(latencyMillis, errorRate);
+		final FakeTelegramServer telegram = new FakeTelegramServer();
+		zalando.start();
+		telegram.start();
+
+		FileUtils.write(new File(LogicUtility.CONFIG_FILE), """
+				botUsername: loadtest_bot
+				botToken: 123456:loadtest
+				adminID: %s
+				public: true
+				zalandoBaseUrl: %s
+				telegramBaseUrl: %s
+				""".formatted(ADMIN_ID, zalando.getBaseUrl(), telegram.getBaseUrl()), StandardCharsets.UTF_8);
+
+		final LogicUtility utility = new LogicUtility();
+		final TelegramBot bot = new TelegramBot(utility);
+		generateUsers(utility, users, items, products);
+		Runner.setUp(utility, bot);
+
+		System.out.println("Load test: %s users, %s items each, %s products, latency %sms, error rate %s"//
+				.formatted(users, items, products, latencyMillis, errorRate));
+
+		if (periodSeconds > 0) {
+			runContinuous(zalando, cycles, periodSeconds);
+			zalando.stop();
+			telegram.stop();
+			System.exit(0);
+		}
+
+		for (int cycle = 1; cycle <= cycles; cycle++) {
+			zalando.setCycle(cycle);
+			zalando.drainRequests();
+			zalando.drainErrors();
+			telegram.reset();
+			resetPeakHeap();
+
+			final long start = System.nanoTime();
+			Runner.run();
+			final long cycleMillis = (System.nanoTime() - start) / 1_000_000;
+
+			final int notifications = telegram.getCalls("sendMessage") - telegram.getMessages(ADMIN_ID);
+			final int apiCalls = telegram.getTotalCalls();
+			final double botLatency = measureBotLatency(bot, users);
+
+			System.out.println("cycle %s: %s ms - fetches: %s (injected errors: %s) - notifications: %s - telegram calls: %s - peak heap: %s MB - bot latency: %.1f ms"//
+					.formatted(cycle, cycleMillis, zalando.drainRequests(), zalando.drainErrors(), notifications, apiCalls, getPeakHeap() / (1024 * 1024),
+							botLatency));
+		}
+
+		zalando.stop();
+		telegram.stop();
+		System.exit(0);
+	}
+
+	/** Runs the continuous checks for the specified periods, sampling the requests every second. */
+	private static void runContinuous(FakeZalandoServer zalando, int periods, int periodSeconds) throws Exception {
+		Runner.startScheduler(periodSeconds * 1000L);
+		for (int period = 1; period <= periods; period++) {
+			int total = 0;
+			int max = 0;
+			int idleSeconds = 0;
+			for (int second = 0; second < periodSeconds; second++) {
+				Thread.sleep(1000);
+				final int requests = zalando.drainRequests();
+				total += requests;
+				max = Math.max(max, requests);
+				if (requests == 0) { idleSeconds++; }
+			}
+			System.out.println("period %s: %s fetches - %.1f per second on average, at most %s - idle seconds: %s - injected errors: %s"//
+					.formatted(period, total, total / (double) periodSeconds, max, idleSeconds, zalando.drainErrors()));
+		}
+	}
+
+	/** Cleans the working directory, refusing to touch directories not created by the driver. */
+	private static void prepareHome(File home) throws Exception {
+		final File marker = new File(home, MARKER);
+		final boolean used = new File(home, "config.yml").exists() || new File(home, "userdata").exists();
+		if (used && !marker.exists()) {
+			throw new IllegalStateException("%s is not a load test directory, run the driver in an empty directory".formatted(home));
+		}
+		FileUtils.deleteDirectory(new File(home, "userdata"));
+		FileUtils.deleteDirectory(new File(home, "logs"));
+		FileUtils.deleteDirectory(new File(home, "products"));
+		// a journal left by an interrupted run would resume it
+		FileUtils.deleteQuietly(new File(home, "cycle.json"));
+		FileUtils.touch(marker);
+	}
+
+	/** Creates the users with random items, some products are shared between users. */
+	private static void generateUsers(LogicUtility utility, int users, int items, int products) throws Exception {
+		final Random random = new Random(42);
+		final List<String> sizes = Arrays.asList("40", "41", "42", "43", "44", "45");
+
+		for (int u = 0; u < users; u++) {
+			final List<TrackedItem> trackedItems = new ArrayList<>();
+			for (int i = 0; i < items; i++) {
+				final int product = random.nextInt(products);
+				final String url = "https://www.zalando.it/product-%s.html".formatted(product);
+				final TrackedSize size = new TrackedSize(sizes.get(random.nextInt(sizes.size())), "99,90", "MANY", true);
+				final TrackedItem item = new TrackedItem(UUID.randomUUID().toString(), "item %s-%s".formatted(u, i), url, List.of(size), "99,90", null);
+				item.setPriceHistory(new ArrayList<>(List.of(new PriceHistory("99,90", "1-1-2024"))));
+				trackedItems.add(item);
+			}
+			utility.saveTrackedItems(FIRST_USER_ID + u, trackedItems);
+		}
+	}
+
+	/** Sends some /myitems commands to the bot and returns the average time to handle them. */
+	private static double measureBotLatency(TelegramBot bot, int users) throws Exception {
+		final ObjectMapper mapper = new ObjectMapper();
+		long total = 0;
+		for (int i = 0; i < BOT_SAMPLES; i++) {
+			final long userId = FIRST_USER_ID + (i % users);
+			final Update update = mapper.readValue("""
+					{"update_id":%s,"message":{"message_id":%s,"date":0,"chat":{"id":%s,"type":"private"},
+					"from":{"id":%s,"is_bot":false,"first_name":"user"},"text":"/myitems",
+					"entities":[{"type":"bot_command","offset":0,"length":8}]}}""".formatted(i, i, userId, userId), Update.class);
+
+			final long start = System.nanoTime();
+			bot.onUpdateReceived(update);
+			total += System.nanoTime() - start;
+		}
+		return total / (BOT_SAMPLES * 1_000_000.0);
+	}
+
+	private static void resetPeakHeap() {
+		ManagementFactory.getMemoryPoolMXBeans().stream().filter(p -> p.getType() == MemoryType.HEAP).forEach(MemoryPoolMXBean::resetPeakUsage);
+	}
+
+	private static long getPeakHeap() {
+		return ManagementFactory.getMemoryPoolMXBeans().stream()//
+				.filter(p -> p.getType() == MemoryType.HEAP)//
+				.mapToLong(p -> p.getPeakUsage().getUsed())//
+				.sum();
+	}
+
+}
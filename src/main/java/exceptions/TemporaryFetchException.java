@@ -0,0 +1,24 @@
+package exceptions;
+
+/**
+ * Thrown when a fetch failed for a reason that is likely to go away by itself (rate limits, challenge pages, server errors, timeouts or an open breaker).
+ */
+public class TemporaryFetchException extends Exception {
+
+	/** Minimum time to wait before retrying, 0 if unknown */
+	private final long retryAfterMillis;
+
+	public TemporaryFetchException(String message) {
+		this(message, 0);
+	}
+
+	public TemporaryFetchException(String message, long retryAfterMillis) {
+		super(message);
+		this.retryAfterMillis = retryAfterMillis;
+	}
+
+	public long getRetryAfterMillis() {
+		return retryAfterMillis;
+	}
+
+}
@@ -0,0 +1,95 @@
+package pojo;
+
+/**
+ * A rule that decides when an item has to be notified. Without rules the {@link Type#DEFAULT} one is used.
+ */
+public class AlertRule {
+
+	public enum Type {
+		/** Price lowered by more than 1 unit or coupon added */
+		DEFAULT,
+		/** Price below the value */
+		BELOW,
+		/** Price lowered by at least the value as percentage */
+		DROP,
+		/** Lowest price in the last value days */
+		LOWEST,
+		/** Available again with at least the specified quantity */
+		RESTOCK,
+		/** Coupon added, whatever the price */
+		COUPON
+	}
+
+	private final String id;
+	private final Type type;
+	private final double value;
+	private final String quantity;
+	/** The item the rule applies to, null for all the items of the user */
+	private String itemUuid;
+
+	public AlertRule(String id, Type type, double value, String quantity) {
+		super();
+		this.id = id;
+		this.type = type;
+		this.value = value;
+		this.quantity = quantity;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public double getValue() {
+		return value;
+	}
+
+	public String getQuantity() {
+		return quantity;
+	}
+
+	public String getItemUuid() {
+		return itemUuid;
+	}
+
+	public void setItemUuid(String itemUuid) {
+		this.itemUuid = itemUuid;
+	}
+
+	/** Returns the header used in the notifications, null if the standard one is enough. */
+	public String getTitle() {
+		return switch (type) {
+		case DEFAULT -> null;
+		case BELOW -> "Below %s".formatted(formatValue());
+		case DROP -> "Dropped by %s%% or more".formatted(formatValue());
+		case LOWEST -> "Lowest price in %s days".formatted(formatValue());
+		case RESTOCK -> "Back in stock";
+		case COUPON -> "Coupon added";
+		};
+	}
+
+	/** Returns the description shown to the user. */
+	public String describe() {
+		return switch (type) {
+		case DEFAULT -> "price lowered or coupon added";
+		case BELOW -> "price below %s".formatted(formatValue());
+		case DROP -> "price dropped by %s%% or more".formatted(formatValue());
+		case LOWEST -> "lowest price in %s days".formatted(formatValue());
+		case RESTOCK -> "back in stock with quantity %s or more".formatted(quantity);
+		case COUPON -> "coupon added";
+		};
+	}
+
+	private String formatValue() {
+		return value == Math.rint(value) ? String.valueOf((long) value) : String.valueOf(value).replace(".", ",");
+	}
+
+	@Override
+	public String toString() {
+		return "AlertRule [id=" + id + ", type=" + type + ", value=" + value + ", quantity=" + quantity + ", itemUuid=" + itemUuid + "]";
+	}
+
+}
@@ -0,0 +1,24 @@
+package pojo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class AlertRules {
+
+	private List<AlertRule> alertRules = new ArrayList<>();
+
+	public AlertRules(List<AlertRule> alertRules) {
+		super();
+		this.alertRules = alertRules;
+	}
+
+	public List<AlertRule> getAlertRules() {
+		return alertRules;
+	}
+
+	@Override
+	public String toString() {
+		return "AlertRules [alertRules=" + alertRules + "]";
+	}
+
+}
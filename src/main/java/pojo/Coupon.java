@@ -0,0 +1,48 @@
+package pojo;
+
+import java.util.Objects;
+
+/** A coupon found in the item page. The discount and the code are null when they couldn't be found near the marker. */
+public class Coupon {
+
+	private final String discount;
+	private final String code;
+
+	public Coupon(String discount, String code) {
+		super();
+		this.discount = discount;
+		this.code = code;
+	}
+
+	public String getDiscount() {
+		return discount;
+	}
+
+	public String getCode() {
+		return code;
+	}
+
+	/** Returns the discount and the code, if known, e.g. "-20% SALE20" */
+	public String describe() {
+		final String description = ((discount == null ? "" : "-" + discount) + " " + (code == null ? "" : code)).trim();
+		return description.isEmpty() ? "coupon" : "coupon " + description;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) { return true; }
+		if (!(obj instanceof final Coupon other)) { return false; }
+		return Objects.equals(discount, other.discount) && Objects.equals(code, other.code);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(discount, code);
+	}
+
+	@Override
+	public String toString() {
+		return "Coupon [discount=" + discount + ", code=" + code + "]";
+	}
+
+}
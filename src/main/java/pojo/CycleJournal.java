@@ -0,0 +1,120 @@
+package pojo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The progress of a check, saved after every user so that a restart resumes the check instead of starting over.
+ * <li>the users already checked are skipped when the check is resumed</li>
+ * <li>the notifications are kept until they are delivered, the messages ready to be sent are removed one by one</li>
+ * <p>
+ * The stages of the checks update it concurrently, the lists of a user must be changed by one thread at a time.
+ */
+public class CycleJournal {
+
+	private String cycleId;
+	private long startedAt;
+	private Set<Long> completedUsers = new LinkedHashSet<>();
+	private int completedItems;
+	/** The notifications of the checked users not delivered yet */
+	private Map<Long, List<Notification>> notifications = new HashMap<>();
+	/** The messages ready to be sent for each user */
+	private Map<Long, List<String>> outbox = new HashMap<>();
+	/** When the last digest of each user was moved to the outbox, the pending digest is emptied right after */
+	private Map<Long, Long> digestsSent = new HashMap<>();
+
+	public CycleJournal(String cycleId, long startedAt) {
+		super();
+		this.cycleId = cycleId;
+		this.startedAt = startedAt;
+	}
+
+	public String getCycleId() {
+		return cycleId;
+	}
+
+	public long getStartedAt() {
+		return startedAt;
+	}
+
+	public Set<Long> getCompletedUsers() {
+		return completedUsers;
+	}
+
+	public int getCompletedItems() {
+		return completedItems;
+	}
+
+	public synchronized boolean isCompleted(Long userId) {
+		return completedUsers.contains(userId);
+	}
+
+	public synchronized void complete(Long userId, int items) {
+		completedUsers.add(userId);
+		completedItems += items;
+	}
+
+	/** Adds the notifications of the user, replacing the ones of the same items left by an interrupted check. */
+	public synchronized void addNotifications(Long userId, List<Notification> added) {
+		final List<Notification> list = notifications.computeIfAbsent(userId, k -> new ArrayList<>());
+		for (final Notification notification : added) {
+			list.removeIf(n -> n.getItemUuid().equals(notification.getItemUuid()));
+			list.add(notification);
+		}
+	}
+
+	public synchronized List<Notification> getNotifications(Long userId) {
+		return notifications.getOrDefault(userId, List.of());
+	}
+
+	/**
+	 * Replaces the notifications of the user with the messages to send.
+	 *
+	 * @param digestSent When the digest among the messages was built, 0 if there is none
+	 */
+	public synchronized void toOutbox(Long userId, List<String> messages, long digestSent) {
+		notifications.remove(userId);
+		if (!messages.isEmpty()) { outbox.computeIfAbsent(userId, k -> new ArrayList<>()).addAll(messages); }
+		if (digestSent > 0) { digestsSent().put(userId, digestSent); }
+	}
+
+	/** Returns when the last digest of the user was moved to the outbox, 0 if not in this check. */
+	public synchronized long getDigestSent(Long userId) {
+		return digestsSent().getOrDefault(userId, 0L);
+	}
+
+	private Map<Long, Long> digestsSent() {
+		// the journals saved before the digests were recorded don't have them
+		if (digestsSent == null) { digestsSent = new HashMap<>(); }
+		return digestsSent;
+	}
+
+	public synchronized List<String> getOutbox(Long userId) {
+		return outbox.getOrDefault(userId, List.of());
+	}
+
+	/** Removes the first message of the user after it has been sent. */
+	public synchronized void messageSent(Long userId) {
+		final List<String> messages = outbox.get(userId);
+		messages.remove(0);
+		if (messages.isEmpty()) { outbox.remove(userId); }
+	}
+
+	/** Returns the users with notifications or messages not delivered yet. */
+	public synchronized Set<Long> getUndeliveredUsers() {
+		final Set<Long> result = new LinkedHashSet<>(notifications.keySet());
+		result.addAll(outbox.keySet());
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return "CycleJournal [cycleId=" + cycleId + ", startedAt=" + startedAt + ", completedUsers=" + completedUsers.size() + ", completedItems="
+				+ completedItems + ", notifications=" + notifications.size() + ", outbox=" + outbox.size() + "]";
+	}
+
+}
@@ -0,0 +1,85 @@
+package pojo;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeSet;
+
+/**
+ * The items of a user, indexed by uuid and by url and kept sorted by name while they are added and removed.
+ * <p>
+ * The item of an url contains all its watched sizes, so the url index is enough to find an item by url and size. The items of the same url
+ * saved by the old versions are merged when they are read.
+ */
+public class ItemStore {
+
+	private static final Comparator<TrackedItem> BY_NAME = Comparator.comparing(TrackedItem::getName).thenComparing(TrackedItem::getUuid);
+
+	private final Map<String, TrackedItem> byUuid = new HashMap<>();
+	private final Map<String, TrackedItem> byUrl = new HashMap<>();
+	private final TreeSet<TrackedItem> sorted = new TreeSet<>(BY_NAME);
+	/** The read-only view, built again only after a change */
+	private List<TrackedItem> view = List.of();
+
+	public ItemStore(Collection<TrackedItem> items) {
+		items.forEach(this::index);
+		view = List.copyOf(sorted);
+	}
+
+	/** Returns the items sorted by name, the list can't be modified. */
+	public synchronized List<TrackedItem> asList() {
+		if (view == null) { view = List.copyOf(sorted); }
+		return view;
+	}
+
+	public synchronized Optional<TrackedItem> get(String uuid) {
+		return Optional.ofNullable(byUuid.get(uuid));
+	}
+
+	public synchronized Optional<TrackedItem> findByUrl(String url) {
+		return Optional.ofNullable(byUrl.get(url));
+	}
+
+	/** Checks if the size of the url is already tracked. */
+	public synchronized boolean contains(String url, String size) {
+		final TrackedItem item = byUrl.get(url);
+		return item != null && item.getSize(size).isPresent();
+	}
+
+	/** Adds the item, replacing the one with the same uuid. */
+	public synchronized void add(TrackedItem item) {
+		remove(item.getUuid());
+		index(item);
+		view = null;
+	}
+
+	/** Removes the item with the specified uuid. */
+	public synchronized Optional<TrackedItem> remove(String uuid) {
+		final TrackedItem removed = byUuid.remove(uuid);
+		if (removed == null) { return Optional.empty(); }
+
+		sorted.remove(removed);
+		byUrl.remove(removed.getUrl(), removed);
+		view = null;
+		return Optional.of(removed);
+	}
+
+	public synchronized int size() {
+		return byUuid.size();
+	}
+
+	private void index(TrackedItem item) {
+		byUuid.put(item.getUuid(), item);
+		byUrl.putIfAbsent(item.getUrl(), item);
+		sorted.add(item);
+	}
+
+	@Override
+	public String toString() {
+		return "ItemStore [items=" + byUuid.size() + "]";
+	}
+
+}
@@ -0,0 +1,51 @@
+package pojo;
+
+/**
+ * A change of an item to notify to the user.
+ */
+public class Notification {
+
+	private final String itemUuid;
+	/** The full message, sent when the notification is not part of a digest */
+	private final String message;
+	/** The single line used in the digests */
+	private final String summary;
+	/** Urgent notifications are sent immediately even if the user chose the digests */
+	private final boolean urgent;
+	private final long createdAt;
+
+	public Notification(String itemUuid, String message, String summary, boolean urgent, long createdAt) {
+		super();
+		this.itemUuid = itemUuid;
+		this.message = message;
+		this.summary = summary;
+		this.urgent = urgent;
+		this.createdAt = createdAt;
+	}
+
+	public String getItemUuid() {
+		return itemUuid;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	public String getSummary() {
+		return summary;
+	}
+
+	public boolean isUrgent() {
+		return urgent;
+	}
+
+	public long getCreatedAt() {
+		return createdAt;
+	}
+
+	@Override
+	public String toString() {
+		return "Notification [itemUuid=" + itemUuid + ", summary=" + summary + ", urgent=" + urgent + ", createdAt=" + createdAt + "]";
+	}
+
+}
@@ -1,5 +1,12 @@
 package pojo;
 
+import java.io.IOException;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
 public class Offer {
 
 	public Price price;
@@ -42,4 +49,106 @@ public class Offer {
 
 	}
 
+	/** Reads the offers of the item pages skipping all the fields that are not used */
+	public static class Adapter extends TypeAdapter<Offer> {
+
+		@Override
+		public void write(JsonWriter out, Offer offer) throws IOException {
+			if (offer == null) {
+				out.nullValue();
+				return;
+			}
+			out.beginObject();
+			if (offer.price != null) {
+				out.name("price").beginObject();
+				writeInnerPrice(out, "promotional", offer.price.promotional);
+				writeInnerPrice(out, "original", offer.price.original);
+				out.endObject();
+			}
+			if (offer.stock != null) {
+				out.name("stock").beginObject();
+				if (offer.stock.quantity != null) { out.name("quantity").value(offer.stock.quantity); }
+				out.endObject();
+			}
+			out.name("isMeaningfulOffer").value(offer.isMeaningfulOffer);
+			out.endObject();
+		}
+
+		private static void writeInnerPrice(JsonWriter out, String name, InnerPrice price) throws IOException {
+			if (price == null) { return; }
+			out.name(name).beginObject();
+			out.name("amount").value(price.amount);
+			out.endObject();
+		}
+
+		@Override
+		public Offer read(JsonReader in) throws IOException {
+			if (in.peek() == JsonToken.NULL) {
+				in.nextNull();
+				return null;
+			}
+			final Offer offer = new Offer();
+			in.beginObject();
+			while (in.hasNext()) {
+				final String field = in.nextName();
+				if (in.peek() == JsonToken.NULL) {
+					in.nextNull();
+					continue;
+				}
+				switch (field) {
+				case "price" -> offer.price = readPrice(in);
+				case "stock" -> {
+					offer.stock = new Stock();
+					in.beginObject();
+					while (in.hasNext()) {
+						if ("quantity".equals(in.nextName()) && in.peek() != JsonToken.NULL) {
+							offer.stock.quantity = in.nextString();
+						} else {
+							in.skipValue();
+						}
+					}
+					in.endObject();
+				}
+				case "isMeaningfulOffer" -> offer.isMeaningfulOffer = in.nextBoolean();
+				default -> in.skipValue();
+				}
+			}
+			in.endObject();
+			return offer;
+		}
+
+		private static Price readPrice(JsonReader in) throws IOException {
+			final Price price = new Price();
+			in.beginObject();
+			while (in.hasNext()) {
+				final String field = in.nextName();
+				if (in.peek() == JsonToken.NULL) {
+					in.nextNull();
+				} else if ("promotional".equals(field)) {
+					price.promotional = readInnerPrice(in);
+				} else if ("original".equals(field)) {
+					price.original = readInnerPrice(in);
+				} else {
+					in.skipValue();
+				}
+			}
+			in.endObject();
+			return price;
+		}
+
+		private static InnerPrice readInnerPrice(JsonReader in) throws IOException {
+			final InnerPrice price = new InnerPrice();
+			in.beginObject();
+			while (in.hasNext()) {
+				if ("amount".equals(in.nextName()) && in.peek() != JsonToken.NULL) {
+					price.amount = in.nextInt();
+				} else {
+					in.skipValue();
+				}
+			}
+			in.endObject();
+			return price;
+		}
+	}
+
 }
@@ -0,0 +1,39 @@
+package pojo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The notifications waiting for the next digest of a user.
+ */
+public class PendingDigest {
+
+	private long lastSent = 0;
+	private List<Notification> pending = new ArrayList<>();
+
+	public long getLastSent() {
+		return lastSent;
+	}
+
+	public List<Notification> getPending() {
+		return pending;
+	}
+
+	/** Adds the notification, replacing the older one of the same item. */
+	public void add(Notification notification) {
+		pending.removeIf(n -> n.getItemUuid().equals(notification.getItemUuid()));
+		pending.add(notification);
+	}
+
+	/** Empties the digest after it has been sent. */
+	public void sent(long time) {
+		pending = new ArrayList<>();
+		lastSent = time;
+	}
+
+	@Override
+	public String toString() {
+		return "PendingDigest [lastSent=" + lastSent + ", pending=" + pending + "]";
+	}
+
+}
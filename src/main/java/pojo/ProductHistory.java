@@ -0,0 +1,120 @@
+package pojo;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+import pojo.TrackedItem.PriceHistory;
+
+/**
+ * The price history of a product, shared by all the users tracking the same url and sizes. Each user sees it from the day the item was
+ * added.
+ * <p>
+ * The list is never modified, a new one replaces it at every change so that it can be read while the check records a new price.
+ */
+public class ProductHistory {
+
+	private final String key;
+	private volatile List<PriceHistory> priceHistory;
+
+	public ProductHistory(String key, List<PriceHistory> priceHistory) {
+		super();
+		this.key = key;
+		this.priceHistory = List.copyOf(priceHistory);
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	public List<PriceHistory> getPriceHistory() {
+		return priceHistory;
+	}
+
+	public boolean isEmpty() {
+		return priceHistory.isEmpty();
+	}
+
+	/** Returns the date of the first entry, null if the history is empty. */
+	public String getFirstDate() {
+		final List<PriceHistory> current = priceHistory;
+		return current.isEmpty() ? null : current.get(0).getDate();
+	}
+
+	/**
+	 * Returns the entries from the specified date "d-m-yyyy", all of them if null. The price still in effect on that date is included, so the
+	 * result is empty only if the history is.
+	 */
+	public List<PriceHistory> since(String date) {
+		final List<PriceHistory> current = priceHistory;
+		if (date == null || current.isEmpty() || date.equals(current.get(0).getDate())) { return current; }
+
+		final LocalDate from = new PriceHistory(null, date).getLocalDate();
+		for (int i = 0; i < current.size(); i++) {
+			final LocalDate entryDate = current.get(i).getLocalDate();
+			if (entryDate.equals(from)) { return current.subList(i, current.size()); }
+			// no entry on that day, merged or compacted away: the one before was the price on that day
+			if (entryDate.isAfter(from)) { return current.subList(Math.max(0, i - 1), current.size()); }
+		}
+		return current.subList(current.size() - 1, current.size());
+	}
+
+	/** Adds the price if it changed since the last entry. Returns true if it was added. */
+	public synchronized boolean record(PriceHistory entry) {
+		final List<PriceHistory> current = priceHistory;
+		if (!current.isEmpty() && current.get(current.size() - 1).getStringPrice().equals(entry.getStringPrice())) { return false; }
+
+		final List<PriceHistory> updated = new ArrayList<>(current);
+		updated.add(entry);
+		priceHistory = List.copyOf(updated);
+		return true;
+	}
+
+	/**
+	 * Merges the entries saved by an item with the history, ordered by date and without the entries that don't change the price. Returns true
+	 * if the history changed.
+	 */
+	public synchronized boolean merge(List<PriceHistory> entries) {
+		final List<PriceHistory> all = new ArrayList<>(priceHistory);
+		all.addAll(entries);
+		// the sort is stable, the entries of the same day keep their order
+		all.sort(Comparator.comparing(PriceHistory::getLocalDate));
+
+		final List<PriceHistory> merged = new ArrayList<>();
+		for (final PriceHistory entry : all) {
+			if (!merged.isEmpty() && merged.get(merged.size() - 1).getStringPrice().equals(entry.getStringPrice())) { continue; }
+			merged.add(entry);
+		}
+
+		if (sameEntries(merged, priceHistory)) { return false; }
+		priceHistory = List.copyOf(merged);
+		return true;
+	}
+
+	/** Replaces the entries with the compacted ones, see {@link util.HistoryRetention}. Returns the number of entries removed. */
+	public synchronized int compact(UnaryOperator<List<PriceHistory>> compaction) {
+		final List<PriceHistory> current = priceHistory;
+		final List<PriceHistory> compacted = compaction.apply(current);
+		if (compacted == current) { return 0; }
+		priceHistory = List.copyOf(compacted);
+		return current.size() - compacted.size();
+	}
+
+	private static boolean sameEntries(List<PriceHistory> first, List<PriceHistory> second) {
+		if (first.size() != second.size()) { return false; }
+		for (int i = 0; i < first.size(); i++) {
+			if (!first.get(i).getStringPrice().equals(second.get(i).getStringPrice()) || !first.get(i).getDate().equals(second.get(i).getDate())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "ProductHistory [key=" + key + ", entries=" + priceHistory.size() + "]";
+	}
+
+}
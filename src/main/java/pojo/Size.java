@@ -1,5 +1,12 @@
 package pojo;
 
+import java.io.IOException;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
 public class Size {
 
 	public String size;
@@ -11,4 +18,49 @@ public class Size {
 		return "Size [size=" + size + ", offer=" + offer + "]";
 	}
 
+	/** Reads the sizes of the item pages skipping all the fields that are not used */
+	public static class Adapter extends TypeAdapter<Size> {
+
+		private static final Offer.Adapter OFFER_ADAPTER = new Offer.Adapter();
+
+		@Override
+		public void write(JsonWriter out, Size value) throws IOException {
+			if (value == null) {
+				out.nullValue();
+				return;
+			}
+			out.beginObject();
+			if (value.size != null) { out.name("size").value(value.size); }
+			if (value.offer != null) {
+				out.name("offer");
+				OFFER_ADAPTER.write(out, value.offer);
+			}
+			out.endObject();
+		}
+
+		@Override
+		public Size read(JsonReader in) throws IOException {
+			if (in.peek() == JsonToken.NULL) {
+				in.nextNull();
+				return null;
+			}
+			final Size result = new Size();
+			in.beginObject();
+			while (in.hasNext()) {
+				final String field = in.nextName();
+				if (in.peek() == JsonToken.NULL) {
+					in.nextNull();
+				} else if ("size".equals(field)) {
+					result.size = in.nextString();
+				} else if ("offer".equals(field)) {
+					result.offer = OFFER_ADAPTER.read(in);
+				} else {
+					in.skipValue();
+				}
+			}
+			in.endObject();
+			return result;
+		}
+	}
+
 }
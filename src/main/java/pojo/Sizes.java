@@ -1,14 +0,0 @@
-package pojo;
-
-import java.util.List;
-
-public class Sizes {
-
-	public List<Size> simples;
-
-	@Override
-	public String toString() {
-		return "Sizes [simples=" + simples + "]";
-	}
-
-}
@@ -1,33 +1,86 @@
 package pojo;
 
+import java.io.IOException;
 import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
 public class TrackedItem {
 
 	private final String uuid;
 	private final String name;
 	private final String url;
-	private final String size;
 	private String price;
-	private final String quantity;
-	private final boolean available;
 	private final boolean hasCoupon;
+	private final Coupon coupon;
 	private int notFoundCount = 0;
-	private int sizeNotFoundCount = 0;
+	private List<TrackedSize> sizes = new ArrayList<>();
+	/** The history saved in the item before it was shared between the users, moved to the product history when the item is read */
 	private ArrayList<PriceHistory> priceHistory = new ArrayList<>();
+	/** The date from which the user sees the product history */
+	private String trackedSince;
+	private transient ProductHistory history;
+	/** The price is compared with the other stores, see {@link util.PriceComparison} */
+	private boolean compareDomains = false;
+	/** The cheaper store found by the last comparison and its price, already notified */
+	private String cheaperDomain;
+	private String cheaperPrice;
+	/** While sold out, the item is checked more often to notify as soon as it's back in stock */
+	private boolean watchRestock = false;
+	/** The times of the last check whose page was read, of the last check even if it failed and of the last change, 0 if unknown */
+	private long lastChecked;
+	private long lastAttempt;
+	private long lastChange;
+
+	// single size fields of the items saved before the multi-size support, only read to migrate them
+	private String size;
+	private String quantity;
+	private Boolean available;
+	private Integer sizeNotFoundCount;
+
+	public TrackedItem(String uuid, String name, String url, List<TrackedSize> sizes, String price, Coupon coupon) {
+		this(uuid, name, url, sizes, price, coupon != null, coupon);
+	}
 
-	public TrackedItem(String uuid, String name, String url, String size, String price, String quantity, boolean available, boolean hasCoupon) {
+	/** The items saved before the discount detection have the coupon flag without the coupon */
+	private TrackedItem(String uuid, String name, String url, List<TrackedSize> sizes, String price, boolean hasCoupon, Coupon coupon) {
 		super();
 		this.uuid = uuid;
 		this.name = name;
 		this.url = url;
-		this.size = size;
+		this.sizes = new ArrayList<>(sizes);
 		this.price = price;
-		this.quantity = quantity;
-		this.available = available;
 		this.hasCoupon = hasCoupon;
+		this.coupon = coupon;
+		// a new item is built from a page just read
+		this.lastChecked = System.currentTimeMillis();
+		this.lastAttempt = lastChecked;
+		this.lastChange = lastChecked;
+	}
+
+	/** Moves the fields of a single size item into the list of sizes. Returns true if the item has been migrated. */
+	public boolean migrateLegacySize() {
+		if (sizes == null) { sizes = new ArrayList<>(); }
+		if (size == null) { return false; }
+
+		final TrackedSize migrated = new TrackedSize(size, price, quantity, available != null && available);
+		migrated.sizeNotFoundCount = sizeNotFoundCount == null ? 0 : sizeNotFoundCount;
+		sizes.add(migrated);
+
+		size = null;
+		quantity = null;
+		available = null;
+		sizeNotFoundCount = null;
+		return true;
 	}
 
 	public String getUuid() {
@@ -38,6 +91,7 @@ public class TrackedItem {
 		return name;
 	}
 
+	/** Returns the lowest last known price among the watched sizes, also the ones not available. */
 	public String getPrice() {
 		return price;
 	}
@@ -46,32 +100,171 @@ public class TrackedItem {
 		this.price = price;
 	}
 
-	public String getQuantity() {
-		return quantity;
-	}
-
-	public ArrayList<PriceHistory> getPriceHistory() {
-		return priceHistory;
+	/** Returns the price history seen by the user, the one of the item if not linked to the product history yet. */
+	public List<PriceHistory> getPriceHistory() {
+		if (history != null) { return history.since(trackedSince); }
+		return priceHistory == null ? List.of() : priceHistory;
 	}
 
 	public void setPriceHistory(ArrayList<PriceHistory> priceHistory) {
 		this.priceHistory = priceHistory;
 	}
 
+	public ProductHistory getHistory() {
+		return history;
+	}
+
+	/** Links the item to the shared history of its product, the history of the item is not needed anymore. */
+	public void setHistory(ProductHistory history) {
+		this.history = history;
+		this.priceHistory = null;
+	}
+
+	public String getTrackedSince() {
+		return trackedSince;
+	}
+
+	public void setTrackedSince(String trackedSince) {
+		this.trackedSince = trackedSince;
+	}
+
+	/** Takes the history of the same item checked before. */
+	public void inheritHistory(TrackedItem oldItem) {
+		this.trackedSince = oldItem.trackedSince;
+		if (oldItem.history == null) {
+			this.priceHistory = oldItem.priceHistory;
+		} else {
+			setHistory(oldItem.history);
+		}
+	}
+
+	public boolean isCompareDomains() {
+		return compareDomains;
+	}
+
+	public void setCompareDomains(boolean compareDomains) {
+		this.compareDomains = compareDomains;
+	}
+
+	public String getCheaperDomain() {
+		return cheaperDomain;
+	}
+
+	public String getCheaperPrice() {
+		return cheaperPrice;
+	}
+
+	/** Sets the cheaper store found by the comparison, null if the item is the cheapest. */
+	public void setCheaperStore(String domain, String price) {
+		this.cheaperDomain = domain;
+		this.cheaperPrice = price;
+	}
+
+	/** Takes the comparison settings of the same item checked before. */
+	public void inheritComparison(TrackedItem oldItem) {
+		this.compareDomains = oldItem.compareDomains;
+		this.cheaperDomain = oldItem.cheaperDomain;
+		this.cheaperPrice = oldItem.cheaperPrice;
+	}
+
+	public long getLastChecked() {
+		return lastChecked;
+	}
+
+	public long getLastAttempt() {
+		return lastAttempt;
+	}
+
+	public long getLastChange() {
+		return lastChange;
+	}
+
+	/**
+	 * Records a check of the item, the times not updated are the ones of the same item before the check.
+	 *
+	 * @param succeeded If the page of the item was read, the item is the one before the check if not
+	 */
+	public void recordCheck(TrackedItem oldItem, long now, boolean succeeded) {
+		final boolean changed = succeeded && anyChange(oldItem);
+		this.lastAttempt = now;
+		this.lastChecked = succeeded ? now : oldItem.lastChecked;
+		this.lastChange = changed ? now : oldItem.lastChange;
+	}
+
+	public boolean isWatchRestock() {
+		return watchRestock;
+	}
+
+	public void setWatchRestock(boolean watchRestock) {
+		this.watchRestock = watchRestock;
+	}
+
+	/**
+	 * Returns the key of the shared history: the same url and watched sizes have the same price history. The history records the item price,
+	 * the lowest of the watched sizes, so it's shared only by the items watching the same sizes; an item watching a single size, the most
+	 * common, has the history of its url and size.
+	 */
+	public String getHistoryKey() {
+		return url + "|" + sizes.stream().map(TrackedSize::getSize).sorted().collect(Collectors.joining(","));
+	}
+
 	public String getUrl() {
 		return url;
 	}
 
-	public String getSize() {
-		return size;
+	public List<TrackedSize> getSizes() {
+		return sizes;
+	}
+
+	/** Returns the watched size with the specified name. */
+	public Optional<TrackedSize> getSize(String sizeName) {
+		return sizes.stream().filter(s -> Objects.equals(s.getSize(), sizeName)).findFirst();
+	}
+
+	/** Returns the names of the watched sizes. */
+	public List<String> getSizeNames() {
+		return sizes.stream().map(TrackedSize::getSize).toList();
+	}
+
+	/**
+	 * Returns a copy of the item watching also the specified sizes, with the price of all of them. The item is not changed, a check can be
+	 * reading it.
+	 */
+	public TrackedItem withSizes(List<TrackedSize> added) {
+		final List<TrackedSize> merged = new ArrayList<>(sizes);
+		merged.addAll(added);
+		final String mergedPrice = TrackedSize.lowestPrice(merged);
+
+		final TrackedItem result = new TrackedItem(uuid, name, url, merged, mergedPrice == null ? price : mergedPrice, hasCoupon, coupon);
+		result.notFoundCount = notFoundCount;
+		result.inheritHistory(this);
+		result.inheritComparison(this);
+		result.watchRestock = watchRestock;
+		result.lastChecked = lastChecked;
+		result.lastAttempt = lastAttempt;
+		result.lastChange = lastChange;
+		return result;
+	}
+
+	/** Removes the sizes not found too many times and returns them. */
+	public List<TrackedSize> removeMissingSizes(int maxNotFound) {
+		final List<TrackedSize> removed = sizes.stream().filter(s -> s.getSizeNotFoundCount() >= maxNotFound).toList();
+		sizes.removeAll(removed);
+		return removed;
 	}
 
 	public boolean isHasCoupon() {
 		return hasCoupon;
 	}
 
+	/** Returns the coupon found in the page, null if there is none or if it was found before the discount detection. */
+	public Coupon getCoupon() {
+		return coupon;
+	}
+
+	/** Indicates if at least one of the watched sizes is available. */
 	public boolean isAvailable() {
-		return available;
+		return sizes.stream().anyMatch(TrackedSize::isAvailable);
 	}
 
 	public int getNotFoundCount() {
@@ -82,29 +275,115 @@ public class TrackedItem {
 		notFoundCount++;
 	}
 
+	/** Returns how many times in a row none of the watched sizes was found. */
 	public int getSizeNotFoundCount() {
-		return sizeNotFoundCount;
+		return sizes.stream().mapToInt(TrackedSize::getSizeNotFoundCount).min().orElse(0);
 	}
 
 	public void incrementSizeNotFoundCount() {
-		sizeNotFoundCount++;
+		sizes.forEach(TrackedSize::incrementSizeNotFoundCount);
 	}
 
 	public boolean anyChange(TrackedItem item) {
 		return !Objects.equals(price, item.getPrice())//
-				|| !Objects.equals(quantity, item.getQuantity())//
-				|| !Objects.equals(available, item.isAvailable())//
 				|| !Objects.equals(hasCoupon, item.isHasCoupon())//
+				|| !Objects.equals(coupon, item.getCoupon())//
 				|| !Objects.equals(notFoundCount, item.getNotFoundCount()) //
-				|| !Objects.equals(sizeNotFoundCount, item.getSizeNotFoundCount());
+				|| !Objects.equals(sizes, item.getSizes())//
+				|| compareDomains != item.isCompareDomains()//
+				|| !Objects.equals(cheaperDomain, item.getCheaperDomain())//
+				|| !Objects.equals(cheaperPrice, item.getCheaperPrice())//
+				|| watchRestock != item.isWatchRestock();
 	}
 
 	@Override
 	public String toString() {
-		return "TrackedItem [uuid=" + uuid + ", name=" + name + ", url=" + url + ", size=" + size + ", price=" + price + ", quantity=" + quantity + ", available="
-				+ available + ", hasCoupon=" + hasCoupon + ", priceHistory=" + priceHistory + "]";
+		return "TrackedItem [uuid=" + uuid + ", name=" + name + ", url=" + url + ", sizes=" + sizes + ", price=" + price + ", coupon=" + coupon
+				+ ", priceHistory=" + priceHistory + "]";
 	}
 
+	/** The state of a single watched size */
+	public static class TrackedSize {
+		private final String size;
+		private String price;
+		private final String quantity;
+		private final boolean available;
+		private int sizeNotFoundCount = 0;
+
+		public TrackedSize(String size, String price, String quantity, boolean available) {
+			super();
+			this.size = size;
+			this.price = price;
+			this.quantity = quantity;
+			this.available = available;
+		}
+
+		/** Returns a copy of the size that was not found in the page, unavailable: its price is only kept for the history. */
+		public TrackedSize notFound() {
+			final TrackedSize copy = new TrackedSize(size, price, quantity, false);
+			copy.sizeNotFoundCount = sizeNotFoundCount + 1;
+			return copy;
+		}
+
+		public String getSize() {
+			return size;
+		}
+
+		public String getPrice() {
+			return price;
+		}
+
+		public void setPrice(String price) {
+			this.price = price;
+		}
+
+		public Double getNumericPrice() {
+			return price == null ? null : Double.valueOf(price.replace(",", "."));
+		}
+
+		public String getQuantity() {
+			return quantity;
+		}
+
+		public boolean isAvailable() {
+			return available;
+		}
+
+		public int getSizeNotFoundCount() {
+			return sizeNotFoundCount;
+		}
+
+		public void incrementSizeNotFoundCount() {
+			sizeNotFoundCount++;
+		}
+
+		/** Returns the lowest price among the specified sizes. */
+		public static String lowestPrice(List<TrackedSize> sizes) {
+			return sizes.stream()//
+					.filter(s -> s.getPrice() != null)//
+					.min(Comparator.comparing(TrackedSize::getNumericPrice))//
+					.map(TrackedSize::getPrice).orElse(null);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) { return true; }
+			if (!(obj instanceof final TrackedSize other)) { return false; }
+			return Objects.equals(size, other.size) && Objects.equals(price, other.price) && Objects.equals(quantity, other.quantity)
+					&& available == other.available && sizeNotFoundCount == other.sizeNotFoundCount;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(size, price, quantity, available, sizeNotFoundCount);
+		}
+
+		@Override
+		public String toString() {
+			return "TrackedSize [size=" + size + ", price=" + price + ", quantity=" + quantity + ", available=" + available + "]";
+		}
+	} // TrackedSize
+
 	public static class PriceHistory {
 		private final String price;
 		private final String date;
@@ -136,6 +415,255 @@ public class TrackedItem {
 		public String toString() {
 			return "PriceHistory [price=" + price + ", date=" + date + "]";
 		}
+
+		/** Reads and writes the price history entries without reflection */
+		public static class Adapter extends TypeAdapter<PriceHistory> {
+
+			@Override
+			public void write(JsonWriter out, PriceHistory entry) throws IOException {
+				if (entry == null) {
+					out.nullValue();
+					return;
+				}
+				out.beginObject();
+				out.name("price").value(entry.price);
+				out.name("date").value(entry.date);
+				out.endObject();
+			}
+
+			@Override
+			public PriceHistory read(JsonReader in) throws IOException {
+				if (in.peek() == JsonToken.NULL) {
+					in.nextNull();
+					return null;
+				}
+				String price = null;
+				String date = null;
+				in.beginObject();
+				while (in.hasNext()) {
+					final String field = in.nextName();
+					if (in.peek() == JsonToken.NULL) {
+						in.nextNull();
+					} else if ("price".equals(field)) {
+						price = in.nextString();
+					} else if ("date".equals(field)) {
+						date = in.nextString();
+					} else {
+						in.skipValue();
+					}
+				}
+				in.endObject();
+				return new PriceHistory(price, date);
+			}
+		}
 	} // PriceHistory
 
+	/**
+	 * Reads and writes the items with the same json of the reflection based binding, without reflection and streaming from and to the
+	 * files.
+	 */
+	public static class Adapter extends TypeAdapter<TrackedItem> {
+
+		private static final PriceHistory.Adapter PRICE_HISTORY_ADAPTER = new PriceHistory.Adapter();
+
+		@Override
+		public void write(JsonWriter out, TrackedItem item) throws IOException {
+			if (item == null) {
+				out.nullValue();
+				return;
+			}
+			out.beginObject();
+			out.name("uuid").value(item.uuid);
+			out.name("name").value(item.name);
+			out.name("url").value(item.url);
+			if (item.price != null) { out.name("price").value(item.price); }
+			out.name("hasCoupon").value(item.hasCoupon);
+			if (item.coupon != null) {
+				out.name("coupon").beginObject();
+				if (item.coupon.getDiscount() != null) { out.name("discount").value(item.coupon.getDiscount()); }
+				if (item.coupon.getCode() != null) { out.name("code").value(item.coupon.getCode()); }
+				out.endObject();
+			}
+			out.name("notFoundCount").value(item.notFoundCount);
+			if (item.sizes != null) {
+				out.name("sizes").beginArray();
+				for (final TrackedSize size : item.sizes) {
+					writeSize(out, size);
+				}
+				out.endArray();
+			}
+			if (item.priceHistory != null) {
+				out.name("priceHistory").beginArray();
+				for (final PriceHistory entry : item.priceHistory) {
+					PRICE_HISTORY_ADAPTER.write(out, entry);
+				}
+				out.endArray();
+			}
+			if (item.trackedSince != null) { out.name("trackedSince").value(item.trackedSince); }
+			if (item.compareDomains) { out.name("compareDomains").value(true); }
+			if (item.cheaperDomain != null) { out.name("cheaperDomain").value(item.cheaperDomain); }
+			if (item.cheaperPrice != null) { out.name("cheaperPrice").value(item.cheaperPrice); }
+			if (item.watchRestock) { out.name("watchRestock").value(true); }
+			if (item.lastChecked > 0) { out.name("lastChecked").value(item.lastChecked); }
+			if (item.lastAttempt > 0) { out.name("lastAttempt").value(item.lastAttempt); }
+			if (item.lastChange > 0) { out.name("lastChange").value(item.lastChange); }
+			if (item.size != null) { out.name("size").value(item.size); }
+			if (item.quantity != null) { out.name("quantity").value(item.quantity); }
+			if (item.available != null) { out.name("available").value(item.available); }
+			if (item.sizeNotFoundCount != null) { out.name("sizeNotFoundCount").value(item.sizeNotFoundCount); }
+			out.endObject();
+		}
+
+		private static void writeSize(JsonWriter out, TrackedSize size) throws IOException {
+			out.beginObject();
+			out.name("size").value(size.size);
+			if (size.price != null) { out.name("price").value(size.price); }
+			if (size.quantity != null) { out.name("quantity").value(size.quantity); }
+			out.name("available").value(size.available);
+			out.name("sizeNotFoundCount").value(size.sizeNotFoundCount);
+			out.endObject();
+		}
+
+		@Override
+		public TrackedItem read(JsonReader in) throws IOException {
+			if (in.peek() == JsonToken.NULL) {
+				in.nextNull();
+				return null;
+			}
+			String uuid = null;
+			String name = null;
+			String url = null;
+			String price = null;
+			boolean hasCoupon = false;
+			Coupon coupon = null;
+			int notFoundCount = 0;
+			final List<TrackedSize> sizes = new ArrayList<>();
+			final ArrayList<PriceHistory> priceHistory = new ArrayList<>();
+			String trackedSince = null;
+			boolean compareDomains = false;
+			String cheaperDomain = null;
+			String cheaperPrice = null;
+			boolean watchRestock = false;
+			long lastChecked = 0;
+			long lastAttempt = 0;
+			long lastChange = 0;
+			String legacySize = null;
+			String legacyQuantity = null;
+			Boolean legacyAvailable = null;
+			Integer legacySizeNotFoundCount = null;
+
+			in.beginObject();
+			while (in.hasNext()) {
+				final String field = in.nextName();
+				if (in.peek() == JsonToken.NULL) {
+					in.nextNull();
+					continue;
+				}
+				switch (field) {
+				case "uuid" -> uuid = in.nextString();
+				case "name" -> name = in.nextString();
+				case "url" -> url = in.nextString();
+				case "price" -> price = in.nextString();
+				case "hasCoupon" -> hasCoupon = in.nextBoolean();
+				case "coupon" -> coupon = readCoupon(in);
+				case "notFoundCount" -> notFoundCount = in.nextInt();
+				case "sizes" -> {
+					in.beginArray();
+					while (in.hasNext()) {
+						sizes.add(readSize(in));
+					}
+					in.endArray();
+				}
+				case "priceHistory" -> {
+					in.beginArray();
+					while (in.hasNext()) {
+						priceHistory.add(PRICE_HISTORY_ADAPTER.read(in));
+					}
+					in.endArray();
+				}
+				case "trackedSince" -> trackedSince = in.nextString();
+				case "compareDomains" -> compareDomains = in.nextBoolean();
+				case "cheaperDomain" -> cheaperDomain = in.nextString();
+				case "cheaperPrice" -> cheaperPrice = in.nextString();
+				case "watchRestock" -> watchRestock = in.nextBoolean();
+				case "lastChecked" -> lastChecked = in.nextLong();
+				case "lastAttempt" -> lastAttempt = in.nextLong();
+				case "lastChange" -> lastChange = in.nextLong();
+				case "size" -> legacySize = in.nextString();
+				case "quantity" -> legacyQuantity = in.nextString();
+				case "available" -> legacyAvailable = in.nextBoolean();
+				case "sizeNotFoundCount" -> legacySizeNotFoundCount = in.nextInt();
+				default -> in.skipValue();
+				}
+			}
+			in.endObject();
+
+			final TrackedItem item = new TrackedItem(uuid, name, url, sizes, price, hasCoupon, coupon);
+			item.notFoundCount = notFoundCount;
+			item.priceHistory = priceHistory;
+			item.trackedSince = trackedSince;
+			item.compareDomains = compareDomains;
+			item.cheaperDomain = cheaperDomain;
+			item.cheaperPrice = cheaperPrice;
+			item.watchRestock = watchRestock;
+			// the items saved before the times were recorded are not considered checked
+			item.lastChecked = lastChecked;
+			item.lastAttempt = lastAttempt;
+			item.lastChange = lastChange;
+			item.size = legacySize;
+			item.quantity = legacyQuantity;
+			item.available = legacyAvailable;
+			item.sizeNotFoundCount = legacySizeNotFoundCount;
+			return item;
+		}
+
+		private static Coupon readCoupon(JsonReader in) throws IOException {
+			String discount = null;
+			String code = null;
+			in.beginObject();
+			while (in.hasNext()) {
+				final String field = in.nextName();
+				if (in.peek() == JsonToken.NULL) {
+					in.nextNull();
+				} else if ("discount".equals(field)) {
+					discount = in.nextString();
+				} else if ("code".equals(field)) {
+					code = in.nextString();
+				} else {
+					in.skipValue();
+				}
+			}
+			in.endObject();
+			return new Coupon(discount, code);
+		}
+
+		private static TrackedSize readSize(JsonReader in) throws IOException {
+			String size = null;
+			String price = null;
+			String quantity = null;
+			boolean available = false;
+			int sizeNotFoundCount = 0;
+			in.beginObject();
+			while (in.hasNext()) {
+				final String field = in.nextName();
+				if (in.peek() == JsonToken.NULL) {
+					in.nextNull();
+					continue;
+				}
+				switch (field) {
+				case "size" -> size = in.nextString();
+				case "price" -> price = in.nextString();
+				case "quantity" -> quantity = in.nextString();
+				case "available" -> available = in.nextBoolean();
+				case "sizeNotFoundCount" -> sizeNotFoundCount = in.nextInt();
+				default -> in.skipValue();
+				}
+			}
+			in.endObject();
+			final TrackedSize result = new TrackedSize(size, price, quantity, available);
+			result.sizeNotFoundCount = sizeNotFoundCount;
+			return result;
+		}
+	} // Adapter
+
 }
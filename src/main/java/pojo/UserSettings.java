@@ -0,0 +1,56 @@
+package pojo;
+
+/**
+ * The preferences of a user.
+ */
+public class UserSettings {
+
+	/** How the notifications are grouped */
+	public enum DigestMode {
+		/** Every notification is sent on its own */
+		OFF(0),
+		/** A digest at the end of every check */
+		CYCLE(0),
+		/** At most a digest every hour */
+		HOURLY(55 * 60 * 1000L),
+		/** At most a digest every day */
+		DAILY((24 * 60 - 5) * 60 * 1000L);
+
+		/** Minimum time between two digests, a few minutes are tolerated because the checks don't start at fixed times */
+		private final long periodMillis;
+
+		DigestMode(long periodMillis) {
+			this.periodMillis = periodMillis;
+		}
+
+		public long getPeriodMillis() {
+			return periodMillis;
+		}
+	}
+
+	private DigestMode digestMode = DigestMode.OFF;
+	/** The share of the checks and of the budgets compared to the other users, set by the admin */
+	private Double weight;
+
+	public DigestMode getDigestMode() {
+		return digestMode == null ? DigestMode.OFF : digestMode;
+	}
+
+	public void setDigestMode(DigestMode digestMode) {
+		this.digestMode = digestMode;
+	}
+
+	public double getWeight() {
+		return weight == null ? 1 : weight;
+	}
+
+	public void setWeight(double weight) {
+		this.weight = weight;
+	}
+
+	@Override
+	public String toString() {
+		return "UserSettings [digestMode=" + digestMode + ", weight=" + weight + "]";
+	}
+
+}
@@ -1,16 +1,26 @@
 package runner;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.time.LocalDate;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Objects;
+import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import org.telegram.telegrambots.meta.TelegramBotsApi;
@@ -18,159 +28,721 @@ import org.telegram.telegrambots.updatesreceivers.DefaultBotSession;
 
 import exceptions.ItemRemovedException;
 import exceptions.SizeRemovedException;
+import exceptions.TemporaryFetchException;
+import pojo.AlertRule;
+import pojo.AlertRule.Type;
+import pojo.CycleJournal;
+import pojo.ItemStore;
+import pojo.Notification;
+import pojo.PendingDigest;
 import pojo.TrackedItem;
 import pojo.TrackedItem.PriceHistory;
+import pojo.TrackedItem.TrackedSize;
+import pojo.UserSettings.DigestMode;
+import util.AlertEngine;
+import util.AlertEngine.CompiledAlerts;
+import util.CheckScheduler;
+import util.CheckScheduler.LaneStats;
+import util.CheckScheduler.UserStats;
+import util.DomainHealth;
+import util.Freshness;
+import util.Freshness.Percentiles;
+import util.ItemFetcher;
 import util.LogicUtility;
+import util.LogicUtility.FetchedPage;
+import util.NotificationDigest;
+import util.Stage;
+import util.Tracing;
+import util.Tracing.CheckCycle;
+import util.Tracing.Scope;
+import util.Tracing.UserCheck;
 
 /**
  * The main class.
  * <li>Instantiates the utility class</li>
  * <li>Instantiates the bot</li>
- * <li>Schedules the logic to run every 60 minutes</li>
+ * <li>Schedules the checks of the products, each one every 60 minutes</li>
  */
 public class Runner {
 
 	private static LogicUtility utility;
 	private static TelegramBot bot = null;
+	private static ItemFetcher fetcher;
+
+	// the continuous checks: after the fetch and parse stages of the fetcher, the items of each user tracking the product go through the
+	// diff, history, persist and notify stages
+	private static final int QUEUE_CAPACITY = 256;
+	private static Stage diffStage;
+	private static Stage historyStage;
+	private static Stage persistStage;
+	private static Stage notifyStage;
+	/** The items and the notifications of a user are saved and sent by one stage at a time */
+	private static final Map<Long, Object> userLocks = new ConcurrentHashMap<>();
+	/** Held while adding notifications to the journal of the round and while replacing it */
+	private static final Object roundLock = new Object();
+	private static CheckScheduler scheduler;
+	private static volatile CycleJournal round;
+	private static CheckCycle roundEvent;
+	private static final AtomicInteger roundItems = new AtomicInteger();
+	private static final AtomicInteger roundSkipped = new AtomicInteger();
+	private static final Freshness freshness = new Freshness();
+	/** The products being checked, a check of the same product meanwhile would notify the same changes twice */
+	private static final Map<String, CheckInFlight> checksInFlight = new ConcurrentHashMap<>();
+	/** A check not done by then is considered lost, e.g. one of its steps failed */
+	private static final long MAX_CHECK_MILLIS = 5 * 60 * 1000;
+
+	/** The items of a user after a check, with the messages to send */
+	private static class CheckedItems {
+		private final List<TrackedItem> items = new ArrayList<>();
+		/** The uuids of the items not found for too long, no longer tracked */
+		private final List<String> removed = new ArrayList<>();
+		/** The items updated with the page, with their version before the check */
+		private final List<ItemChange> changes = new ArrayList<>();
+		private final List<Notification> notifications = new ArrayList<>();
+		/** Sent without waiting for the digests, e.g. the item is no longer available */
+		private final List<String> messages = new ArrayList<>();
+		private boolean anyChange = false;
+		private int skipped = 0;
+		/** If the page was read for at least an item, and if the price of a size lowered */
+		private boolean pageRead = false;
+		private boolean priceDropped = false;
+	}
+
+	private record ItemChange(TrackedItem oldItem, TrackedItem item) {}
+
+	/** A check in progress, done when the items of all its users are saved, with what the users found in the page */
+	private record CheckInFlight(long start, AtomicInteger pending, AtomicBoolean pageRead, AtomicBoolean priceDropped) {}
+
+	/** A step of the check of the items of a user */
+	private interface Step {
+		void run() throws Exception;
+	}
 
 	public static void main(String[] args) throws Exception {
+		// the native image has a single entry point
+		if (args.length > 0 && args[0].equals("--startup-benchmark")) {
+			StartupBenchmark.main(args);
+			return;
+		}
 
-		utility = new LogicUtility();
+		final LogicUtility logicUtility = new LogicUtility();
 
 		// Create the bot
 		final TelegramBotsApi botsApi = new TelegramBotsApi(DefaultBotSession.class);
-		bot = new TelegramBot(utility);
-		botsApi.registerBot(bot);
+		final TelegramBot telegramBot = new TelegramBot(logicUtility);
+		botsApi.registerBot(telegramBot);
 
-		// Schedule the logic every 60 minutes
-		scheduleJob(60, TimeUnit.MINUTES);
+		setUp(logicUtility, telegramBot);
+
+		// low overhead profiling, the recording is saved in the logs folder
+		if (logicUtility.isFlightRecorder()) { Tracing.startRecording(Path.of(LogicUtility.CURRENT_FOLDER, "logs")); }
+
+		// Check every product once per period
+		startScheduler(TimeUnit.MINUTES.toMillis(logicUtility.getCheckPeriodMinutes()));
 	}
 
-	private static void scheduleJob(long delay, TimeUnit timeUnit) {
-		final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
-		final Runnable runnable = () -> {
-			try {
-				run();
-			} catch (final Throwable t) {
-				utility.insertErrorLog(t, bot);
-			}
-		};
-		scheduler.scheduleWithFixedDelay(runnable, 0, delay, timeUnit);
+	/** Returns the fetcher of the checks, the bot uses it too so that all the requests respect the same domain limits. */
+	static ItemFetcher getFetcher() {
+		return fetcher;
+	}
+
+	/** Checks the products of the user before the due ones. Returns false if the continuous checks are not running. */
+	static boolean refresh(Long userId, Collection<String> urls) {
+		if (scheduler == null) { return false; }
+		scheduler.refresh(userId, urls);
+		return true;
+	}
+
+	/** Indicates if the user used all the fetches of its budget in the period, the refreshes would not be checked before the next one. */
+	static boolean isOverBudget(Long userId) {
+		return scheduler != null && scheduler.isOverBudget(userId);
+	}
+
+	/** Prepares the runner without registering the bot session nor scheduling the checks. */
+	public static void setUp(LogicUtility logicUtility, TelegramBot telegramBot) {
+		utility = logicUtility;
+		bot = telegramBot;
+		fetcher = new ItemFetcher(utility);
+	}
+
+	/**
+	 * Checks all the items of all the users once, used by the load test. The bot checks the products continuously, see
+	 * {@link #startScheduler(long)}.
+	 * <p>
+	 * The progress is saved in a {@link CycleJournal}: if the previous check was interrupted it is resumed, delivering its notifications
+	 * first and skipping the users already checked.
+	 */
+	public static void run() throws Exception {
+		final Optional<CycleJournal> interrupted = utility.getCycleJournal();
+		final CycleJournal journal = interrupted.orElseGet(Runner::newRound);
+		try (Scope scope = Tracing.open(journal.getCycleId())) {
+			check(journal, interrupted.isPresent());
+		}
 	}
 
-	private static void run() throws Exception {
-		utility.insertLog("\t\t* Starting to check *");
+	/** Checks the items, the events of the flight recorder have the id of the check as correlation id. */
+	private static void check(CycleJournal journal, boolean resumed) throws Exception {
+		final CheckCycle cycleEvent = new CheckCycle();
+		cycleEvent.begin();
+
+		if (!resumed) {
+			utility.saveCycleJournal(journal);
+			utility.insertLog("\t\t* Starting to check *");
+		} else {
+			utility.insertLog("\t\t* Resuming check %s: %s users already checked *".formatted(journal.getCycleId(), journal.getCompletedUsers().size()));
+			for (final Long userId : journal.getUndeliveredUsers()) {
+				if (utility.userExists(userId)) { deliver(journal, userId, true); }
+			}
+		}
 
 		boolean anyChange = false;
 		int totalItemsSize = 0;
+		int skippedItems = 0;
 
 		// Fetch all the users
 		final File userdata = new File(LogicUtility.CURRENT_FOLDER + "/userdata");
-		final File[] users = userdata.listFiles(File::isDirectory);
+		final CycleJournal cycle = journal;
+		final File[] users = userdata.listFiles(file -> file.isDirectory() && !cycle.isCompleted(Long.valueOf(file.getName())));
 
+		// start fetching the items of every user, each page is fetched once for all the users tracking it and the fetcher takes care of not
+		// overloading the domains
+		final Map<Long, List<TrackedItem>> itemsByUser = new LinkedHashMap<>();
+		final Map<String, CompletableFuture<FetchedPage>> pages = new HashMap<>();
 		for (final File user : users) {
 			final Long userId = Long.valueOf(user.getName());
+			final List<TrackedItem> items = new ArrayList<>(utility.getTrackedItems(userId));
+			itemsByUser.put(userId, items);
+			items.forEach(item -> pages.computeIfAbsent(item.getUrl(), fetcher::fetch));
+			// the other stores are fetched with the same connections and domain limits, a page missed there only skips the comparison
+			items.stream().filter(TrackedItem::isCompareDomains).flatMap(i -> utility.getPriceComparison().otherUrls(i.getUrl()).stream())
+					.forEach(url -> pages.computeIfAbsent(url, fetcher::fetchOnce));
+		}
 
-			final List<TrackedItem> trackedItems = new ArrayList<>();
-			final List<String> notifications = new ArrayList<>();
-
-			// fetch each item
-			if (utility.getTrackedItems(userId).isEmpty()) { continue; }
-			for (final TrackedItem oldItem : utility.getTrackedItems(userId)) {
-				totalItemsSize++;
-				TrackedItem item;
-				try {
-					item = utility.getItemFromUrl(userId, oldItem, bot);
-				} catch (final ItemRemovedException e) {
-					item = oldItem;
-					item.incrementNotFoundCount();
-					if (item.getNotFoundCount() >= 5) {
-						bot.sendMessage(userId, """
-								"It appears that the item \"%s\" is no longer available at the specified url :("
-								Consider deleting the item from your list if this error persists""".formatted(oldItem.getName()));
-						continue;
-					}
-				} catch (final SizeRemovedException e) {
-					item = oldItem;
-					item.incrementSizeNotFoundCount();
-					if (item.getSizeNotFoundCount() >= 5) {
-						bot.sendMessage(userId, """
-								"It appears that the size %s is no longer available for item \"%s\":("
-								Consider deleting the item from your list if this error persists""".formatted(oldItem.getSize(), oldItem.getName()));
-						continue;
-					}
-				} catch (final Throwable t) {
-					// if unmanaged exception occurred don't stop and continue with other items
-					trackedItems.add(oldItem);
-					utility.insertErrorLog(t, bot, userId, oldItem.getName());
+		for (final File user : users) {
+			final Long userId = Long.valueOf(user.getName());
+
+			final List<TrackedItem> oldItems = itemsByUser.get(userId);
+			if (oldItems.isEmpty()) { continue; }
+
+			final UserCheck userEvent = new UserCheck();
+			userEvent.begin();
+			final Scope userScope = Tracing.open(Tracing.child(userId));
+
+			final CheckedItems checked = diffItems(userId, oldItems, pages);
+			recordHistory(userId, checked);
+			sendMessages(userId, checked);
+			final List<Notification> notifications = checked.notifications;
+			totalItemsSize += oldItems.size();
+			skippedItems += checked.skipped;
+			anyChange = anyChange || checked.anyChange;
+
+			// the notifications are journaled before the items are saved, so they can't be lost if the check is interrupted
+			if (!notifications.isEmpty()) {
+				journal.addNotifications(userId, notifications);
+				utility.saveCycleJournal(journal);
+			}
+
+			// Update the items file
+			if (anyChange) {
+				utility.saveTrackedItems(userId, checked.items);
+			} else {
+				// the times of the check alone are not worth a write, they are saved with the next change
+				final ItemStore store = utility.getItemStore(userId);
+				checked.items.forEach(store::add);
+			}
+			journal.complete(userId, oldItems.size());
+			utility.saveCycleJournal(journal);
+
+			// Send the notifications
+			deliver(journal, userId, true);
+
+			userScope.close();
+			userEvent.end();
+			if (userEvent.shouldCommit()) {
+				userEvent.correlationId = Tracing.child(userId);
+				userEvent.userId = userId;
+				userEvent.items = oldItems.size();
+				userEvent.notifications = notifications.size();
+				userEvent.commit();
+			}
+		}
+
+		utility.insertLog("\t\t*** Check %s executed for %s users and a total of %s items ***".formatted(journal.getCycleId(), users.length, totalItemsSize));
+		utility.insertLog("Retries: %s - skipped items: %s - domains: %s".formatted(fetcher.drainRetryCount(), skippedItems, DomainHealth.all().values()));
+		reportFreshness();
+
+		// delete the marked users
+		utility.deleteUsers();
+		utility.deleteCycleJournal();
+		compactHistories();
+
+		cycleEvent.end();
+		if (cycleEvent.shouldCommit()) {
+			cycleEvent.correlationId = journal.getCycleId();
+			cycleEvent.users = users.length;
+			cycleEvent.items = totalItemsSize;
+			cycleEvent.skippedItems = skippedItems;
+			cycleEvent.commit();
+		}
+	}
+
+	/**
+	 * Updates the items of the user with the fetched pages.
+	 * <p>
+	 * The items not found for too long are left out of the items of the result and listed in its removed ones, the sweep saves the items
+	 * without them and the continuous checks remove them from the store. The times an item was not found are saved, so they survive a restart.
+	 */
+	private static CheckedItems diffItems(Long userId, List<TrackedItem> oldItems, Map<String, CompletableFuture<FetchedPage>> pages) {
+		final CheckedItems result = new CheckedItems();
+		final long now = System.currentTimeMillis();
+
+		for (final TrackedItem oldItem : oldItems) {
+			TrackedItem item;
+			try {
+				item = utility.getItemFromPage(oldItem, await(pages.get(oldItem.getUrl())));
+			} catch (final ItemRemovedException e) {
+				item = oldItem;
+				item.incrementNotFoundCount();
+				result.anyChange = true;
+				if (item.getNotFoundCount() >= 5) {
+					item.recordCheck(oldItem, now, true);
+					result.removed.add(oldItem.getUuid());
+					result.messages.add("""
+							"It appears that the item \"%s\" is no longer available at the specified url :("
+							Consider deleting the item from your list if this error persists""".formatted(oldItem.getName()));
 					continue;
 				}
+			} catch (final SizeRemovedException e) {
+				item = oldItem;
+				item.incrementSizeNotFoundCount();
+				result.anyChange = true;
+				if (item.getSizeNotFoundCount() >= 5) {
+					item.recordCheck(oldItem, now, true);
+					result.removed.add(oldItem.getUuid());
+					result.messages.add("""
+							"It appears that the sizes %s are no longer available for item \"%s\":("
+							Consider deleting the item from your list if this error persists""".formatted(String.join(", ", oldItem.getSizeNames()), oldItem.getName()));
+					continue;
+				}
+			} catch (final TemporaryFetchException e) {
+				// the retries didn't help, the domain is struggling so the item will be checked in the next cycle
+				oldItem.recordCheck(oldItem, now, false);
+				result.items.add(oldItem);
+				result.skipped++;
+				continue;
+			} catch (final Throwable t) {
+				// if unmanaged exception occurred don't stop and continue with other items
+				oldItem.recordCheck(oldItem, now, false);
+				result.items.add(oldItem);
+				utility.insertErrorLog(t, bot, userId, oldItem.getName());
+				continue;
+			}
+
+			// stop watching the sizes that disappeared from the page, the others are still tracked
+			for (final TrackedSize removed : item.removeMissingSizes(5)) {
+				result.messages.add("It appears that the size %s is no longer available for item \"%s\", it won't be tracked anymore"//
+						.formatted(removed.getSize(), item.getName()));
+			}
+
+			// the same product on the other stores, the pages were fetched with the item one
+			if (item.isCompareDomains()) { utility.getPriceComparison().compare(item, pages).ifPresent(result.notifications::add); }
+
+			// the page was read, also when the item or its sizes were not found in it
+			item.recordCheck(oldItem, now, true);
+			if (item != oldItem) {
+				result.pageRead = true;
+				result.priceDropped = result.priceDropped || !loweredSizes(oldItem, item).isEmpty();
+			}
+			result.anyChange = result.anyChange || item.anyChange(oldItem);
+
+			// Add fetched item to the new list
+			result.items.add(item);
+			result.changes.add(new ItemChange(oldItem, item));
+		}
+		return result;
+	}
 
-				anyChange = anyChange || item.anyChange(oldItem);
+	/**
+	 * Updates the price history, shared with the other users tracking the same product, and checks if the changes need to be notified: the
+	 * alerts need the updated history.
+	 */
+	private static void recordHistory(Long userId, CheckedItems checked) throws IOException {
+		final CompiledAlerts alerts = AlertEngine.compile(utility.getAlertRules(userId));
+		final long today = LocalDate.now().toEpochDay();
+		for (final ItemChange change : checked.changes) {
+			utility.recordPrice(change.oldItem(), change.item());
+			buildItemNotification(alerts, today, change.oldItem(), change.item()).ifPresent(checked.notifications::add);
+		}
+	}
+
+	/** Sends the messages about the items and the sizes no longer available. */
+	private static void sendMessages(Long userId, CheckedItems checked) throws Exception {
+		for (final String message : checked.messages) {
+			bot.sendMessage(userId, message);
+		}
+	}
 
-				// Update the price history
-				final ArrayList<PriceHistory> priceHistory = oldItem.getPriceHistory();
-				if (!Objects.equals(item.getPrice(), oldItem.getPrice())) {
-					priceHistory.add(item.getPriceHistory().get(0));
+	/**
+	 * Starts the continuous checks: every product is checked once per period, spread over the period by the {@link CheckScheduler}. The
+	 * notifications of a check interrupted by a restart are delivered first.
+	 */
+	public static void startScheduler(long periodMillis) throws Exception {
+		final Optional<CycleJournal> interrupted = utility.getCycleJournal();
+		round = interrupted.orElseGet(Runner::newRound);
+		roundEvent = new CheckCycle();
+		roundEvent.begin();
+		utility.insertLog("\t\t* Starting the continuous checks, every product every %s minutes *".formatted(TimeUnit.MILLISECONDS.toMinutes(periodMillis)));
+
+		diffStage = new Stage("diff", utility.getStageThreads("diff", 2), QUEUE_CAPACITY);
+		historyStage = new Stage("history", utility.getStageThreads("history", 2), QUEUE_CAPACITY);
+		persistStage = new Stage("persist", utility.getStageThreads("persist", 2), QUEUE_CAPACITY);
+		notifyStage = new Stage("notify", utility.getStageThreads("notify", 2), QUEUE_CAPACITY);
+
+		for (final Long userId : round.getUndeliveredUsers()) {
+			step(notifyStage, round.getCycleId(), userId, "undelivered", () -> {
+				synchronized (userLock(userId)) {
+					if (utility.userExists(userId)) { deliver(round, userId, true); }
 				}
-				item.setPriceHistory(priceHistory);
+			});
+		}
+
+		scheduler = new CheckScheduler(utility, bot, periodMillis, Runner::checkProduct, Runner::endRound);
+		scheduler.start();
+	}
 
-				// Add fetched item to the new list
-				trackedItems.add(item);
+	private static CycleJournal newRound() {
+		return new CycleJournal(UUID.randomUUID().toString(), System.currentTimeMillis());
+	}
 
-				// Check if the item needs to be notified
-				buildItemNotification(oldItem, item).ifPresent(notifications::add);
+	/**
+	 * Starts the fetch of the product, once the page is read the items of each user tracking it go through the next stages. Returns false if
+	 * the fetch stage is full. A product already being checked is not checked again, that check updates all its users. Called by the
+	 * scheduler thread.
+	 */
+	private static boolean checkProduct(String url, Set<Long> users) {
+		final CheckInFlight running = checksInFlight.get(url);
+		if (running != null && System.currentTimeMillis() - running.start() < MAX_CHECK_MILLIS) { return true; }
+		if (!fetcher.hasRoom()) { return false; }
+		final CheckInFlight check = new CheckInFlight(System.currentTimeMillis(), new AtomicInteger(users.size()), new AtomicBoolean(),
+				new AtomicBoolean());
+		checksInFlight.put(url, check);
+
+		final String cycleId = round.getCycleId();
+		final Map<String, CompletableFuture<FetchedPage>> pages = new HashMap<>();
+		try (Scope scope = Tracing.open(cycleId)) {
+			pages.put(url, fetcher.fetch(url));
+			// the other stores only if a user compares the product with them, fetched in parallel with the product
+			if (users.stream().anyMatch(u -> isComparing(u, url))) {
+				utility.getPriceComparison().otherUrls(url).forEach(other -> pages.put(other, fetcher.fetchOnce(other)));
 			}
+		}
+		// run by the parse thread, that waits if the diff stage is full. The diff waits for no page, so the parse threads are never waiting for
+		// a diff thread waiting for them
+		CompletableFuture.allOf(pages.values().toArray(CompletableFuture[]::new)).whenComplete(
+				(result, error) -> users.forEach(userId -> step(diffStage, cycleId, userId, url, () -> diffUser(cycleId, userId, url, pages, check))));
+		return true;
+	}
 
-			// Send the notifications
-			if (!notifications.isEmpty()) {
-				for (final String notification : notifications) {
-					bot.sendMessage(userId, notification);
+	/** Indicates if the user compares the product with the other stores. */
+	private static boolean isComparing(Long userId, String url) {
+		try {
+			return utility.userExists(userId) && utility.getItemStore(userId).findByUrl(url).stream().anyMatch(TrackedItem::isCompareDomains);
+		} catch (final IOException e) {
+			return false;
+		}
+	}
+
+	/** Diff stage: updates the items of the user with the pages of the product. */
+	private static void diffUser(String cycleId, Long userId, String url, Map<String, CompletableFuture<FetchedPage>> pages, CheckInFlight check)
+			throws Exception {
+		final List<TrackedItem> oldItems = utility.userExists(userId)
+				? utility.getItemStore(userId).asList().stream().filter(i -> i.getUrl().equals(url)).toList()
+				: List.of();
+		if (oldItems.isEmpty()) {
+			done(url, check);
+			return;
+		}
+
+		final CheckedItems checked = diffItems(userId, oldItems, pages);
+		roundItems.addAndGet(oldItems.size());
+		roundSkipped.addAndGet(checked.skipped);
+		if (checked.pageRead) { check.pageRead().set(true); }
+		if (checked.priceDropped) { check.priceDropped().set(true); }
+
+		// History stage
+		step(historyStage, cycleId, userId, url, () -> {
+			recordHistory(userId, checked);
+			step(persistStage, cycleId, userId, url, () -> persistUser(cycleId, userId, url, checked, check));
+		});
+	}
+
+	/** Persist stage: journals the notifications and saves the items of the user. */
+	private static void persistUser(String cycleId, Long userId, String url, CheckedItems checked, CheckInFlight check) throws Exception {
+		try {
+			persistItems(userId, checked);
+		} finally {
+			done(url, check);
+		}
+
+		// Notify stage
+		step(notifyStage, cycleId, userId, url, () -> {
+			synchronized (userLock(userId)) {
+				sendMessages(userId, checked);
+				deliver(round, userId, false);
+			}
+		});
+	}
+
+	/** Marks the check of the product done for a user, the product can be checked again when it's done for all of them. */
+	private static void done(String url, CheckInFlight check) {
+		if (check.pending().decrementAndGet() > 0) { return; }
+		checksInFlight.remove(url, check);
+		// once per product whatever its users, many drops on the same domain are a sale and its products are checked more often
+		if (check.pageRead().get()) { scheduler.priceChecked(url, check.priceDropped().get()); }
+	}
+
+	/** Journals the notifications and saves the items of the user. */
+	private static void persistItems(Long userId, CheckedItems checked) throws Exception {
+		synchronized (userLock(userId)) {
+			// the notifications are journaled before the items are saved, so they can't be lost if the bot is stopped
+			if (!checked.notifications.isEmpty()) {
+				synchronized (roundLock) {
+					round.addNotifications(userId, checked.notifications);
+					utility.saveCycleJournal(round);
 				}
-				utility.insertLog("Message sent: prices lowered for user: %s".formatted(userId));
 			}
+			if (utility.userExists(userId)) {
+				final ItemStore store = utility.getItemStore(userId);
+				// the items deleted by the user while the product was checked are not added again, the comparison and the restock watch may
+				// have been switched
+				for (final TrackedItem item : checked.items) {
+					store.get(item.getUuid()).ifPresent(current -> {
+						item.setCompareDomains(current.isCompareDomains());
+						item.setWatchRestock(current.isWatchRestock());
+						store.add(item);
+					});
+				}
+				checked.removed.forEach(store::remove);
+				// the times of the check alone are not worth a write, they are saved with the next change
+				if (checked.anyChange) { utility.saveItemStore(userId, store); }
+			}
+		}
+	}
 
-			// Update the items file
-			if (anyChange) {
-				utility.saveTrackedItems(userId, trackedItems);
+	/** Compacts the price histories with the retention of the config, once a day. */
+	private static void compactHistories() {
+		try {
+			final int removed = utility.compactHistories();
+			if (removed > 0) { utility.insertLog("History compaction: %s entries removed".formatted(removed)); }
+		} catch (final Throwable t) {
+			utility.insertErrorLog(t, bot);
+		}
+	}
+
+	/** Runs the step in the stage with the correlation id of the user, logging its errors. */
+	private static void step(Stage stage, String cycleId, Long userId, String url, Step step) {
+		stage.execute(() -> {
+			try (Scope scope = Tracing.open(cycleId + "/" + userId)) {
+				step.run();
+			} catch (final Throwable t) {
+				utility.insertErrorLog(t, bot, userId, url);
+			}
+		});
+	}
+
+	private static Object userLock(Long userId) {
+		return userLocks.computeIfAbsent(userId, k -> new Object());
+	}
+
+	/**
+	 * Logs the checks and the stages of the period, sends the digests waiting for it and deletes the marked users. Called by the scheduler
+	 * thread, runs in the notify stage.
+	 */
+	private static void endRound() {
+		final int products = scheduler.getProducts();
+		final int checked = scheduler.drainReleased();
+		final int backlog = scheduler.getBacklog();
+		final List<UserStats> userStats = scheduler.getUserStats();
+		final List<LaneStats> laneStats = scheduler.getLaneStats();
+
+		notifyStage.execute(() -> {
+			try {
+				final int items = roundItems.getAndSet(0);
+				final int skipped = roundSkipped.getAndSet(0);
+				utility.insertLog("\t\t*** Round %s: %s of %s products checked, %s items - backlog: %s ***".formatted(round.getCycleId(), checked, products,
+						items, backlog));
+				utility.insertLog("Retries: %s - joined fetches: %s - skipped items: %s - domains: %s".formatted(fetcher.drainRetryCount(),
+						fetcher.drainJoinedCount(), skipped, DomainHealth.all().values()));
+				utility.insertLog("Stages: %s".formatted(Stage.all().stream().map(Stage::drainStats).toList()));
+				utility.insertLog("Users with the most checks: %s".formatted(userStats.subList(0, Math.min(10, userStats.size()))));
+				utility.insertLog("Fast lanes: %s".formatted(laneStats));
+				reportFreshness();
+
+				for (final Long userId : utility.getUserIds()) {
+					synchronized (userLock(userId)) {
+						if (!utility.getPendingDigest(userId).getPending().isEmpty()) { deliver(round, userId, true); }
+					}
+				}
+				utility.deleteUsers();
+
+				roundEvent.end();
+				if (roundEvent.shouldCommit()) {
+					roundEvent.correlationId = round.getCycleId();
+					roundEvent.users = utility.getUserIds().size();
+					roundEvent.items = items;
+					roundEvent.skippedItems = skipped;
+					roundEvent.commit();
+				}
+
+				// the journal is kept until all its messages are delivered
+				synchronized (roundLock) {
+					if (round.getUndeliveredUsers().isEmpty()) {
+						utility.deleteCycleJournal();
+						round = newRound();
+					}
+				}
+				roundEvent = new CheckCycle();
+				roundEvent.begin();
+			} catch (final Throwable t) {
+				utility.insertErrorLog(t, bot);
 			}
+		});
 
-			// wait 10 seconds for next user
-			Thread.sleep(1000 * 10);
+		// the history stage is the one writing the histories, the compaction waits for the checks of the period
+		historyStage.execute(Runner::compactHistories);
+	}
+
+	/**
+	 * Logs how long ago the items were read from their pages and how long the notifications took to be sent, and alerts the admin when the
+	 * staleness goes over the objective of the config or back under it.
+	 */
+	private static void reportFreshness() throws Exception {
+		final List<TrackedItem> items = new ArrayList<>();
+		for (final Long userId : utility.getUserIds()) {
+			items.addAll(utility.getItemStore(userId).asList());
 		}
+		final Percentiles staleness = Freshness.staleness(items, System.currentTimeMillis());
+		final long failing = items.stream().filter(i -> i.getLastAttempt() > i.getLastChecked()).count();
+		utility.insertLog("Staleness of the items: %s - last check failed: %s - notification delivery: %s".formatted(staleness, failing,
+				freshness.drainDeliveries()));
 
-		utility.insertLog("\t\t*** Check executed for %s users and a total of %s items ***".formatted(users.length, totalItemsSize));
+		final Optional<String> alert = freshness.checkObjective(staleness, utility.getStalenessObjectiveMinutes() * 60_000L);
+		if (alert.isPresent()) { bot.sendMessage(utility.getAdminId(), alert.get()); }
+	}
 
-		// delete the marked users
-		utility.deleteUsers();
+	/** Waits for the fetch and throws the exception that made it fail. */
+	private static <T> T await(CompletableFuture<T> fetch) throws Exception {
+		try {
+			return fetch.get();
+		} catch (final ExecutionException e) {
+			if (e.getCause() instanceof final Exception cause) { throw cause; }
+			throw e;
+		}
 	}
 
 	/**
-	 * Checks if there are changes that need to be notified and returns the notification.
+	 * Delivers the notifications of the user journaled by the check, or adds them to the digest if the user chose to group them.
+	 * <li>the urgent notifications are always sent immediately</li>
+	 * <li>the digest is sent when its period is passed, also if there are no new notifications, the digest of the check at the end of the
+	 * check</li>
+	 * <li>each message is removed from the journal once sent, a restart sends only the remaining ones</li>
 	 */
-	private static Optional<String> buildItemNotification(TrackedItem oldItem, TrackedItem newItem) {
+	private static void deliver(CycleJournal journal, Long userId, boolean endOfCheck) throws Exception {
+		final List<Notification> notifications = journal.getNotifications(userId);
+		final DigestMode mode = utility.getUserSettings(userId).getDigestMode();
+		final PendingDigest digest = utility.getPendingDigest(userId);
+		// the delivery was interrupted after the digest was moved to the outbox, before it was emptied
+		final long lastDigest = journal.getDigestSent(userId);
+		if (digest.getLastSent() < lastDigest) {
+			digest.sent(lastDigest);
+			utility.savePendingDigest(userId, digest);
+		}
+
+		final List<String> messages = new ArrayList<>();
+		final long now = System.currentTimeMillis();
+		boolean digestChanged = false;
+		for (final Notification notification : notifications) {
+			if (mode == DigestMode.OFF || notification.isUrgent()) {
+				messages.add(notification.getMessage());
+				// the digests wait on purpose, only the notifications sent right away measure the delivery
+				freshness.delivered(notification.getCreatedAt(), now);
+			} else {
+				digest.add(notification);
+				digestChanged = true;
+			}
+		}
+
+		// the notifications are saved in the digest before they leave the journal, if interrupted they replace themselves when added again
+		if (digestChanged) { utility.savePendingDigest(userId, digest); }
+
+		// the pending ones are sent also when the user turned the digests off
+		final boolean digestDue = mode == DigestMode.CYCLE ? endOfCheck : now - digest.getLastSent() >= mode.getPeriodMillis();
+		final boolean sendDigest = !digest.getPending().isEmpty() && digestDue;
+		if (sendDigest) { messages.addAll(NotificationDigest.buildMessages(digest.getPending())); }
+
+		// the digest is emptied only once its messages are journaled, the journal records it so it's emptied also if interrupted in between
+		if (!notifications.isEmpty() || !messages.isEmpty()) {
+			journal.toOutbox(userId, messages, sendDigest ? now : 0);
+			utility.saveCycleJournal(journal);
+		}
+		if (sendDigest) {
+			digest.sent(now);
+			utility.savePendingDigest(userId, digest);
+		}
+
+		final int sent = journal.getOutbox(userId).size();
+		while (!journal.getOutbox(userId).isEmpty()) {
+			try {
+				bot.sendMessage(userId, journal.getOutbox(userId).get(0));
+			} catch (final Throwable t) {
+				// a message that can't be sent must not block the next ones
+				utility.insertErrorLog(t, bot, userId, "notification");
+			}
+			journal.messageSent(userId);
+			utility.saveCycleJournal(journal);
+		}
+
+		if (sent > 0) { utility.insertLog("Message sent: %s messages for %s notifications for user: %s".formatted(sent, notifications.size(), userId)); }
+	}
+
+	/**
+	 * Checks if the changes match the alert rules of the user and returns the notification.
+	 */
+	private static Optional<Notification> buildItemNotification(CompiledAlerts alerts, long today, TrackedItem oldItem, TrackedItem newItem) {
 		if (!newItem.isAvailable()) { return Optional.empty(); }
+		// the user is waiting for it, whatever the rules
+		if (newItem.isWatchRestock() && !oldItem.isAvailable()) { return Optional.of(buildRestockNotification(newItem)); }
+
+		final AlertRule rule = alerts.match(oldItem, newItem, today);
+		if (rule == null) { return Optional.empty(); }
 
-		final String newPrice = newItem.getPrice();
 		final List<PriceHistory> priceHistory = newItem.getPriceHistory();
 
 		final boolean couponAdded = !oldItem.isHasCoupon() && newItem.isHasCoupon();
-		final boolean priceLowered = priceLowered(oldItem, newItem);
-
-		if (!priceLowered && !couponAdded) { return Optional.empty(); }
+		final List<TrackedSize> loweredSizes = loweredSizes(oldItem, newItem);
+		final boolean priceLowered = !loweredSizes.isEmpty();
 
 		final String history = priceHistory.size() > 20 //
 				? describePriceHistory(priceHistory)
 				: priceHistory.stream().map(PriceHistory::getStringPrice).collect(Collectors.joining(" -> "));
 
+		// the header is the reason of the rule that matched, and the coupon if added too
 		final List<String> headers = new ArrayList<>();
-		if (priceLowered) { headers.add("Price lowered"); }
-		if (couponAdded) { headers.add("Coupon added"); }
+		if (rule.getType() != Type.DEFAULT) {
+			headers.add(rule.getTitle());
+		} else if (priceLowered) {
+			headers.add("Price lowered");
+		}
+		if (couponAdded && rule.getType() != Type.COUPON) { headers.add("Coupon added"); }
 		final String headerString = String.join(" + ", headers) + "!";
 
+		// the lowest of the lowered prices, or the item price if only the coupon was added
+		final TrackedSize lowest = loweredSizes.stream().min(Comparator.comparing(TrackedSize::getNumericPrice)).orElse(null);
+		final String newPrice = lowest == null ? newItem.getPrice() : lowest.getPrice();
+
 		final List<String> prices = new ArrayList<>();
-		if (priceLowered) { prices.add(oldItem.getPrice()); }
-		prices.add(newPrice + (couponAdded ? " + coupon" : ""));
+		if (priceLowered) { prices.add(oldItem.getSize(lowest.getSize()).map(TrackedSize::getPrice).orElse(oldItem.getPrice())); }
+		prices.add(newPrice + (couponAdded ? " + " + newItem.getCoupon().describe() : ""));
 		final String priceString = String.join(" ---> ", prices);
 
 		utility.insertLog(newItem.getName() + " - " + priceString);
@@ -182,20 +754,51 @@ public class Runner {
 				quantity: %s
 				<b>price history:</b>
 				%s
-				%s""".formatted(headerString, newItem.getName(), priceString, newItem.getQuantity(), history, newItem.getUrl());
+				%s""".formatted(headerString, newItem.getName(), priceString, describeQuantities(newItem), history, newItem.getUrl());
+		final String summary = "<a href=\"%s\">%s</a>: %s".formatted(newItem.getUrl(), NotificationDigest.escape(newItem.getName()), priceString);
 
-		return Optional.of(message);
+		// the price under the target is what the user is waiting for, it can't wait for the digest
+		final boolean urgent = rule.getType() == Type.BELOW;
+		return Optional.of(new Notification(newItem.getUuid(), message, summary, urgent, System.currentTimeMillis()));
 	}
 
-	/** Checks if the price lowered. */
-	private static boolean priceLowered(TrackedItem oldItem, TrackedItem newItem) {
-		final String oldPriceString = oldItem.getPrice();
-		final String newPriceString = newItem.getPrice();
-		final Double oldPrice = Double.valueOf(oldPriceString.replace(",", "."));
-		final Double newPrice = Double.valueOf(newPriceString.replace(",", "."));
+	/** Returns the urgent notification of a watched item back in stock. */
+	private static Notification buildRestockNotification(TrackedItem item) {
+		utility.insertLog(item.getName() + " - back in stock");
+
+		final String message = """
+				Back in stock!
+				%s
+				<b>%s</b>
+				quantity: %s
+				%s""".formatted(item.getName(), item.getPrice(), describeQuantities(item), item.getUrl());
+		final String summary = "<a href=\"%s\">%s</a>: back in stock at %s".formatted(item.getUrl(), NotificationDigest.escape(item.getName()),
+				item.getPrice());
+		// it may be sold out again in minutes
+		return new Notification(item.getUuid(), message, summary, true, System.currentTimeMillis());
+	}
+
+	/** Returns the available sizes whose price lowered. */
+	private static List<TrackedSize> loweredSizes(TrackedItem oldItem, TrackedItem newItem) {
+		return newItem.getSizes().stream()//
+				.filter(TrackedSize::isAvailable)//
+				.filter(newSize -> oldItem.getSize(newSize.getSize())//
+						.filter(oldSize -> oldSize.getPrice() != null)//
+						.map(oldSize -> priceLowered(oldSize, newSize))//
+						.orElse(false))//
+				.toList();
+	}
+
+	/** Checks if the price lowered, with the same threshold of the default rule. */
+	private static boolean priceLowered(TrackedSize oldSize, TrackedSize newSize) {
+		return AlertEngine.isLowered(oldSize.getPrice(), newSize.getPrice());
+	}
 
-		// ignore price changes smaller than 1 unit
-		return oldPrice - newPrice > 1;
+	/** Returns the quantity of the available sizes, with the size name if more than one is watched. */
+	private static String describeQuantities(TrackedItem item) {
+		final List<TrackedSize> available = item.getSizes().stream().filter(TrackedSize::isAvailable).toList();
+		if (item.getSizes().size() == 1) { return available.get(0).getQuantity(); }
+		return available.stream().map(s -> s.getSize() + " " + s.getQuantity()).collect(Collectors.joining(", "));
 	}
 
 	private static String describePriceHistory(List<PriceHistory> list) {
@@ -0,0 +1,90 @@
+package runner;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+import org.apache.commons.io.FileUtils;
+
+import pojo.ItemStore;
+import pojo.Size;
+import pojo.TrackedItem;
+import pojo.TrackedItem.TrackedSize;
+import pojo.TrackedItems;
+import pojo.UserSettings;
+import util.JsonFiles;
+import util.LogicUtility;
+
+/**
+ * Starts the bot without connecting to telegram and prints the startup time and the resident memory, to compare the jar, the jar with the
+ * AppCDS archive and the native image (<code>gradlew startupComparison</code>).
+ * <p>
+ * It's also the training run of the AppCDS archive and of the native image agent: it loads the classes the bot loads at startup and reads
+ * and writes the json files of a user. It runs in the working directory, that must be empty or used by a previous run.
+ */
+public class StartupBenchmark {
+
+	private static final String MARKER = ".startup";
+	private static final Long USER_ID = 1L;
+
+	private StartupBenchmark() {}
+
+	public static void main(String[] args) throws Exception {
+		final File home = new File(LogicUtility.CURRENT_FOLDER);
+		prepareHome(home);
+
+		final LogicUtility utility = new LogicUtility();
+		final TelegramBot bot = new TelegramBot(utility);
+		Runner.setUp(utility, bot);
+
+		// the files of a user, written and read again as the checks do
+		final ItemStore store = new ItemStore(List.of());
+		store.add(new TrackedItem(UUID.randomUUID().toString(), "Startup", "https://www.zalando.it/startup.html",
+				List.of(new TrackedSize("42", "59.95", "MANY", true)), "59.95", null));
+		utility.saveItemStore(USER_ID, store);
+		utility.saveUserSettings(USER_ID, new UserSettings());
+		final TrackedItems read = JsonFiles.read(new File(home, "userdata/%s/tracked.json".formatted(USER_ID)), TrackedItems.class);
+		final Size[] sizes = JsonFiles.GSON.fromJson("[{\"size\":\"42\",\"offer\":{\"price\":{\"original\":{\"amount\":5995}}}}]", Size[].class);
+
+		final Optional<Instant> start = ProcessHandle.current().info().startInstant();
+		final String startup = start.map(s -> Duration.between(s, Instant.now()).toMillis() + " ms").orElse("n/a");
+		System.out.println("startup %s - rss %s - peak rss %s - %s items, %s sizes read".formatted(startup, memory("VmRSS"), memory("VmHWM"),
+				read.getTrackedItems().size(), sizes.length));
+	}
+
+	/** Cleans the working directory, refusing to touch directories not created by the benchmark. */
+	private static void prepareHome(File home) throws IOException {
+		final File marker = new File(home, MARKER);
+		final File config = new File(home, "config.yml");
+		if ((config.exists() || new File(home, "userdata").exists()) && !marker.exists()) {
+			throw new IllegalStateException("%s is not a startup benchmark directory, run it in an empty directory".formatted(home));
+		}
+		FileUtils.deleteDirectory(new File(home, "userdata"));
+		FileUtils.deleteDirectory(new File(home, "products"));
+		FileUtils.writeStringToFile(config, "botUsername: startup\nbotToken: \"0:startup\"\nadminID: 1\npublic: false\n", StandardCharsets.UTF_8);
+		FileUtils.touch(marker);
+	}
+
+	/** Returns the specified field of /proc/self/status, e.g. "VmRSS", in megabytes. */
+	private static String memory(String field) {
+		try {
+			for (final String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+				if (line.startsWith(field + ":")) {
+					final long kilobytes = Long.parseLong(line.substring(field.length() + 1).replace("kB", "").trim());
+					return "%.1f MB".formatted(kilobytes / 1024.0);
+				}
+			}
+		} catch (final IOException | NumberFormatException e) {
+			// not linux
+		}
+		return "n/a";
+	}
+
+}
@@ -1,30 +1,69 @@
 package runner;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import org.telegram.telegrambots.bots.DefaultBotOptions;
 import org.telegram.telegrambots.bots.TelegramLongPollingBot;
 import org.telegram.telegrambots.meta.api.methods.AnswerCallbackQuery;
 import org.telegram.telegrambots.meta.api.methods.BotApiMethod;
+import org.telegram.telegrambots.meta.api.methods.GetFile;
 import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.methods.send.SendPhoto;
 import org.telegram.telegrambots.meta.api.methods.updatingmessages.DeleteMessage;
+import org.telegram.telegrambots.meta.api.methods.updatingmessages.EditMessageReplyMarkup;
 import org.telegram.telegrambots.meta.api.methods.updatingmessages.EditMessageText;
 import org.telegram.telegrambots.meta.api.methods.updatingmessages.EditMessageText.EditMessageTextBuilder;
 import org.telegram.telegrambots.meta.api.objects.CallbackQuery;
+import org.telegram.telegrambots.meta.api.objects.InputFile;
 import org.telegram.telegrambots.meta.api.objects.Message;
+import org.telegram.telegrambots.meta.api.objects.PhotoSize;
 import org.telegram.telegrambots.meta.api.objects.Update;
 import org.telegram.telegrambots.meta.api.objects.User;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.InlineKeyboardMarkup.InlineKeyboardMarkupBuilder;
 import org.telegram.telegrambots.meta.api.objects.replykeyboard.buttons.InlineKeyboardButton;
 
+import exceptions.ItemRemovedException;
+import exceptions.SizeRemovedException;
+import exceptions.TemporaryFetchException;
+import pojo.AlertRule;
+import pojo.ItemStore;
 import pojo.TrackedItem;
+import pojo.TrackedItem.PriceHistory;
+import pojo.TrackedItem.TrackedSize;
+import pojo.UserSettings;
+import pojo.UserSettings.DigestMode;
+import util.AlertEngine;
+import util.ItemFetcher;
 import util.LogicUtility;
+import util.LogicUtility.FetchedPage;
+import util.NotificationDigest;
+import util.PageCache;
+import util.PriceChart;
+import util.PriceChart.Chart;
+import util.Stage;
+import util.Tracing;
+import util.Tracing.Scope;
+import util.Tracing.TelegramCall;
 
 /**
  * The telegram bot implementation.
@@ -34,20 +73,60 @@ public class TelegramBot extends TelegramLongPollingBot {
 	private static final String DELETE = "delete/";
 	private static final String SHOW_HISTORY = "showhistory/";
 	private static final String ADD_ITEM = "addItem/";
+	private static final String TOGGLE_SIZE = "toggleSize/";
 	private static final String ADD_USER = "addUser/";
 	private static final String DELETE_MESSAGE = "deleteMessage";
+	private static final String ALERT_FOR = "alertFor/";
+	private static final String DELETE_ALERT = "deleteAlert/";
+	private static final String ALL_ITEMS = "all";
+	private static final String DIGEST = "digest/";
+	private static final String COMPARE = "compare/";
+	private static final String REFRESH = "refresh/";
+	private static final String RESTOCK = "restock/";
 
 	private static final String LINK_MODE = "link_mode";
 	private static final String SHOW_HISTORY_MODE = "show_history_mode";
 	private static final String DELETE_MODE = "delete_mode";
+	private static final String COMPARE_MODE = "compare_mode";
+	private static final String REFRESH_MODE = "refresh_mode";
+	private static final String RESTOCK_MODE = "restock_mode";
+	private static final String ITEMS_PAGE = "itemsPage/";
+	private static final String ITEMS_FILTER = "filter: ";
+	private static final int ITEMS_PER_PAGE = 10;
+	private static final int MAX_IMPORT_ITEMS = 100;
+	private static final long MAX_IMPORT_FILE_BYTES = 64 * 1024;
+	/** The longest message accepted by telegram */
+	private static final int MAX_MESSAGE_LENGTH = 4096;
+	/** The minimum time between two refreshes of all the items of a user, and of a single item */
+	private static final long REFRESH_ALL_MILLIS = 15 * 60 * 1000;
+	private static final long REFRESH_ITEM_MILLIS = 60 * 1000;
+	/** The answer to the refreshes of a user over its fetch budget, they would wait for the next period */
+	private static final String OVER_BUDGET = "You used all the checks of this period, your items will be checked at their turn";
+
+	private static final String SELECTED = "\u2705";
 
 	private final String botUsername;
 	private final LogicUtility utility;
+	private final PageCache<InlineKeyboardMarkup> itemsKeyboards = new PageCache<>();
+	/** The last refresh of all the items and of a single item of each user */
+	private final Map<Long, Long> lastRefreshAll = new ConcurrentHashMap<>();
+	private final Map<Long, Long> lastRefreshItem = new ConcurrentHashMap<>();
+	/** The slow part of the commands and of the callbacks, run after the user is answered */
+	private final Stage callbackStage;
 
 	public TelegramBot(LogicUtility utility) {
-		super(utility.getBotToken());
+		super(botOptions(utility), utility.getBotToken());
 		this.botUsername = utility.getBotUsername();
 		this.utility = utility;
+		callbackStage = new Stage("callbacks", utility.getStageThreads("callbacks", 4), 64);
+	}
+
+	/** Returns the bot options, pointing to the configured bot api if any. */
+	private static DefaultBotOptions botOptions(LogicUtility utility) {
+		final DefaultBotOptions options = new DefaultBotOptions();
+		final String baseUrl = utility.getTelegramBaseUrl();
+		if (baseUrl != null) { options.setBaseUrl(baseUrl); }
+		return options;
 	}
 
 	@Override
@@ -57,7 +136,7 @@ public class TelegramBot extends TelegramLongPollingBot {
 
 	@Override
 	public void onUpdateReceived(Update update) {
-		try {
+		try (Scope scope = Tracing.open("update-" + update.getUpdateId())) {
 			if (update.hasMessage()) {
 				final Message message = update.getMessage();
 				final User user = message.getFrom();
@@ -66,9 +145,21 @@ public class TelegramBot extends TelegramLongPollingBot {
 
 				if (!checkUser(user)) { return; }
 
+				// the files are only read by /import
+				if (!message.hasText()) {
+					importCommand(message);
+					return;
+				}
+
 				helpCommand(message);
 				aboutCommand(message);
 				myItemsCommand(message);
+				alertCommand(message);
+				alertsCommand(message);
+				digestCommand(message);
+				importCommand(message);
+				weightCommand(message);
+				refreshCommand(message);
 				addItem(message);
 
 			} else if (update.hasCallbackQuery()) {
@@ -76,11 +167,19 @@ public class TelegramBot extends TelegramLongPollingBot {
 				if (!checkUser(callback.getFrom())) { return; }
 
 				addUserCallback(callback);
+				toggleSizeCallback(callback);
 				addItemCallback(callback);
 				itemsKeyboardChangeModeCallback(callback);
+				itemsPageCallback(callback);
 				showHistoryCallback(callback);
 				deleteItemCallback(callback);
+				compareItemCallback(callback);
+				refreshItemCallback(callback);
+				restockItemCallback(callback);
 				deleteMessageCallback(callback);
+				alertForCallback(callback);
+				deleteAlertCallback(callback);
+				digestCallback(callback);
 
 			}
 
@@ -169,24 +268,50 @@ public class TelegramBot extends TelegramLongPollingBot {
 		sendMessage(userId, "You are now enabled!");
 	}
 
+	/** Callback used to select or unselect a size in the sizes keyboard. */
+	private void toggleSizeCallback(CallbackQuery callback) throws Exception {
+		final String data = callback.getData();
+		if (!data.startsWith(TOGGLE_SIZE)) { return; }
+
+		final String size = data.replace(TOGGLE_SIZE, "");
+		final Message message = (Message) callback.getMessage();
+
+		final List<String> sizes = getKeyboardSizes(message);
+		final Set<String> selected = getSelectedSizes(message);
+		if (!selected.remove(size)) { selected.add(size); }
+
+		exec(EditMessageReplyMarkup.builder()//
+				.chatId(message.getChatId())//
+				.messageId(message.getMessageId())//
+				.replyMarkup(getSizesKeyboard(sizes, selected))//
+				.build());
+
+		exec(AnswerCallbackQuery.builder()//
+				.callbackQueryId(callback.getId())//
+				.text("")//
+				.showAlert(false).build());
+	}
+
 	/**
-	 * Callback used when a size is chosen and the item has to be added to the list.
+	 * Callback used when the sizes are chosen and the item has to be added to the list. The callback is answered right away, the item is
+	 * fetched in the callbacks stage and the sizes message shows the progress and then the result.
 	 */
 	private void addItemCallback(CallbackQuery callback) throws Exception {
 		final String data = callback.getData();
 		if (!data.startsWith(ADD_ITEM)) { return; }
 
 		final Long userId = callback.getFrom().getId();
-		final String size = data.replace(ADD_ITEM, "");
 
 		final Message message = (Message) callback.getMessage();
 
 		String alertText = null;
-		boolean deleteMessages = true;
 		if (message == null || message.getReplyToMessage() == null) {
 			alertText = "Bad request";
 		} else {
-			alertText = "Item added!";
+			// the keyboards sent before the multi-size support have the size in the data
+			final String size = data.replace(ADD_ITEM, "");
+			final Set<String> selected = size.isEmpty() ? getSelectedSizes(message) : Set.of(size);
+
 			final List<String> split = Stream.of(message.getReplyToMessage().getText().split("\n"))//
 					.map(String::trim)//
 					.filter(s -> !s.isEmpty())//
@@ -194,17 +319,39 @@ public class TelegramBot extends TelegramLongPollingBot {
 			final String name = split.get(0);
 			final String url = split.get(1);
 
-			final TrackedItem toAddTemp = new TrackedItem(UUID.randomUUID().toString(), name, url, size, null, null, false, false);
+			final ItemStore items = utility.getItemStore(userId);
 
-			final List<TrackedItem> items = utility.getTrackedItems(userId);
+			// only the sizes not tracked yet are added
+			final List<TrackedSize> toAddSizes = selected.stream()//
+					.filter(s -> !items.contains(url, s))//
+					.map(s -> new TrackedSize(s, null, null, false))//
+					.toList();
 
-			if (items.stream().noneMatch(itm -> Objects.equals(toAddTemp.getUrl(), itm.getUrl()) && Objects.equals(toAddTemp.getSize(), itm.getSize()))) {
-				final TrackedItem toAdd = utility.getItemFromUrl(userId, toAddTemp, this);
-				items.add(toAdd);
-				utility.saveTrackedItems(userId, items);
-			} else {
+			if (selected.isEmpty()) {
+				alertText = "Select at least one size!";
+			} else if (toAddSizes.isEmpty()) {
 				alertText = "You are already tracking this item!";
-				deleteMessages = false;
+			} else if (items.findByUrl(url).isEmpty() && items.size() >= utility.getItemBudget(userId)) {
+				alertText = "You can track at most %s items, delete some of them first".formatted(utility.getItemBudget(userId));
+			} else {
+				exec(AnswerCallbackQuery.builder()//
+						.callbackQueryId(callback.getId())//
+						.text("")//
+						.showAlert(false).build());
+
+				// without the keyboard the item can't be added twice while it is fetched
+				final List<String> sizes = getKeyboardSizes(message);
+				editText(message, "\u23F3 Checking %s on Zalando...".formatted(name), null);
+
+				final String correlationId = Tracing.correlationId();
+				callbackStage.execute(() -> {
+					try (Scope scope = Tracing.open(correlationId)) {
+						addItemLater(userId, message, name, url, toAddSizes, sizes, selected);
+					} catch (final Throwable t) {
+						utility.insertErrorLog(t, this, userId, url);
+					}
+				});
+				return;
 			}
 		}
 
@@ -213,22 +360,63 @@ public class TelegramBot extends TelegramLongPollingBot {
 				.text(alertText)//
 				.showAlert(true).build();
 		exec(alert);
+	}
 
-		if (deleteMessages) {
-			final DeleteMessage deleteSizeMessage = DeleteMessage.builder()//
-					.chatId(message.getChatId())//
-					.messageId(message.getMessageId())//
-					.build();
-			exec(deleteSizeMessage);
+	/** Fetches and saves the item added by the user, then shows the result in the sizes message. */
+	private void addItemLater(Long userId, Message message, String name, String url, List<TrackedSize> toAddSizes, List<String> sizes,
+			Set<String> selected) throws Exception {
+		final TrackedItem toAdd;
+		try {
+			final TrackedItem toAddTemp = new TrackedItem(UUID.randomUUID().toString(), name, url, toAddSizes, null, null);
+			toAdd = utility.getItemFromUrl(userId, toAddTemp, this);
+		} catch (final TemporaryFetchException e) {
+			// the keyboard is back, the user can try again
+			editText(message, "Zalando is not answering right now, try again in a few minutes", getSizesKeyboard(sizes, selected));
+			return;
+		} catch (final ItemRemovedException | SizeRemovedException e) {
+			editText(message, "Hmm... the item or the sizes are no longer available", null);
+			return;
+		} catch (final Exception e) {
+			editText(message, "Something went wrong, try again", getSizesKeyboard(sizes, selected));
+			throw e;
+		}
 
-			if (message.getReplyToMessage() != null) {
-				exec(DeleteMessage.builder()//
-						.chatId(message.getChatId())//
-						.messageId(message.getReplyToMessage().getMessageId())//
-						.build());
-			}
+		final ItemStore items = utility.getItemStore(userId);
+		// the sizes added meanwhile from another message are not added twice
+		final List<TrackedSize> newSizes = toAdd.getSizes().stream().filter(s -> !items.contains(url, s.getSize())).toList();
+		if (newSizes.isEmpty()) {
+			editText(message, "You are already tracking this item!", null);
+			return;
+		}
+
+		final TrackedItem existing = items.findByUrl(url).orElse(null);
+		if (existing == null) {
+			// a new item sees the whole history of the product, also the prices seen by the other users
+			utility.attachHistory(toAdd, true);
+			items.add(toAdd);
+		} else {
+			// the item keeps its history, the new sizes will be checked with the others from now on
+			final TrackedItem merged = existing.withSizes(newSizes);
+			utility.attachHistory(merged, false);
+			items.add(merged);
 		}
+		utility.saveItemStore(userId, items);
 
+		editText(message, "%s Item added!\n%s - %s".formatted(SELECTED, name, toAdd.getPrice() == null ? "price not available" : toAdd.getPrice()), null);
+		exec(DeleteMessage.builder()//
+				.chatId(message.getChatId())//
+				.messageId(message.getReplyToMessage().getMessageId())//
+				.build());
+	}
+
+	/** Replaces the text of the message, without keyboard if null. */
+	private void editText(Message message, String text, InlineKeyboardMarkup keyboard) throws Exception {
+		exec(EditMessageText.builder()//
+				.chatId(message.getChatId())//
+				.messageId(message.getMessageId())//
+				.text(text)//
+				.replyMarkup(keyboard)//
+				.build());
 	}
 
 	/** Checks if the user is trying to add a new item and returns the available sizes. */
@@ -240,39 +428,271 @@ public class TelegramBot extends TelegramLongPollingBot {
 				.filter(s -> !s.isEmpty())//
 				.toList();
 
-		if (split.size() != 2) { return; }
+		if (split.size() != 2 || message.isCommand()) { return; }
 
 		final String url = split.get(1);
 		if (!url.contains("https://") || !url.contains("zalando.")) { return; }
 
-		final InlineKeyboardMarkupBuilder keyboard = InlineKeyboardMarkup.builder();
-
 		// i proceed to fetch all the sizes from the item and displaying them in buttons
-		final List<String> sizes = utility.getSizesFromUrl(url);
+		final List<String> sizes;
+		try {
+			sizes = utility.getSizesFromUrl(url);
+		} catch (final TemporaryFetchException e) {
+			sendMessage(message.getFrom().getId(), "Zalando is busy, try again shortly");
+			return;
+		}
 		if (sizes.isEmpty()) {
 			sendMessage(message.getFrom().getId(), "Hmm... this url is not valid");
 			return;
 		}
 
+		final SendMessage result = SendMessage.builder().chatId(message.getFrom().getId())//
+				.parseMode("HTML")//
+				.replyToMessageId(message.getMessageId())//
+				.text("Found it! Select the sizes you would like to track, then confirm")//
+				.replyMarkup(getSizesKeyboard(sizes, Set.of()))//
+				.build();
+
+		exec(result);
+	}
+
+	/** /weight Command of the admin, "/weight userId 2" gives the user twice the checks and the budgets of the others */
+	private void weightCommand(Message msg) throws Exception {
+		if (!msg.isCommand() || !"/weight".equals(msg.getText().split("\\s+")[0])) { return; }
+
+		final Long adminId = msg.getFrom().getId();
+		if (!Objects.equals(adminId, utility.getAdminId())) { return; }
+
+		final String[] split = msg.getText().trim().split("\\s+");
+		final Long userId;
+		final double weight;
+		try {
+			userId = Long.valueOf(split[1]);
+			weight = Double.parseDouble(split[2].replace(',', '.'));
+		} catch (final RuntimeException e) {
+			sendMessage(adminId, "Write the user and the weight, e.g. /weight 123456 2 - the default weight is 1");
+			return;
+		}
+		if (!utility.userExists(userId) || weight <= 0) {
+			sendMessage(adminId, "Unknown user or weight not positive");
+			return;
+		}
+
+		final UserSettings settings = utility.getUserSettings(userId);
+		settings.setWeight(weight);
+		utility.saveUserSettings(userId, settings);
+		sendMessage(adminId, "The weight of %s is now %s, from the next scan of the items".formatted(userId, weight));
+	}
+
+	/** An item written in the /import list, with the sizes as written by the user */
+	private record ImportEntry(String name, String url, List<String> sizes) {}
+
+	/**
+	 * /import Command, adds many items at once. Each line of the message, or of the attached text file with /import as caption, is an item:
+	 * "name | url | sizes", the sizes separated by commas can be left out for the items with a single size.
+	 * <p>
+	 * The pages are fetched in parallel with the fetcher of the checks, so the domain limits are respected, and the items are saved at once.
+	 */
+	private void importCommand(Message msg) throws Exception {
+		final String text = msg.hasDocument() ? msg.getCaption() : msg.getText();
+		if (text == null || !"/import".equals(text.split("\\s+")[0])) { return; }
+
+		final Long userId = msg.getFrom().getId();
+		if (msg.hasDocument() && msg.getDocument().getFileSize() != null && msg.getDocument().getFileSize() > MAX_IMPORT_FILE_BYTES) {
+			sendMessage(userId, "The file is too big, import at most %s items at a time".formatted(MAX_IMPORT_ITEMS));
+			return;
+		}
+		if (!msg.hasDocument() && text.lines().count() < 2) {
+			sendMessage(userId, """
+					Send the items to import in the same message, one per line:
+					/import
+					White shoes | https://www.zalando.it/tommy-hilfiger-essential-cupsole-sneakers-basse-white-to112o0ib-a11.html | 42, 43
+					Black hoodie | https://www.zalando.it/... | M
+					Or send a text file with the same lines and /import as caption.""");
+			return;
+		}
+
+		final Message progress = exec(SendMessage.builder()//
+				.chatId(userId)//
+				.text("\u23F3 Importing the items...")//
+				.build());
+
+		final String correlationId = Tracing.correlationId();
+		callbackStage.execute(() -> {
+			try (Scope scope = Tracing.open(correlationId)) {
+				final String lines = msg.hasDocument() ? downloadText(msg.getDocument().getFileId()) : text.substring(text.indexOf('\n') + 1);
+				importItems(userId, progress, lines);
+			} catch (final Throwable t) {
+				utility.insertErrorLog(t, this, userId, "import");
+			}
+		});
+	}
+
+	/** Reads the text file sent by the user. */
+	private String downloadText(String fileId) throws Exception {
+		final File file = downloadFile(exec(GetFile.builder().fileId(fileId).build()));
+		try {
+			return Files.readString(file.toPath(), StandardCharsets.UTF_8);
+		} finally {
+			Files.deleteIfExists(file.toPath());
+		}
+	}
+
+	/** Fetches the items of the import, adds the valid ones and replaces the progress message with the summary. */
+	private void importItems(Long userId, Message progress, String lines) throws Exception {
+		final List<ImportEntry> entries = new ArrayList<>();
+		final List<String> failed = new ArrayList<>();
+		for (final String line : lines.lines().map(String::trim).filter(l -> !l.isEmpty() && !l.startsWith("/import")).toList()) {
+			final String[] fields = line.split("\\|");
+			if (fields.length < 2 || fields.length > 3 || !fields[1].contains("https://") || !fields[1].contains("zalando.")) {
+				failed.add("\"%s\": not name | url | sizes".formatted(line));
+				continue;
+			}
+			final List<String> sizes = fields.length == 3 ? Stream.of(fields[2].split(",")).map(String::trim).filter(f -> !f.isEmpty()).toList() : List.of();
+			entries.add(new ImportEntry(fields[0].trim(), fields[1].trim(), sizes));
+		}
+		if (entries.size() > MAX_IMPORT_ITEMS) {
+			editText(progress, "Too many items, import at most %s items at a time".formatted(MAX_IMPORT_ITEMS), null);
+			return;
+		}
+
+		// each page once, all of them in parallel
+		final ItemFetcher fetcher = Runner.getFetcher();
+		final Map<String, CompletableFuture<FetchedPage>> pages = new HashMap<>();
+		entries.forEach(entry -> pages.computeIfAbsent(entry.url(), fetcher::fetch));
+
+		final ItemStore items = utility.getItemStore(userId);
+		final int itemBudget = utility.getItemBudget(userId);
+		final List<String> added = new ArrayList<>();
+		final List<String> ambiguous = new ArrayList<>();
+		int alreadyTracked = 0;
+		for (final ImportEntry entry : entries) {
+			final FetchedPage page;
+			try {
+				page = pages.get(entry.url()).get();
+			} catch (final ExecutionException e) {
+				failed.add("%s: %s".formatted(entry.url(), e.getCause() instanceof ItemRemovedException ? "not found" : "Zalando is not answering, try later"));
+				continue;
+			}
+
+			final List<String> available = page.sizes().stream().map(size -> size.size).toList();
+			final Set<String> sizes = new LinkedHashSet<>();
+			if (entry.sizes().isEmpty() && available.size() == 1) { sizes.add(available.get(0)); }
+			if (entry.sizes().isEmpty() && available.size() != 1) { ambiguous.add("%s: choose among %s".formatted(entry.name(), describeSizes(available))); }
+			for (final String written : entry.sizes()) {
+				final List<String> matching = matchSize(written, available);
+				if (matching.size() == 1) {
+					sizes.add(matching.get(0));
+				} else {
+					ambiguous.add("%s: size %s %s".formatted(entry.name(), written, matching.isEmpty() ? "not found among " + describeSizes(available)
+							: "could be " + describeSizes(matching)));
+				}
+			}
+
+			// only the sizes not tracked yet are added
+			final List<TrackedSize> toAddSizes = sizes.stream()//
+					.filter(s -> !items.contains(entry.url(), s))//
+					.map(s -> new TrackedSize(s, null, null, false))//
+					.toList();
+			alreadyTracked += sizes.size() - toAddSizes.size();
+			if (toAddSizes.isEmpty()) { continue; }
+
+			final TrackedItem toAddTemp = new TrackedItem(UUID.randomUUID().toString(), entry.name(), entry.url(), toAddSizes, null, null);
+			final TrackedItem toAdd = utility.getItemFromPage(toAddTemp, page);
+			final TrackedItem existing = items.findByUrl(entry.url()).orElse(null);
+			if (existing == null && items.size() >= itemBudget) {
+				failed.add("%s: you can track at most %s items".formatted(entry.url(), itemBudget));
+				continue;
+			}
+			if (existing == null) {
+				// a new item sees the whole history of the product, also the prices seen by the other users
+				utility.attachHistory(toAdd, true);
+				items.add(toAdd);
+			} else {
+				// the item keeps its history, the new sizes will be checked with the others from now on
+				final TrackedItem merged = existing.withSizes(toAdd.getSizes());
+				utility.attachHistory(merged, false);
+				items.add(merged);
+			}
+			added.add("%s (%s)".formatted(entry.name(), toAddSizes.stream().map(TrackedSize::getSize).collect(Collectors.joining(", "))));
+		}
+		if (!added.isEmpty()) { utility.saveItemStore(userId, items); }
+
+		final StringBuilder summary = new StringBuilder("%s Imported %s of %s items".formatted(SELECTED, added.size(), entries.size()));
+		if (alreadyTracked > 0) { summary.append(", %s sizes were already tracked".formatted(alreadyTracked)); }
+		appendSection(summary, "Added:", added);
+		appendSection(summary, "Sizes to check:", ambiguous);
+		appendSection(summary, "Failed:", failed);
+		final String text = summary.length() > MAX_MESSAGE_LENGTH ? summary.substring(0, MAX_MESSAGE_LENGTH - 3) + "..." : summary.toString();
+		editText(progress, text, null);
+	}
+
+	/**
+	 * Returns the sizes of the page matching the one written by the user: the same size, ignoring the case, the spaces and the decimal
+	 * separator, or else the sizes starting with it.
+	 */
+	private static List<String> matchSize(String written, List<String> available) {
+		final String normalized = normalizeSize(written);
+		final List<String> same = available.stream().filter(s -> normalizeSize(s).equals(normalized)).toList();
+		if (!same.isEmpty()) { return same; }
+		return available.stream().filter(s -> normalizeSize(s).startsWith(normalized)).toList();
+	}
+
+	private static String normalizeSize(String size) {
+		return size.toLowerCase().replace(" ", "").replace(',', '.');
+	}
+
+	private static String describeSizes(List<String> sizes) {
+		return sizes.size() <= 8 ? String.join(", ", sizes) : String.join(", ", sizes.subList(0, 8)) + "...";
+	}
+
+	private static void appendSection(StringBuilder summary, String title, List<String> lines) {
+		if (lines.isEmpty()) { return; }
+		summary.append("\n\n").append(title);
+		lines.forEach(line -> summary.append("\n- ").append(line));
+	}
+
+	/** Returns the keyboard with a button for each size, three per row, and the confirm button. */
+	private InlineKeyboardMarkup getSizesKeyboard(List<String> sizes, Set<String> selected) {
+		final InlineKeyboardMarkupBuilder keyboard = InlineKeyboardMarkup.builder();
+
 		List<InlineKeyboardButton> list = new ArrayList<>();
 		for (final String size : sizes) {
 			final InlineKeyboardButton sizeButton = InlineKeyboardButton.builder()//
-					.text(size)//
-					.callbackData(ADD_ITEM + size).build();
+					.text(selected.contains(size) ? SELECTED + " " + size : size)//
+					.callbackData(TOGGLE_SIZE + size).build();
 
 			if (list.size() == 3) { keyboard.keyboardRow(new ArrayList<>(list)); list = new ArrayList<>(); }
 			list.add(sizeButton);
 		}
 		if (!list.isEmpty()) { keyboard.keyboardRow(new ArrayList<>(list)); }
 
-		final SendMessage result = SendMessage.builder().chatId(message.getFrom().getId())//
-				.parseMode("HTML")//
-				.replyToMessageId(message.getMessageId())//
-				.text("Found it! What size would you like to track?")//
-				.replyMarkup(keyboard.build())//
-				.build();
+		final InlineKeyboardButton confirmButton = InlineKeyboardButton.builder()//
+				.text(selected.isEmpty() ? "Select the sizes" : "Track %s size%s".formatted(selected.size(), selected.size() > 1 ? "s" : ""))//
+				.callbackData(ADD_ITEM).build();
+		keyboard.keyboardRow(List.of(confirmButton));
 
-		exec(result);
+		return keyboard.build();
+	}
+
+	/** Returns the sizes shown in the sizes keyboard of the message. */
+	private List<String> getKeyboardSizes(Message message) {
+		return message.getReplyMarkup().getKeyboard().stream()//
+				.flatMap(List::stream)//
+				.map(InlineKeyboardButton::getCallbackData)//
+				.filter(d -> d != null && d.startsWith(TOGGLE_SIZE))//
+				.map(d -> d.replace(TOGGLE_SIZE, ""))//
+				.toList();
+	}
+
+	/** Returns the sizes selected in the sizes keyboard of the message. */
+	private Set<String> getSelectedSizes(Message message) {
+		if (message.getReplyMarkup() == null) { return new LinkedHashSet<>(); }
+		return message.getReplyMarkup().getKeyboard().stream()//
+				.flatMap(List::stream)//
+				.filter(b -> b.getCallbackData() != null && b.getCallbackData().startsWith(TOGGLE_SIZE) && b.getText().startsWith(SELECTED))//
+				.map(b -> b.getCallbackData().replace(TOGGLE_SIZE, ""))//
+				.collect(Collectors.toCollection(LinkedHashSet::new));
 	}
 
 	/** Callback used to delete the message with the button. */
@@ -301,9 +721,13 @@ public class TelegramBot extends TelegramLongPollingBot {
 		if (!data.startsWith(SHOW_HISTORY)) { return; }
 
 		final String uuid = data.replace(SHOW_HISTORY, "");
-		final TrackedItem item = utility.getTrackedItems(userId).stream()//
-				.filter(itm -> Objects.equals(itm.getUuid(), uuid))//
-				.findFirst().orElseThrow();
+		final TrackedItem item = utility.getItemStore(userId).get(uuid).orElseThrow();
+
+		// Answer the callback before drawing and uploading the chart
+		exec(AnswerCallbackQuery.builder()//
+				.callbackQueryId(callback.getId())//
+				.text("")//
+				.showAlert(false).build());
 
 		// Button to delete the price history message
 		final InlineKeyboardMarkupBuilder keyboard = InlineKeyboardMarkup.builder();
@@ -313,62 +737,94 @@ public class TelegramBot extends TelegramLongPollingBot {
 				.build();
 		keyboard.keyboardRow(List.of(deleteMessageButton));
 
-		// Send the price history message
-		String historyText = item.getPriceHistory().stream().map(o -> o.getDate() + " - " + o.getPrice()).collect(Collectors.joining("\n"));
-		historyText = "<b>%s</b>\n".formatted(item.getName()) + historyText;
-		final SendMessage historyMessage = SendMessage.builder()//
-				.chatId(userId)//
-				.parseMode("HTML")//
-				.text(historyText)//
-				.replyMarkup(keyboard.build())//
-				.build();
-		exec(historyMessage);
+		// Send the price history chart, reusing the uploaded image if the history didn't change
+		final List<PriceHistory> history = item.getPriceHistory();
+		final String caption = PriceChart.describe(item.getName(), history);
+		final Chart chart = PriceChart.get(item.getUuid(), history).orElse(null);
+		if (chart == null) {
+			exec(SendMessage.builder()//
+					.chatId(userId)//
+					.parseMode("HTML")//
+					.text(caption)//
+					.replyMarkup(keyboard.build())//
+					.build());
+			return;
+		}
 
-		// Answer the callback
-		final AnswerCallbackQuery answer = AnswerCallbackQuery.builder()//
-				.callbackQueryId(callback.getId())//
-				.text("")//
-				.showAlert(false).build();
+		boolean sent = false;
+		if (chart.getFileId() != null) {
+			try {
+				sendChart(userId, new InputFile(chart.getFileId()), caption, keyboard.build());
+				sent = true;
+			} catch (final Exception e) {
+				// telegram doesn't know the file anymore, it is uploaded again
+				utility.insertLog("Chart file id not valid anymore: " + e.getMessage());
+			}
+		}
+		if (!sent) {
+			final Message message = sendChart(userId, new InputFile(new ByteArrayInputStream(chart.getPng()), "history.png"), caption, keyboard.build());
 
-		exec(answer);
+			// the last size is the original image
+			final List<PhotoSize> photos = message == null ? null : message.getPhoto();
+			if (photos != null && !photos.isEmpty()) { chart.setFileId(photos.get(photos.size() - 1).getFileId()); }
+		}
 	}
 
-	/** /myitems Command */
+	private Message sendChart(Long userId, InputFile photo, String caption, InlineKeyboardMarkup keyboard) throws Exception {
+		return traced("sendPhoto", () -> execute(SendPhoto.builder()//
+				.chatId(userId)//
+				.photo(photo)//
+				.caption(caption)//
+				.parseMode("HTML")//
+				.replyMarkup(keyboard)//
+				.build()));
+	}
+
+	/** /myitems Command, "/myitems shoes" shows only the items with "shoes" in the name */
 	private void myItemsCommand(Message msg) throws Exception {
-		if (msg.isCommand() && "/myitems".equals(msg.getText())) {
+		if (msg.isCommand() && "/myitems".equals(msg.getText().split("\\s+")[0])) {
 			final Long userId = msg.getFrom().getId();
-			final List<TrackedItem> items = utility.getTrackedItems(userId);
+			final String filter = msg.getText().replaceFirst("/myitems", "").trim();
+			final List<TrackedItem> items = filterItems(utility.getTrackedItems(userId), filter);
 
 			if (items.isEmpty()) {
-				sendMessage(userId, "You are not tracking any item!");
+				sendMessage(userId, filter.isEmpty() ? "You are not tracking any item!" : "No item matches \"%s\"".formatted(NotificationDigest.escape(filter)));
 				return;
 			} // if
 
 			final SendMessage result = SendMessage.builder().chatId(userId)//
 					.parseMode("HTML")//
-					.text("These are the item you are tracking.\nmode: Link")//
-					.replyMarkup(getItemsKeyboard(userId, items, LINK_MODE))//
+					.text(getItemsText(filter, "mode: Link"))//
+					.replyMarkup(getItemsKeyboard(userId, LINK_MODE, 0, filter))//
 					.build();
 
 			exec(result);
 		}
 	}
 
-	/** Callback used when switching modes in the item keyboard. */
+	/** Callback used when switching modes or pages in the item keyboard. */
 	private void itemsKeyboardChangeModeCallback(CallbackQuery callback) throws Exception {
 		final Long userId = callback.getFrom().getId();
 		final String data = callback.getData();
 
+		// the data is "mode/page", the keyboards sent before the pages were added have only the mode
+		final String[] split = data.split("/");
+		final String mode = split[0];
+
 		// get the selected mode
 		String description = null;
-		if (DELETE_MODE.equals(data)) { description = "mode: Delete - watch out!"; }
-		if (SHOW_HISTORY_MODE.equals(data)) { description = "mode: Price history"; }
-		if (LINK_MODE.equals(data)) { description = "mode: Link"; }
+		if (DELETE_MODE.equals(mode)) { description = "mode: Delete - watch out!"; }
+		if (SHOW_HISTORY_MODE.equals(mode)) { description = "mode: Price history"; }
+		if (LINK_MODE.equals(mode)) { description = "mode: Link"; }
+		if (COMPARE_MODE.equals(mode)) { description = "mode: Compare with the other Zalando stores"; }
+		if (REFRESH_MODE.equals(mode)) { description = "mode: Check now"; }
+		if (RESTOCK_MODE.equals(mode)) { description = "mode: Watch while sold out"; }
 		if (description == null) { return; }
-
-		final List<TrackedItem> items = utility.getTrackedItems(userId);
+		final int page = split.length > 1 ? Integer.parseInt(split[1]) : 0;
 
 		final Message msg = (Message) callback.getMessage();
+		final String filter = getItemsFilter(msg);
+		final List<TrackedItem> items = filterItems(utility.getTrackedItems(userId), filter);
 
 		// prepare the EditMessage with the keyboard
 		final EditMessageTextBuilder edit = EditMessageText.builder()//
@@ -379,55 +835,115 @@ public class TelegramBot extends TelegramLongPollingBot {
 		if (items.isEmpty()) {
 			edit.text("You are not tracking any item!");
 		} else {
-			final String finalDescription = "These are the items you are tracking.\n%s".formatted(description);
-			// if the selected mode is the same i give an alert
-			if (Objects.equals(finalDescription, msg.getText())) {
+			final String finalDescription = getItemsText(filter, description);
+			// if the selected mode and page are the same i give an alert, the text of the message is the one without the html escapes
+			if (Objects.equals(finalDescription, NotificationDigest.escape(msg.getText())) && page == getItemsPage(msg)) {
 				exec(AnswerCallbackQuery.builder()//
 						.callbackQueryId(callback.getId())//
 						.cacheTime(5)//
-						.text("Already in that mode")//
+						.text("Already there")//
 						.showAlert(true).build());
 				return;
 			} // if
 
-			edit.text(finalDescription).replyMarkup(getItemsKeyboard(userId, items, data));
+			edit.text(finalDescription).replyMarkup(getItemsKeyboard(userId, mode, page, filter));
 		}
 
 		exec(edit.build());
 	}
 
+	/** Callback of the page number button, it only tells where the user is. */
+	private void itemsPageCallback(CallbackQuery callback) throws Exception {
+		if (!callback.getData().startsWith(ITEMS_PAGE)) { return; }
+
+		exec(AnswerCallbackQuery.builder()//
+				.callbackQueryId(callback.getId())//
+				.text("")//
+				.showAlert(false).build());
+	}
+
+	/** Returns the html text of the items message, the filter is written by the user. */
+	private static String getItemsText(String filter, String description) {
+		final String filterLine = filter.isEmpty() ? "" : ITEMS_FILTER + NotificationDigest.escape(filter) + "\n";
+		return "These are the items you are tracking.\n%s%s".formatted(filterLine, description);
+	}
+
+	/** Returns the filter written in the text of the items message. */
+	private static String getItemsFilter(Message msg) {
+		return msg.getText().lines().filter(line -> line.startsWith(ITEMS_FILTER)).map(line -> line.substring(ITEMS_FILTER.length())).findFirst().orElse("");
+	}
+
+	/** Returns the page shown by the items keyboard, read from the page number button. */
+	private static int getItemsPage(Message msg) {
+		if (msg.getReplyMarkup() == null) { return 0; }
+		return msg.getReplyMarkup().getKeyboard().stream()//
+				.flatMap(List::stream)//
+				.map(InlineKeyboardButton::getCallbackData)//
+				.filter(data -> data != null && data.startsWith(ITEMS_PAGE))//
+				.map(data -> Integer.parseInt(data.substring(ITEMS_PAGE.length())))//
+				.findFirst().orElse(0);
+	}
+
+	private static List<TrackedItem> filterItems(List<TrackedItem> items, String filter) {
+		if (filter.isEmpty()) { return items; }
+		final String lowerFilter = filter.toLowerCase();
+		return items.stream().filter(item -> item.getName().toLowerCase().contains(lowerFilter)).toList();
+	}
+
 	/**
-	 * Returns the items keyboard
+	 * Returns a page of the items keyboard, the pages are cached until the items change.
 	 *
 	 * @param userId The user
-	 * @param items  The list of items to show
 	 * @param mode   Selected mode
+	 * @param page   The page, starting from 0, the last one if too big
+	 * @param filter Shows only the items with the filter in the name, empty for all
 	 */
-	private InlineKeyboardMarkup getItemsKeyboard(Long userId, List<TrackedItem> items, String mode) throws Exception {
+	private InlineKeyboardMarkup getItemsKeyboard(Long userId, String mode, int page, String filter) throws Exception {
+		// the version is read first, a page built from newer items is only rebuilt once more
+		final long version = utility.getItemsVersion(userId);
+		final List<TrackedItem> items = utility.getTrackedItems(userId);
+		return itemsKeyboards.get(userId, version, mode + "/" + page + "/" + filter, () -> buildItemsKeyboard(filterItems(items, filter), mode, page));
+	}
+
+	private static InlineKeyboardMarkup buildItemsKeyboard(List<TrackedItem> items, String mode, int requestedPage) {
 
 		final InlineKeyboardMarkupBuilder keyboard = InlineKeyboardMarkup.builder();
+		final int pages = Math.max(1, (items.size() + ITEMS_PER_PAGE - 1) / ITEMS_PER_PAGE);
+		final int page = Math.max(0, Math.min(requestedPage, pages - 1));
 
-		// The three buttons to switch mode
+		// The buttons to switch mode, staying in the same page
 		final InlineKeyboardButton deleteButton = InlineKeyboardButton.builder()//
 				.text("\u274C")//
-				.callbackData(DELETE_MODE).build();
+				.callbackData(DELETE_MODE + "/" + page).build();
 		final InlineKeyboardButton showHistoryButton = InlineKeyboardButton.builder()//
 				.text("\uD83D\uDCC9")//
-				.callbackData(SHOW_HISTORY_MODE).build();
+				.callbackData(SHOW_HISTORY_MODE + "/" + page).build();
 		final InlineKeyboardButton linkButton = InlineKeyboardButton.builder()//
 				.text("Link")//
-				.callbackData(LINK_MODE).build();
-
-		keyboard.keyboardRow(List.of(deleteButton, showHistoryButton, linkButton));
-
-		// Create a button for each item
-		for (final TrackedItem item : items) {
+				.callbackData(LINK_MODE + "/" + page).build();
+		final InlineKeyboardButton compareButton = InlineKeyboardButton.builder()//
+				.text("\uD83C\uDF0D")//
+				.callbackData(COMPARE_MODE + "/" + page).build();
+		final InlineKeyboardButton refreshButton = InlineKeyboardButton.builder()//
+				.text("\uD83D\uDD04")//
+				.callbackData(REFRESH_MODE + "/" + page).build();
+		final InlineKeyboardButton restockButton = InlineKeyboardButton.builder()//
+				.text("\uD83D\uDD14")//
+				.callbackData(RESTOCK_MODE + "/" + page).build();
+
+		keyboard.keyboardRow(List.of(deleteButton, showHistoryButton, linkButton, compareButton, refreshButton, restockButton));
+
+		// Create a button for each item of the page
+		for (final TrackedItem item : items.subList(page * ITEMS_PER_PAGE, Math.min(items.size(), (page + 1) * ITEMS_PER_PAGE))) {
 			String link = null;
 			String callbackData = null;
 			String name = item.getName();
 			if (mode.equals(DELETE_MODE)) { name = "\u274C" + name + "\u274C"; callbackData = DELETE + item.getUuid(); }
 			if (mode.equals(SHOW_HISTORY_MODE)) { name = "\uD83D\uDCC9" + name; callbackData = SHOW_HISTORY + item.getUuid(); }
 			if (mode.equals(LINK_MODE)) { link = item.getUrl(); }
+			if (mode.equals(COMPARE_MODE)) { name = (item.isCompareDomains() ? SELECTED + " " : "") + name; callbackData = COMPARE + item.getUuid(); }
+			if (mode.equals(REFRESH_MODE)) { name = "\uD83D\uDD04" + name; callbackData = REFRESH + item.getUuid(); }
+			if (mode.equals(RESTOCK_MODE)) { name = (item.isWatchRestock() ? SELECTED + " " : "") + name; callbackData = RESTOCK + item.getUuid(); }
 
 			final InlineKeyboardButton itemButton = InlineKeyboardButton.builder()//
 					.text(name)//
@@ -437,8 +953,17 @@ public class TelegramBot extends TelegramLongPollingBot {
 
 			keyboard.keyboardRow(List.of(itemButton));
 		}
+
+		// The navigation between the pages
+		if (pages > 1) {
+			final List<InlineKeyboardButton> navigation = new ArrayList<>();
+			if (page > 0) { navigation.add(InlineKeyboardButton.builder().text("\u2B05").callbackData(mode + "/" + (page - 1)).build()); }
+			navigation.add(InlineKeyboardButton.builder().text("%s/%s".formatted(page + 1, pages)).callbackData(ITEMS_PAGE + page).build());
+			if (page < pages - 1) { navigation.add(InlineKeyboardButton.builder().text("\u27A1").callbackData(mode + "/" + (page + 1)).build()); }
+			keyboard.keyboardRow(navigation);
+		}
 		return keyboard.build();
-	} // getItemsKeyboard
+	} // buildItemsKeyboard
 
 	/** Callback to delete an item. */
 	private void deleteItemCallback(CallbackQuery callback) throws Exception {
@@ -448,11 +973,11 @@ public class TelegramBot extends TelegramLongPollingBot {
 		if (!data.startsWith(DELETE)) { return; }
 
 		final String uuid = data.replace(DELETE, "");
-		final List<TrackedItem> items = utility.getTrackedItems(userId);
+		final ItemStore items = utility.getItemStore(userId);
 		final Message msg = (Message) callback.getMessage();
 
 		// Find the item
-		final TrackedItem item = items.stream().filter(itm -> Objects.equals(itm.getUuid(), uuid)).findFirst().orElse(null);
+		final TrackedItem item = items.get(uuid).orElse(null);
 
 		// check that the items keyboard was valid
 		if (item == null) {
@@ -465,9 +990,14 @@ public class TelegramBot extends TelegramLongPollingBot {
 			return;
 		} // if
 
-		// Delete the item
-		final List<TrackedItem> filtered = items.stream().filter(itm -> !Objects.equals(itm.getUuid(), uuid)).toList();
-		utility.saveTrackedItems(userId, filtered);
+		// Delete the item and its alert rules
+		items.remove(uuid);
+		utility.saveItemStore(userId, items);
+
+		final List<AlertRule> rules = utility.getAlertRules(userId);
+		if (rules.stream().anyMatch(r -> Objects.equals(r.getItemUuid(), uuid))) {
+			utility.saveAlertRules(userId, rules.stream().filter(r -> !Objects.equals(r.getItemUuid(), uuid)).toList());
+		}
 
 		// Notify the user
 		final SendMessage doneMessage = SendMessage.builder()//
@@ -476,18 +1006,377 @@ public class TelegramBot extends TelegramLongPollingBot {
 
 		exec(doneMessage);
 
-		// Update the items keyboard
+		// Update the items keyboard, staying in the same page
+		final EditMessageText edit = EditMessageText.builder()//
+				.chatId(chatId)//
+				.messageId(msg.getMessageId())//
+				.parseMode("HTML")//
+				.text(NotificationDigest.escape(msg.getText()))//
+				.replyMarkup(getItemsKeyboard(userId, DELETE_MODE, getItemsPage(msg), getItemsFilter(msg)))//
+				.build();
+
+		exec(edit);
+	}
+
+	/** Callback to switch the comparison of an item with the other stores. */
+	private void compareItemCallback(CallbackQuery callback) throws Exception {
+		final Long userId = callback.getFrom().getId();
+		final Long chatId = callback.getMessage().getChatId();
+		final String data = callback.getData();
+		if (!data.startsWith(COMPARE)) { return; }
+
+		final ItemStore items = utility.getItemStore(userId);
+		final Message msg = (Message) callback.getMessage();
+		final TrackedItem item = items.get(data.replace(COMPARE, "")).orElse(null);
+
+		// check that the items keyboard was valid
+		if (item == null) {
+			exec(EditMessageText.builder()//
+					.chatId(chatId)//
+					.messageId(msg.getMessageId())//
+					.parseMode("HTML")//
+					.text("That list was too old!")//
+					.build());
+			return;
+		} // if
+
+		// the cheaper store is found again by the next check
+		item.setCompareDomains(!item.isCompareDomains());
+		item.setCheaperStore(null, null);
+		items.add(item);
+		utility.saveItemStore(userId, items);
+
+		exec(AnswerCallbackQuery.builder()//
+				.callbackQueryId(callback.getId())//
+				.text(item.isCompareDomains() ? "You'll be notified when another store is cheaper" : "No longer compared")//
+				.showAlert(false).build());
+
+		// Update the items keyboard, staying in the same page
+		final EditMessageText edit = EditMessageText.builder()//
+				.chatId(chatId)//
+				.messageId(msg.getMessageId())//
+				.parseMode("HTML")//
+				.text(NotificationDigest.escape(msg.getText()))//
+				.replyMarkup(getItemsKeyboard(userId, COMPARE_MODE, getItemsPage(msg), getItemsFilter(msg)))//
+				.build();
+
+		exec(edit);
+	}
+
+	/** Callback to switch the watch of an item while it's sold out. */
+	private void restockItemCallback(CallbackQuery callback) throws Exception {
+		final Long userId = callback.getFrom().getId();
+		final Long chatId = callback.getMessage().getChatId();
+		final String data = callback.getData();
+		if (!data.startsWith(RESTOCK)) { return; }
+
+		final ItemStore items = utility.getItemStore(userId);
+		final Message msg = (Message) callback.getMessage();
+		final TrackedItem item = items.get(data.replace(RESTOCK, "")).orElse(null);
+
+		// check that the items keyboard was valid
+		if (item == null) {
+			exec(EditMessageText.builder()//
+					.chatId(chatId)//
+					.messageId(msg.getMessageId())//
+					.parseMode("HTML")//
+					.text("That list was too old!")//
+					.build());
+			return;
+		} // if
+
+		// the scheduler moves the item to the restock lane at its next scan of the items
+		item.setWatchRestock(!item.isWatchRestock());
+		items.add(item);
+		utility.saveItemStore(userId, items);
+
+		final String text;
+		if (!item.isWatchRestock()) {
+			text = "No longer watched";
+		} else if (item.isAvailable()) {
+			text = "You'll be notified as soon as it's back in stock, if it sells out";
+		} else {
+			text = "You'll be notified as soon as it's back in stock";
+		}
+		exec(AnswerCallbackQuery.builder()//
+				.callbackQueryId(callback.getId())//
+				.text(text)//
+				.showAlert(false).build());
+
+		// Update the items keyboard, staying in the same page
 		final EditMessageText edit = EditMessageText.builder()//
 				.chatId(chatId)//
 				.messageId(msg.getMessageId())//
 				.parseMode("HTML")//
-				.text(msg.getText())//
-				.replyMarkup(getItemsKeyboard(userId, filtered, DELETE_MODE))//
+				.text(NotificationDigest.escape(msg.getText()))//
+				.replyMarkup(getItemsKeyboard(userId, RESTOCK_MODE, getItemsPage(msg), getItemsFilter(msg)))//
 				.build();
 
 		exec(edit);
 	}
 
+	/** Callback to check an item now, before the next check. */
+	private void refreshItemCallback(CallbackQuery callback) throws Exception {
+		final Long userId = callback.getFrom().getId();
+		final String data = callback.getData();
+		if (!data.startsWith(REFRESH)) { return; }
+
+		final Optional<TrackedItem> item = utility.getItemStore(userId).get(data.replace(REFRESH, ""));
+		String text;
+		if (item.isEmpty()) {
+			text = "That list was too old!";
+		} else if (Runner.isOverBudget(userId)) {
+			text = OVER_BUDGET;
+		} else {
+			final long wait = refreshWait(lastRefreshItem, userId, REFRESH_ITEM_MILLIS);
+			if (wait > 0) {
+				text = "Wait %s seconds before checking another item".formatted(wait);
+			} else if (Runner.refresh(userId, List.of(item.get().getUrl()))) {
+				text = "Checking %s now, you'll be notified if anything changed".formatted(item.get().getName());
+			} else {
+				text = "The items can't be checked on demand right now";
+			}
+		}
+
+		exec(AnswerCallbackQuery.builder()//
+				.callbackQueryId(callback.getId())//
+				.text(text)//
+				.showAlert(false).build());
+	}
+
+	/** /refresh Command, checks all the items of the user now, before the next check */
+	private void refreshCommand(Message msg) throws Exception {
+		if (!msg.isCommand() || !"/refresh".equals(msg.getText())) { return; }
+
+		final Long userId = msg.getFrom().getId();
+		final List<String> urls = utility.getTrackedItems(userId).stream().map(TrackedItem::getUrl).distinct().toList();
+		if (urls.isEmpty()) {
+			sendMessage(userId, "You are not tracking any item!");
+			return;
+		}
+
+		if (Runner.isOverBudget(userId)) {
+			sendMessage(userId, OVER_BUDGET);
+			return;
+		}
+		final long wait = refreshWait(lastRefreshAll, userId, REFRESH_ALL_MILLIS);
+		if (wait > 0) {
+			sendMessage(userId, "Your items were checked a moment ago, try again in %s minutes".formatted((wait + 59) / 60));
+			return;
+		}
+		if (!Runner.refresh(userId, urls)) {
+			sendMessage(userId, "The items can't be checked on demand right now");
+			return;
+		}
+		sendMessage(userId, "Checking your %s items now, you'll be notified if anything changed. To check a single item use the \uD83D\uDD04 button of /myitems"
+				.formatted(urls.size()));
+	}
+
+	/** Returns the seconds to wait before the next refresh of the user, 0 if it can start now: the refresh is recorded. */
+	private static long refreshWait(Map<Long, Long> lastRefresh, Long userId, long intervalMillis) {
+		final long now = System.currentTimeMillis();
+		final Long last = lastRefresh.get(userId);
+		if (last != null && now - last < intervalMillis) { return (intervalMillis - (now - last) + 999) / 1000; }
+		lastRefresh.put(userId, now);
+		return 0;
+	}
+
+	/** /alert Command, used to add an alert rule */
+	private void alertCommand(Message msg) throws Exception {
+		if (!msg.isCommand() || !"/alert".equals(msg.getText().split("\\s+")[0])) { return; }
+
+		final Long userId = msg.getFrom().getId();
+		final Optional<AlertRule> rule = AlertEngine.parse(msg.getText().replaceFirst("/alert", ""));
+
+		if (rule.isEmpty()) {
+			final String text = """
+					Choose when to be notified, e.g.:
+					/alert below 49,90 - the price is below 49,90
+					/alert drop 20 - the price dropped by 20% or more
+					/alert lowest 90 - the lowest price of the last 90 days
+					/alert restock FEW - available again with quantity FEW or more (ONE, TWO, FEW, MANY)
+					/alert coupon - a coupon is added
+					/alert default - the price lowers or a coupon is added""";
+			sendMessage(userId, text);
+			return;
+		}
+
+		final List<TrackedItem> items = utility.getTrackedItems(userId);
+		if (items.isEmpty()) {
+			sendMessage(userId, "You are not tracking any item!");
+			return;
+		}
+
+		utility.setPendingAlert(userId, rule.get());
+
+		// Ask for the item, or all of them
+		final InlineKeyboardMarkupBuilder keyboard = InlineKeyboardMarkup.builder();
+		keyboard.keyboardRow(List.of(InlineKeyboardButton.builder()//
+				.text("All my items")//
+				.callbackData(ALERT_FOR + ALL_ITEMS).build()));
+		for (final TrackedItem item : items) {
+			keyboard.keyboardRow(List.of(InlineKeyboardButton.builder()//
+					.text(item.getName())//
+					.callbackData(ALERT_FOR + item.getUuid()).build()));
+		}
+
+		final SendMessage result = SendMessage.builder().chatId(userId)//
+				.parseMode("HTML")//
+				.text("Notify when the %s for which item?".formatted(rule.get().describe()))//
+				.replyMarkup(keyboard.build())//
+				.build();
+		exec(result);
+	}
+
+	/** Callback used when the item of the new alert rule is chosen. */
+	private void alertForCallback(CallbackQuery callback) throws Exception {
+		final String data = callback.getData();
+		if (!data.startsWith(ALERT_FOR)) { return; }
+
+		final Long userId = callback.getFrom().getId();
+		final String target = data.replace(ALERT_FOR, "");
+		final Optional<AlertRule> pending = utility.takePendingAlert(userId);
+
+		String alertText = "That request was too old!";
+		if (pending.isPresent()) {
+			final AlertRule rule = pending.get();
+			rule.setItemUuid(ALL_ITEMS.equals(target) ? null : target);
+
+			final List<AlertRule> rules = new ArrayList<>(utility.getAlertRules(userId));
+			rules.add(rule);
+			utility.saveAlertRules(userId, rules);
+			alertText = "Alert added!";
+		}
+
+		exec(AnswerCallbackQuery.builder()//
+				.callbackQueryId(callback.getId())//
+				.text(alertText)//
+				.showAlert(true).build());
+
+		final Message message = (Message) callback.getMessage();
+		exec(DeleteMessage.builder()//
+				.chatId(message.getChatId())//
+				.messageId(message.getMessageId())//
+				.build());
+	}
+
+	/** /alerts Command, lists the alert rules */
+	private void alertsCommand(Message msg) throws Exception {
+		if (!msg.isCommand() || !"/alerts".equals(msg.getText())) { return; }
+
+		final Long userId = msg.getFrom().getId();
+		final List<AlertRule> rules = utility.getAlertRules(userId);
+		if (rules.isEmpty()) {
+			sendMessage(userId, "You have no alert rules: you are notified when the price lowers or a coupon is added.\nAdd one with /alert");
+			return;
+		}
+
+		final SendMessage result = SendMessage.builder().chatId(userId)//
+				.parseMode("HTML")//
+				.text("These are your alert rules, click to delete")//
+				.replyMarkup(getAlertsKeyboard(userId, rules))//
+				.build();
+		exec(result);
+	}
+
+	/** Callback to delete an alert rule. */
+	private void deleteAlertCallback(CallbackQuery callback) throws Exception {
+		final String data = callback.getData();
+		if (!data.startsWith(DELETE_ALERT)) { return; }
+
+		final Long userId = callback.getFrom().getId();
+		final String id = data.replace(DELETE_ALERT, "");
+		final List<AlertRule> rules = utility.getAlertRules(userId).stream().filter(r -> !Objects.equals(r.getId(), id)).toList();
+		utility.saveAlertRules(userId, rules);
+
+		exec(AnswerCallbackQuery.builder()//
+				.callbackQueryId(callback.getId())//
+				.text("Alert deleted")//
+				.showAlert(false).build());
+
+		final Message msg = (Message) callback.getMessage();
+		final EditMessageTextBuilder edit = EditMessageText.builder()//
+				.chatId(msg.getChatId())//
+				.messageId(msg.getMessageId())//
+				.parseMode("HTML");
+		if (rules.isEmpty()) {
+			edit.text("You have no alert rules: you are notified when the price lowers or a coupon is added.");
+		} else {
+			edit.text(msg.getText()).replyMarkup(getAlertsKeyboard(userId, rules));
+		}
+		exec(edit.build());
+	}
+
+	/** Returns the keyboard with a button for each alert rule. */
+	private InlineKeyboardMarkup getAlertsKeyboard(Long userId, List<AlertRule> rules) throws Exception {
+		final ItemStore items = utility.getItemStore(userId);
+		final InlineKeyboardMarkupBuilder keyboard = InlineKeyboardMarkup.builder();
+		for (final AlertRule rule : rules) {
+			final String target = rule.getItemUuid() == null ? "all items" : items.get(rule.getItemUuid())//
+					.map(TrackedItem::getName)//
+					.orElse("deleted item");
+
+			keyboard.keyboardRow(List.of(InlineKeyboardButton.builder()//
+					.text("\u274C %s - %s".formatted(rule.describe(), target))//
+					.callbackData(DELETE_ALERT + rule.getId()).build()));
+		}
+		return keyboard.build();
+	}
+
+	/** /digest Command, to choose how the notifications are grouped */
+	private void digestCommand(Message msg) throws Exception {
+		if (!msg.isCommand() || !"/digest".equals(msg.getText())) { return; }
+
+		final Long userId = msg.getFrom().getId();
+		final DigestMode current = utility.getUserSettings(userId).getDigestMode();
+
+		final InlineKeyboardMarkupBuilder keyboard = InlineKeyboardMarkup.builder();
+		for (final DigestMode mode : DigestMode.values()) {
+			keyboard.keyboardRow(List.of(InlineKeyboardButton.builder()//
+					.text((mode == current ? SELECTED + " " : "") + describeDigestMode(mode))//
+					.callbackData(DIGEST + mode.name()).build()));
+		}
+
+		final SendMessage result = SendMessage.builder().chatId(userId)//
+				.parseMode("HTML")//
+				.text("How do you want to receive the notifications?\nThe ones for a price below your target are always sent immediately")//
+				.replyMarkup(keyboard.build())//
+				.build();
+		exec(result);
+	}
+
+	/** Callback to save the chosen digest mode. */
+	private void digestCallback(CallbackQuery callback) throws Exception {
+		final String data = callback.getData();
+		if (!data.startsWith(DIGEST)) { return; }
+
+		final Long userId = callback.getFrom().getId();
+		final DigestMode mode = DigestMode.valueOf(data.replace(DIGEST, ""));
+		final UserSettings settings = utility.getUserSettings(userId);
+		settings.setDigestMode(mode);
+		utility.saveUserSettings(userId, settings);
+
+		exec(AnswerCallbackQuery.builder()//
+				.callbackQueryId(callback.getId())//
+				.text("Notifications: " + describeDigestMode(mode).toLowerCase())//
+				.showAlert(false).build());
+
+		final Message message = (Message) callback.getMessage();
+		exec(DeleteMessage.builder()//
+				.chatId(message.getChatId())//
+				.messageId(message.getMessageId())//
+				.build());
+	}
+
+	private static String describeDigestMode(DigestMode mode) {
+		return switch (mode) {
+		case OFF -> "Every notification";
+		case CYCLE -> "Once per check";
+		case HOURLY -> "Hourly";
+		case DAILY -> "Daily";
+		};
+	}
+
 	/** /help Command */
 	private void helpCommand(Message msg) throws Exception {
 		if (msg.isCommand() && "/help".equals(msg.getText())) {
@@ -500,6 +1389,15 @@ public class TelegramBot extends TelegramLongPollingBot {
 					Example:
 					Hilfiger white shoes with stripes
 					https://www.zalando.it/tommy-hilfiger-essential-cupsole-sneakers-basse-white-to112o0ib-a11.html
+
+					By default you are notified when the price lowers or a coupon is added.
+					Choose when to be notified with /alert, see your rules with /alerts
+					Group the notifications in a single message with /digest
+					Find your items with /myitems followed by part of their name
+					Add many items at once with /import
+					Check your items now with /refresh
+					Compare an item with the other Zalando stores with the \uD83C\uDF0D button of /myitems
+					Be notified as soon as a sold out item is back with the \uD83D\uDD14 button of /myitems
 					""";
 
 			final SendMessage sm = SendMessage.builder()//
@@ -558,7 +1456,7 @@ public class TelegramBot extends TelegramLongPollingBot {
 
 	private <T extends Serializable, Method extends BotApiMethod<T>> T exec(Method method) throws Exception {
 		try {
-			return execute(method);
+			return traced(method.getMethod(), () -> execute(method));
 		} catch (final Throwable t) {
 			// if the error is caused by network problems i wait and retry
 			final boolean retry = t.getMessage().contains("Connection timed out") || t.getMessage().contains("Network is unreachable")
@@ -567,10 +1465,30 @@ public class TelegramBot extends TelegramLongPollingBot {
 
 			if (retry) {
 				Thread.sleep(6000);
-				return execute(method);
+				return traced(method.getMethod(), () -> execute(method));
 			}
 			throw t;
 		}
 	}
 
+	/** Executes the call to telegram recording it for the flight recorder. */
+	private <T> T traced(String method, Callable<T> call) throws Exception {
+		final TelegramCall event = new TelegramCall();
+		event.begin();
+		boolean succeeded = false;
+		try {
+			final T result = call.call();
+			succeeded = true;
+			return result;
+		} finally {
+			event.end();
+			if (event.shouldCommit()) {
+				event.correlationId = Tracing.correlationId();
+				event.method = method;
+				event.succeeded = succeeded;
+				event.commit();
+			}
+		}
+	}
+
 }
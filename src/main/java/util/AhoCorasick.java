@@ -0,0 +1,144 @@
+package util;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+
+/**
+ * Aho-Corasick automaton to find all the occurrences of many patterns with a single pass over the text. The matching ignores the case.
+ */
+public class AhoCorasick {
+
+	/** Receives the matches found while scanning */
+	public interface MatchListener {
+		/**
+		 * @param pattern The index of the matched pattern
+		 * @param end     The index after the last character of the match
+		 */
+		void onMatch(int pattern, int end);
+	}
+
+	private final List<String> patterns;
+
+	// transitions of each state, the keys are sorted to use binary search
+	private char[][] keys = new char[1][0];
+	private int[][] targets = new int[1][0];
+	private int[] fail = new int[1];
+	/** The pattern ending in the state, -1 if none */
+	private int[] output = { -1 };
+	/** The nearest state reachable through the failure links that has an output, -1 if none */
+	private int[] outputLink = { -1 };
+	private int states = 1;
+
+	public AhoCorasick(List<String> patterns) {
+		this.patterns = List.copyOf(patterns);
+		for (int i = 0; i < patterns.size(); i++) {
+			addPattern(patterns.get(i).toLowerCase(Locale.ROOT), i);
+		}
+		buildFailureLinks();
+	}
+
+	public List<String> getPatterns() {
+		return patterns;
+	}
+
+	/** Scans the text notifying every occurrence of every pattern. */
+	public void scan(CharSequence text, MatchListener listener) {
+		int state = 0;
+		for (int i = 0; i < text.length(); i++) {
+			final char c = Character.toLowerCase(text.charAt(i));
+
+			int next = transition(state, c);
+			while (next < 0 && state != 0) {
+				state = fail[state];
+				next = transition(state, c);
+			}
+			state = next < 0 ? 0 : next;
+
+			int match = output[state] >= 0 ? state : outputLink[state];
+			while (match >= 0) {
+				listener.onMatch(output[match], i + 1);
+				match = outputLink[match];
+			}
+		}
+	}
+
+	private void addPattern(String pattern, int index) {
+		int state = 0;
+		for (int i = 0; i < pattern.length(); i++) {
+			final char c = pattern.charAt(i);
+			int next = transition(state, c);
+			if (next < 0) {
+				next = newState();
+				addTransition(state, c, next);
+			}
+			state = next;
+		}
+		output[state] = index;
+	}
+
+	/** Breadth first visit of the trie to compute the failure links. */
+	private void buildFailureLinks() {
+		final Queue<Integer> queue = new ArrayDeque<>();
+		for (final int child : targets[0]) {
+			fail[child] = 0;
+			queue.add(child);
+		}
+
+		while (!queue.isEmpty()) {
+			final int state = queue.poll();
+			for (int k = 0; k < keys[state].length; k++) {
+				final char c = keys[state][k];
+				final int child = targets[state][k];
+
+				int f = fail[state];
+				while (f != 0 && transition(f, c) < 0) { f = fail[f]; }
+				final int target = transition(f, c);
+				fail[child] = target < 0 || target == child ? 0 : target;
+
+				outputLink[child] = output[fail[child]] >= 0 ? fail[child] : outputLink[fail[child]];
+				queue.add(child);
+			}
+		}
+	}
+
+	private int transition(int state, char c) {
+		final int k = Arrays.binarySearch(keys[state], c);
+		return k < 0 ? -1 : targets[state][k];
+	}
+
+	private void addTransition(int state, char c, int target) {
+		final int k = -Arrays.binarySearch(keys[state], c) - 1;
+		final char[] newKeys = new char[keys[state].length + 1];
+		final int[] newTargets = new int[newKeys.length];
+
+		System.arraycopy(keys[state], 0, newKeys, 0, k);
+		System.arraycopy(targets[state], 0, newTargets, 0, k);
+		newKeys[k] = c;
+		newTargets[k] = target;
+		System.arraycopy(keys[state], k, newKeys, k + 1, keys[state].length - k);
+		System.arraycopy(targets[state], k, newTargets, k + 1, targets[state].length - k);
+
+		keys[state] = newKeys;
+		targets[state] = newTargets;
+	}
+
+	private int newState() {
+		if (states == keys.length) {
+			final int capacity = states * 2;
+			keys = Arrays.copyOf(keys, capacity);
+			targets = Arrays.copyOf(targets, capacity);
+			fail = Arrays.copyOf(fail, capacity);
+			output = Arrays.copyOf(output, capacity);
+			outputLink = Arrays.copyOf(outputLink, capacity);
+		}
+		keys[states] = new char[0];
+		targets[states] = new int[0];
+		output[states] = -1;
+		outputLink[states] = -1;
+		return states++;
+	}
+
+}
@@ -0,0 +1,268 @@
+package util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+
+import pojo.AlertRule;
+import pojo.AlertRule.Type;
+import pojo.TrackedItem;
+import pojo.TrackedItem.PriceHistory;
+import pojo.TrackedItem.TrackedSize;
+
+/**
+ * Compiles the alert rules of a user into conditions evaluated for each item at every check.
+ * <p>
+ * The conditions work on the prices in cents and on the dates as epoch days, parsed char by char, so that the evaluation doesn't allocate.
+ * <li>the rules of an item are evaluated together with the rules of the user valid for all the items</li>
+ * <li>if no rule applies to an item the {@link Type#DEFAULT} rule is used</li>
+ */
+public class AlertEngine {
+
+	public static final AlertRule DEFAULT_RULE = new AlertRule("default", Type.DEFAULT, 0, null);
+	/** The smaller price changes are not worth a notification, a drop must be strictly greater */
+	public static final int MIN_DROP_CENTS = 100;
+
+	/** A rule compiled in a condition */
+	private interface Condition {
+		boolean test(TrackedItem oldItem, TrackedItem newItem, long today);
+	}
+
+	private record CompiledRule(AlertRule rule, Condition condition) {}
+
+	/** The compiled rules of a user */
+	public static class CompiledAlerts {
+		private final Map<String, CompiledRule[]> byItem;
+		private final CompiledRule[] forAll;
+
+		private CompiledAlerts(Map<String, CompiledRule[]> byItem, CompiledRule[] forAll) {
+			this.byItem = byItem;
+			this.forAll = forAll;
+		}
+
+		/**
+		 * Returns the first rule matched by the change of the item, null if the item doesn't need to be notified.
+		 *
+		 * @param today The current day as epoch day
+		 */
+		public AlertRule match(TrackedItem oldItem, TrackedItem newItem, long today) {
+			final CompiledRule[] rules = byItem.getOrDefault(newItem.getUuid(), forAll);
+			for (int i = 0; i < rules.length; i++) {
+				if (rules[i].condition().test(oldItem, newItem, today)) { return rules[i].rule(); }
+			}
+			return null;
+		}
+	}
+
+	private AlertEngine() {}
+
+	/** Compiles the rules of a user. */
+	public static CompiledAlerts compile(List<AlertRule> rules) {
+		final List<CompiledRule> forAll = new ArrayList<>();
+		final Map<String, List<CompiledRule>> byItem = new HashMap<>();
+		for (final AlertRule rule : rules) {
+			final CompiledRule compiled = new CompiledRule(rule, compile(rule));
+			if (rule.getItemUuid() == null) {
+				forAll.add(compiled);
+			} else {
+				byItem.computeIfAbsent(rule.getItemUuid(), k -> new ArrayList<>()).add(compiled);
+			}
+		}
+		// the item rules also contain the ones for all the items
+		final Map<String, CompiledRule[]> byItemArrays = new HashMap<>();
+		byItem.forEach((uuid, list) -> {
+			final List<CompiledRule> merged = new ArrayList<>(list);
+			merged.addAll(forAll);
+			byItemArrays.put(uuid, merged.toArray(CompiledRule[]::new));
+		});
+
+		// without rules for all the items the default one is used for the items without their own rules
+		if (forAll.isEmpty()) { forAll.add(new CompiledRule(DEFAULT_RULE, compile(DEFAULT_RULE))); }
+
+		return new CompiledAlerts(byItemArrays, forAll.toArray(CompiledRule[]::new));
+	}
+
+	private static Condition compile(AlertRule rule) {
+		return switch (rule.getType()) {
+		case DEFAULT -> (oldItem, newItem, today) -> couponAdded(oldItem, newItem) || anySizeLowered(oldItem, newItem, MIN_DROP_CENTS, 0);
+		case BELOW -> {
+			final int threshold = (int) Math.round(rule.getValue() * 100);
+			yield (oldItem, newItem, today) -> anySizeBelow(oldItem, newItem, threshold);
+		}
+		case DROP -> {
+			final int percentage = (int) Math.round(rule.getValue());
+			yield (oldItem, newItem, today) -> anySizeLowered(oldItem, newItem, 0, percentage);
+		}
+		case LOWEST -> {
+			final int days = (int) rule.getValue();
+			yield (oldItem, newItem, today) -> lowestInDays(oldItem, newItem, today - days);
+		}
+		case RESTOCK -> {
+			final int level = quantityLevel(rule.getQuantity());
+			yield (oldItem, newItem, today) -> anySizeRestocked(oldItem, newItem, level);
+		}
+		case COUPON -> (oldItem, newItem, today) -> couponAdded(oldItem, newItem);
+		};
+	}
+
+	private static boolean couponAdded(TrackedItem oldItem, TrackedItem newItem) {
+		return !oldItem.isHasCoupon() && newItem.isHasCoupon();
+	}
+
+	/** Checks if an available size lowered by more than the specified cents and by at least the percentage. */
+	private static boolean anySizeLowered(TrackedItem oldItem, TrackedItem newItem, int minCents, int minPercentage) {
+		final List<TrackedSize> sizes = newItem.getSizes();
+		for (int i = 0; i < sizes.size(); i++) {
+			final TrackedSize newSize = sizes.get(i);
+			if (!newSize.isAvailable()) { continue; }
+			final TrackedSize oldSize = findSize(oldItem, newSize.getSize());
+			if (oldSize == null || oldSize.getPrice() == null) { continue; }
+
+			final int oldCents = cents(oldSize.getPrice());
+			final int drop = oldCents - cents(newSize.getPrice());
+			if (drop > minCents && drop * 100L >= (long) minPercentage * oldCents) { return true; }
+		}
+		return false;
+	}
+
+	/** Checks if an available size went below the threshold, or lowered again while below it. */
+	private static boolean anySizeBelow(TrackedItem oldItem, TrackedItem newItem, int threshold) {
+		final List<TrackedSize> sizes = newItem.getSizes();
+		for (int i = 0; i < sizes.size(); i++) {
+			final TrackedSize newSize = sizes.get(i);
+			if (!newSize.isAvailable() || newSize.getPrice() == null) { continue; }
+			final int newCents = cents(newSize.getPrice());
+			if (newCents >= threshold) { continue; }
+
+			final TrackedSize oldSize = findSize(oldItem, newSize.getSize());
+			if (oldSize == null || !oldSize.isAvailable() || oldSize.getPrice() == null) { return true; }
+			final int oldCents = cents(oldSize.getPrice());
+			if (oldCents >= threshold || oldCents - newCents > MIN_DROP_CENTS) { return true; }
+		}
+		return false;
+	}
+
+	/** Checks if the item price lowered and it is the lowest since the specified day. */
+	private static boolean lowestInDays(TrackedItem oldItem, TrackedItem newItem, long since) {
+		if (oldItem.getPrice() == null || newItem.getPrice() == null) { return false; }
+		final int newCents = cents(newItem.getPrice());
+		if (cents(oldItem.getPrice()) - newCents <= MIN_DROP_CENTS) { return false; }
+
+		// the last entry is the new price
+		final List<PriceHistory> history = newItem.getPriceHistory();
+		for (int i = 0; i < history.size() - 1; i++) {
+			final PriceHistory entry = history.get(i);
+			if (epochDay(entry.getDate()) >= since && cents(entry.getStringPrice()) <= newCents) { return false; }
+		}
+		return true;
+	}
+
+	/** Checks if a size became available with at least the specified quantity. */
+	private static boolean anySizeRestocked(TrackedItem oldItem, TrackedItem newItem, int level) {
+		final List<TrackedSize> sizes = newItem.getSizes();
+		for (int i = 0; i < sizes.size(); i++) {
+			final TrackedSize newSize = sizes.get(i);
+			if (!newSize.isAvailable() || quantityLevel(newSize.getQuantity()) < level) { continue; }
+
+			final TrackedSize oldSize = findSize(oldItem, newSize.getSize());
+			if (oldSize == null || !oldSize.isAvailable() || quantityLevel(oldSize.getQuantity()) < level) { return true; }
+		}
+		return false;
+	}
+
+	private static TrackedSize findSize(TrackedItem item, String size) {
+		final List<TrackedSize> sizes = item.getSizes();
+		for (int i = 0; i < sizes.size(); i++) {
+			if (sizes.get(i).getSize().equals(size)) { return sizes.get(i); }
+		}
+		return null;
+	}
+
+	/** Checks if the price "12,34" lowered by more than {@link #MIN_DROP_CENTS}. */
+	public static boolean isLowered(String oldPrice, String newPrice) {
+		return cents(oldPrice) - cents(newPrice) > MIN_DROP_CENTS;
+	}
+
+	/** Returns the price "12,34" in cents. */
+	static int cents(String price) {
+		int result = 0;
+		for (int i = 0; i < price.length(); i++) {
+			final char c = price.charAt(i);
+			if (c >= '0' && c <= '9') { result = result * 10 + (c - '0'); }
+		}
+		return result;
+	}
+
+	/** Returns the date "d-m-yyyy" as epoch day. */
+	static long epochDay(String date) {
+		int day = 0;
+		int month = 0;
+		int year = 0;
+		int part = 0;
+		for (int i = 0; i < date.length(); i++) {
+			final char c = date.charAt(i);
+			if (c == '-') {
+				part++;
+			} else if (part == 0) {
+				day = day * 10 + (c - '0');
+			} else if (part == 1) {
+				month = month * 10 + (c - '0');
+			} else {
+				year = year * 10 + (c - '0');
+			}
+		}
+		return epochDay(year, month, day);
+	}
+
+	/** Days from 1970-01-01 of the specified date in the gregorian calendar. */
+	private static long epochDay(long year, long month, long day) {
+		final long y = month <= 2 ? year - 1 : year;
+		final long era = Math.floorDiv(y, 400);
+		final long yearOfEra = y - era * 400;
+		final long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+		final long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097 + dayOfEra - 719468;
+	}
+
+	/** Orders the stock quantities, 0 if unknown. */
+	static int quantityLevel(String quantity) {
+		if (quantity == null) { return 0; }
+		return switch (quantity) {
+		case "ONE" -> 1;
+		case "TWO" -> 2;
+		case "FEW" -> 3;
+		case "MANY" -> 4;
+		default -> 0;
+		};
+	}
+
+	/**
+	 * Parses a rule written by the user, e.g. "below 49,90", "drop 20%", "lowest 90", "restock FEW", "coupon", "default".
+	 */
+	public static Optional<AlertRule> parse(String text) {
+		final String[] split = text.trim().split("\\s+");
+		final String id = UUID.randomUUID().toString().substring(0, 8);
+		try {
+			final Type type = Type.valueOf(split[0].toUpperCase(Locale.ROOT));
+			final String argument = split.length > 1 ? split[1] : null;
+			return switch (type) {
+			case DEFAULT, COUPON -> Optional.of(new AlertRule(id, type, 0, null));
+			case BELOW, DROP, LOWEST -> {
+				final double value = Double.parseDouble(argument.replace("%", "").replace(",", "."));
+				yield value > 0 ? Optional.of(new AlertRule(id, type, value, null)) : Optional.empty();
+			}
+			case RESTOCK -> {
+				final String quantity = argument == null ? "ONE" : argument.toUpperCase(Locale.ROOT);
+				yield quantityLevel(quantity) > 0 ? Optional.of(new AlertRule(id, type, 0, quantity)) : Optional.empty();
+			}
+			};
+		} catch (final IllegalArgumentException | NullPointerException e) {
+			return Optional.empty();
+		}
+	}
+
+}
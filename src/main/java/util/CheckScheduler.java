@@ -0,0 +1,511 @@
+package util;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import pojo.TrackedItem;
+import runner.TelegramBot;
+import util.TimingWheel.Timer;
+
+/**
+ * Checks the products continuously instead of checking all of them at once every period.
+ * <li>every product (an url) is checked once per period, at an offset of the period taken from its url: the checks are spread evenly and the
+ * time between two checks of the same product is always the period</li>
+ * <li>the due products are kept in a {@link TimingWheel} and released at a steady rate, a little higher than the average one so a backlog is
+ * recovered</li>
+ * <li>the users tracking each product are found in the items of the users, the items saved since the last scan are scanned every minute</li>
+ * <li>the due products wait in a queue for each user, served by deficit round robin: at each turn a user can release products for its weight,
+ * so a user with many items doesn't delay the others. A product is charged to its users in equal parts</li>
+ * <li>a user can release at most the fetch budget times its weight in a period, the products of the users over budget wait for the next
+ * period</li>
+ * <li>the products refreshed by the users are released before the due ones, within the same rate and budgets. A product added after the last
+ * scan waits for the next one</li>
+ * <li>the sold out products watched by a user for a restock are also checked at the interval of the restock lane, outside the rate and the
+ * budgets of the users but within the fetches of the lane in a period. Once back in stock they are only checked once per period</li>
+ * <li>when many products of a domain lower their price in a short time, see {@link SaleDetector}, all the products of the domain are also checked
+ * at the interval of the sale lane, within its fetches in a period, until the sale ends</li>
+ * <p>
+ * Everything runs in the thread of the scheduler, the checks must only start the fetch and return. When the first stage of the checks is full
+ * the due products wait in the backlog.
+ */
+public class CheckScheduler {
+
+	private static final long TICK_MILLIS = 1000;
+	private static final long SCAN_MILLIS = 60 * 1000;
+	/** The products released in a tick compared to the average, to recover the checks delayed by a restart or a slow domain */
+	private static final double HEADROOM = 1.25;
+	/** The fetches a user of weight 1 can release at each turn */
+	private static final double QUANTUM = 1;
+	/** The lowest weight, so that a turn always ends in a few rounds */
+	private static final double MIN_WEIGHT = 0.1;
+
+	/** The checks of a user in the last period */
+	public record UserStats(Long userId, double weight, double fetches, double share, long averageWaitMillis, int overBudget) {
+		@Override
+		public String toString() {
+			return "%s [weight %s, %.1f fetches, %.0f%% of the checks, wait %s ms, %s over budget]".formatted(userId, weight, fetches, share * 100,
+					averageWaitMillis, overBudget);
+		}
+	}
+
+	/** The interval of the products checked more often than once per period, and the most fetches they can take in a period */
+	public record FastLane(long intervalMillis, int maxFetches) {}
+
+	/** The checks of a fast lane in the last period */
+	public record LaneStats(String lane, int products, int checks, int overBudget) {
+		@Override
+		public String toString() {
+			return "%s [%s products, %s checks, %s skipped over budget]".formatted(lane, products, checks, overBudget);
+		}
+	}
+
+	/** The products of a fast lane and when they are checked next, with its checks in the current period */
+	private static class Lane {
+		private final String name;
+		private final Map<String, Long> due = new LinkedHashMap<>();
+		private int checks = 0;
+		private int overBudget = 0;
+
+		private Lane(String name) {
+			this.name = name;
+		}
+	}
+
+	/** The state of a user in the round robin and its checks in the current period */
+	private static class UserShare {
+		private double weight = 1;
+		private double deficit = 0;
+		private boolean inTurn = false;
+		private final ArrayDeque<String> queue = new ArrayDeque<>();
+
+		private double fetches = 0;
+		private long waitMillis = 0;
+		private int released = 0;
+		private int overBudget = 0;
+	}
+
+	/** A product the user asked to check now, and when */
+	private record Refresh(Long userId, String url, long requested) {}
+
+	/** Starts the check of a product, returns false if the checks are behind and the product has to wait */
+	public interface ProductCheck {
+		boolean check(String url, Set<Long> users);
+	}
+
+	private final LogicUtility utility;
+	private final TelegramBot bot;
+	private final long periodMillis;
+	private final ProductCheck check;
+	private final Runnable endOfRound;
+
+	private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+	private final TimingWheel<String> wheel;
+	private final Map<String, Timer<String>> timers = new HashMap<>();
+	private final Map<String, Set<Long>> usersByUrl = new HashMap<>();
+	private final Map<Long, Set<String>> urlsByUser = new HashMap<>();
+	private final Map<Long, Long> scannedVersions = new HashMap<>();
+	/** The due products and when they were due, a product late by a whole period is not added twice */
+	private final Map<String, Long> ready = new HashMap<>();
+	private final Map<Long, UserShare> shares = new HashMap<>();
+	/** The users with due products, in the order of the round robin */
+	private final ArrayDeque<Long> active = new ArrayDeque<>();
+	private List<UserStats> lastStats = List.of();
+	/** Added by the bot threads, moved to the priority lane by the scheduler thread */
+	private final Queue<Refresh> refreshRequests = new ConcurrentLinkedQueue<>();
+	private final Map<String, Refresh> priority = new LinkedHashMap<>();
+	/** The users over their fetch budget in the period, read by the bot threads */
+	private volatile Set<Long> overBudget = Set.of();
+	/** The sold out products watched for a restock */
+	private final Lane restockLane = new Lane("restock");
+	private final Map<Long, Set<String>> restockByUser = new HashMap<>();
+	/** The products of the domains on sale */
+	private final Lane saleLane = new Lane("sale");
+	private final SaleDetector sales = new SaleDetector();
+	private Set<String> saleDomains = Set.of();
+	private List<LaneStats> lastLaneStats = List.of();
+
+	private double credit = 0;
+	private long lastScan = 0;
+	private long roundStart;
+	private int released = 0;
+
+	/**
+	 * @param check      Starts the check of a product, called when the product is due
+	 * @param endOfRound Called once every period, in the thread of the scheduler
+	 */
+	public CheckScheduler(LogicUtility utility, TelegramBot bot, long periodMillis, ProductCheck check, Runnable endOfRound) {
+		this.utility = utility;
+		this.bot = bot;
+		this.periodMillis = periodMillis;
+		this.check = check;
+		this.endOfRound = endOfRound;
+		final long now = System.currentTimeMillis();
+		wheel = new TimingWheel<>(TICK_MILLIS, now);
+		roundStart = now;
+	}
+
+	public void start() {
+		executor.scheduleAtFixedRate(this::tick, 0, TICK_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	private void tick() {
+		try {
+			final long now = System.currentTimeMillis();
+			if (now - lastScan >= SCAN_MILLIS) {
+				scan();
+				updateSaleLane(now);
+				lastScan = now;
+			}
+
+			wheel.advance(now, this::due);
+			for (Refresh refresh = refreshRequests.poll(); refresh != null; refresh = refreshRequests.poll()) {
+				priority.putIfAbsent(refresh.url(), refresh);
+			}
+			releaseLane(restockLane, utility.getRestockLane(), now);
+			releaseLane(saleLane, utility.getSaleLane(), now);
+			release();
+			updateOverBudget();
+
+			if (now - roundStart >= periodMillis) {
+				roundStart = now;
+				lastStats = drainUserStats();
+				lastLaneStats = drainLaneStats();
+				endOfRound.run();
+			}
+		} catch (final Throwable t) {
+			// an exception would stop the scheduler
+			utility.insertErrorLog(t, bot);
+		}
+	}
+
+	/** Schedules the products of the users whose items changed, and drops the products not tracked anymore. */
+	private void scan() throws Exception {
+		final List<Long> userIds = utility.getUserIds();
+		for (final Long userId : userIds) {
+			// the weight is changed by the admin without saving the items
+			share(userId).weight = Math.max(MIN_WEIGHT, utility.getUserSettings(userId).getWeight());
+
+			final Long version = utility.getItemsVersion(userId);
+			if (version.equals(scannedVersions.get(userId))) { continue; }
+			scannedVersions.put(userId, version);
+
+			final List<TrackedItem> items = utility.getItemStore(userId).asList();
+			final Set<String> urls = items.stream().map(TrackedItem::getUrl).collect(Collectors.toSet());
+			final Set<String> old = urlsByUser.getOrDefault(userId, Set.of());
+			old.stream().filter(url -> !urls.contains(url)).forEach(url -> untrack(url, userId));
+			urls.stream().filter(url -> !old.contains(url)).forEach(url -> track(url, userId));
+			urlsByUser.put(userId, urls);
+			restockByUser.put(userId, items.stream().filter(i -> i.isWatchRestock() && !i.isAvailable()).map(TrackedItem::getUrl).collect(Collectors.toSet()));
+		}
+
+		// the deleted users
+		final Set<Long> existing = new HashSet<>(userIds);
+		for (final Long userId : Set.copyOf(urlsByUser.keySet())) {
+			if (existing.contains(userId)) { continue; }
+			urlsByUser.remove(userId).forEach(url -> untrack(url, userId));
+			scannedVersions.remove(userId);
+			restockByUser.remove(userId);
+			shares.remove(userId);
+			active.remove(userId);
+		}
+
+		// the products back in stock leave the restock lane, the ones sold out since the last scan join it
+		final Set<String> watched = restockByUser.values().stream().flatMap(Set::stream).collect(Collectors.toSet());
+		restockLane.due.keySet().retainAll(watched);
+		final long next = System.currentTimeMillis() + utility.getRestockLane().intervalMillis();
+		watched.forEach(url -> restockLane.due.putIfAbsent(url, next));
+	}
+
+	/** Adds the products of the domains gone on sale to the sale lane, spread over its interval, and drops the ones of the sales ended. */
+	private void updateSaleLane(long now) {
+		final Set<String> domains = sales.update(utility.getSaleThresholds(), now);
+		if (!domains.equals(saleDomains)) {
+			utility.insertLog("Domains on sale: %s, before: %s".formatted(domains, saleDomains));
+			saleDomains = domains;
+		}
+
+		saleLane.due.keySet().removeIf(url -> !domains.contains(URI.create(url).getHost()));
+		if (domains.isEmpty()) { return; }
+		final long interval = utility.getSaleLane().intervalMillis();
+		for (final String url : timers.keySet()) {
+			if (!saleLane.due.containsKey(url) && domains.contains(URI.create(url).getHost())) { saleLane.due.put(url, now + offset(url, interval)); }
+		}
+	}
+
+	/** Records the check of a product, a domain goes on sale when many of its products lower their price. Called by any thread. */
+	public void priceChecked(String url, boolean priceDropped) {
+		sales.record(URI.create(url).getHost(), priceDropped, System.currentTimeMillis());
+	}
+
+	private void track(String url, Long userId) {
+		usersByUrl.computeIfAbsent(url, k -> new HashSet<>()).add(userId);
+		if (!timers.containsKey(url)) { timers.put(url, wheel.schedule(url, nextCheck(url, System.currentTimeMillis()))); }
+	}
+
+	private void untrack(String url, Long userId) {
+		final Set<Long> users = usersByUrl.get(url);
+		if (users == null) { return; }
+		users.remove(userId);
+		if (!users.isEmpty()) { return; }
+
+		usersByUrl.remove(url);
+		final Timer<String> timer = timers.remove(url);
+		if (timer != null) { wheel.cancel(timer); }
+	}
+
+	/** The product is due, it's checked as soon as the rate and its users allow and scheduled for the next period. */
+	private void due(String url) {
+		timers.put(url, wheel.schedule(url, nextCheck(url, wheel.getTime())));
+		final Set<Long> users = usersByUrl.get(url);
+		if (users == null) { return; }
+		ready.putIfAbsent(url, System.currentTimeMillis());
+
+		// in the queue of each user, the first one to reach it releases it and the others drop it. A product still waiting is queued again, in
+		// case the users that queued it are gone
+		for (final Long userId : users) {
+			final UserShare share = share(userId);
+			if (share.queue.isEmpty()) { active.addLast(userId); }
+			share.queue.addLast(url);
+		}
+	}
+
+	/**
+	 * Checks the products of the user before the due ones. The products not tracked by the user at the last scan of its items wait for the
+	 * next scan, they are dropped if still not tracked. Called by any thread.
+	 */
+	public void refresh(Long userId, Collection<String> urls) {
+		final long now = System.currentTimeMillis();
+		urls.forEach(url -> refreshRequests.add(new Refresh(userId, url, now)));
+	}
+
+	/** Indicates if the user released all the fetches of its budget in the period, its refreshes would wait for the next one. Called by any thread. */
+	public boolean isOverBudget(Long userId) {
+		return overBudget.contains(userId);
+	}
+
+	/**
+	 * Releases the products refreshed by the users, then the due products in the order of the round robin, at most the average rate plus the
+	 * headroom.
+	 */
+	private void release() {
+		final double rate = Math.max(1, timers.size() * HEADROOM * TICK_MILLIS / periodMillis);
+		credit = Math.min(rate, credit + rate);
+		final int fetchBudget = utility.getFetchBudget();
+		final Long adminId = utility.getAdminId();
+
+		final Iterator<Refresh> refreshes = priority.values().iterator();
+		while (credit >= 1 && refreshes.hasNext()) {
+			final Refresh refresh = refreshes.next();
+			final Set<Long> users = usersByUrl.get(refresh.url());
+			final UserShare share = share(refresh.userId());
+			if (users == null || !users.contains(refresh.userId())) {
+				// an item added after the last scan is known at the next one, the refresh waits for it
+				if (refresh.requested() < lastScan) { refreshes.remove(); }
+				continue;
+			}
+			if (fetchBudget > 0 && share.fetches >= fetchBudget * share.weight && !refresh.userId().equals(adminId)) {
+				// the bot doesn't refresh for the users over budget, the budget was used up since the request
+				refreshes.remove();
+				continue;
+			}
+
+			if (!check.check(refresh.url(), Set.copyOf(users))) { return; }
+			refreshes.remove();
+			// a due product just refreshed is not checked again, its queues drop it
+			final Long dueSince = ready.remove(refresh.url());
+			charge(users, dueSince == null ? 0 : System.currentTimeMillis() - dueSince);
+			credit--;
+			released++;
+		}
+
+		while (credit >= 1 && !active.isEmpty()) {
+			final Long userId = active.peekFirst();
+			final UserShare share = share(userId);
+
+			// the products already released through another user, or not tracked anymore
+			while (!share.queue.isEmpty() && (!ready.containsKey(share.queue.peekFirst()) || !usersByUrl.containsKey(share.queue.peekFirst()))) {
+				ready.remove(share.queue.pollFirst());
+			}
+			if (share.queue.isEmpty()) {
+				// the unused deficit is lost, the fetches charged by the other users are not
+				active.pollFirst();
+				share.deficit = Math.min(0, share.deficit);
+				share.inTurn = false;
+				continue;
+			}
+			if (fetchBudget > 0 && share.fetches >= fetchBudget * share.weight && !userId.equals(adminId)) {
+				skipOverBudget(userId, share, fetchBudget);
+				continue;
+			}
+
+			if (!share.inTurn) {
+				share.deficit += QUANTUM * share.weight;
+				share.inTurn = true;
+			}
+			final String url = share.queue.peekFirst();
+			final Set<Long> users = usersByUrl.get(url);
+			final double cost = 1.0 / users.size();
+			if (share.deficit < cost) {
+				// the turn is over, the next user
+				share.inTurn = false;
+				active.addLast(active.pollFirst());
+				continue;
+			}
+
+			// the checks are behind, the product is released again at the next tick
+			if (!check.check(url, Set.copyOf(users))) { break; }
+			share.queue.pollFirst();
+			charge(users, System.currentTimeMillis() - ready.remove(url));
+			credit--;
+			released++;
+		}
+	}
+
+	/** Releases the due products of a fast lane, those over the budget of the lane wait for their check of the period. */
+	private void releaseLane(Lane lane, FastLane settings, long now) {
+		for (final Map.Entry<String, Long> entry : lane.due.entrySet()) {
+			final Set<Long> users = usersByUrl.get(entry.getKey());
+			if (entry.getValue() > now || users == null) { continue; }
+
+			if (lane.checks >= settings.maxFetches()) {
+				lane.overBudget++;
+			} else {
+				// the checks are behind, the product is released again at the next tick
+				if (!check.check(entry.getKey(), Set.copyOf(users))) { return; }
+				lane.checks++;
+			}
+			entry.setValue(now + settings.intervalMillis());
+		}
+	}
+
+	/** Charges the fetch of a product to its users in equal parts. */
+	private void charge(Set<Long> users, long waited) {
+		final double cost = 1.0 / users.size();
+		for (final Long user : users) {
+			final UserShare charged = share(user);
+			charged.deficit -= cost;
+			charged.fetches += cost;
+			charged.waitMillis += waited;
+			charged.released++;
+		}
+	}
+
+	/** Drops the due products of the user over budget, those tracked by other users within their budget are still released by them. */
+	private void skipOverBudget(Long userId, UserShare share, int fetchBudget) {
+		active.remove(userId);
+		share.inTurn = false;
+		for (final String url : share.queue) {
+			final Set<Long> users = usersByUrl.get(url);
+			if (users != null && users.stream().allMatch(u -> share(u).fetches >= fetchBudget * share(u).weight) && ready.remove(url) != null) {
+				share.overBudget++;
+			}
+		}
+		share.queue.clear();
+	}
+
+	/** Updates the users over budget for the bot threads. */
+	private void updateOverBudget() {
+		final int fetchBudget = utility.getFetchBudget();
+		final Long adminId = utility.getAdminId();
+		overBudget = fetchBudget <= 0 ? Set.of() : shares.entrySet().stream()//
+				.filter(e -> e.getValue().fetches >= fetchBudget * e.getValue().weight && !e.getKey().equals(adminId))//
+				.map(Map.Entry::getKey).collect(Collectors.toUnmodifiableSet());
+	}
+
+	private UserShare share(Long userId) {
+		return shares.computeIfAbsent(userId, k -> new UserShare());
+	}
+
+	/** Returns the checks of each user since the last call, the users with the most fetches first, and starts a new period of the budgets. */
+	private List<UserStats> drainUserStats() {
+		final double total = shares.values().stream().mapToDouble(share -> share.fetches).sum();
+		final List<UserStats> result = new ArrayList<>();
+		shares.forEach((userId, share) -> {
+			result.add(new UserStats(userId, share.weight, share.fetches, total == 0 ? 0 : share.fetches / total,
+					share.released == 0 ? 0 : share.waitMillis / share.released, share.overBudget));
+			// the fetches charged by the other users are forgiven in the new period
+			share.deficit = Math.max(0, share.deficit);
+			share.fetches = 0;
+			share.waitMillis = 0;
+			share.released = 0;
+			share.overBudget = 0;
+		});
+		result.sort(Comparator.comparingDouble(UserStats::fetches).reversed());
+		return result;
+	}
+
+	/** Returns the checks of each user in the last period, the users with the most fetches first. */
+	public List<UserStats> getUserStats() {
+		return lastStats;
+	}
+
+	/** Returns the checks of the fast lanes since the last call, and starts a new period of their budgets. */
+	private List<LaneStats> drainLaneStats() {
+		final List<LaneStats> result = new ArrayList<>();
+		for (final Lane lane : List.of(restockLane, saleLane)) {
+			result.add(new LaneStats(lane.name, lane.due.size(), lane.checks, lane.overBudget));
+			lane.checks = 0;
+			lane.overBudget = 0;
+		}
+		return result;
+	}
+
+	/** Returns the checks of the fast lanes in the last period. */
+	public List<LaneStats> getLaneStats() {
+		return lastLaneStats;
+	}
+
+	/** Returns the next time of the product after the specified one, always at the same offset of the period. */
+	private long nextCheck(String url, long after) {
+		// the offset is a whole tick, so the time of a due product is its offset and the next one is in the next period
+		final long next = after - Math.floorMod(after, periodMillis) + offset(url, periodMillis);
+		return next > after ? next : next + periodMillis;
+	}
+
+	/** Returns the offset of the product in the span, a whole number of ticks taken from its url so the products are spread evenly. */
+	private static long offset(String url, long span) {
+		final long ticks = Math.max(1, span / TICK_MILLIS);
+		return Math.floorMod(UUID.nameUUIDFromBytes(url.getBytes(StandardCharsets.UTF_8)).getLeastSignificantBits(), ticks) * TICK_MILLIS;
+	}
+
+	/** Returns the number of products checked since the last call. */
+	public int drainReleased() {
+		final int result = released;
+		released = 0;
+		return result;
+	}
+
+	/** Returns the number of products scheduled. */
+	public int getProducts() {
+		return timers.size();
+	}
+
+	/** Returns the number of due products waiting to be checked. */
+	public int getBacklog() {
+		return ready.size();
+	}
+
+	@Override
+	public String toString() {
+		return "CheckScheduler [products=" + timers.size() + ", users=" + urlsByUser.size() + ", backlog=" + ready.size() + "]";
+	}
+
+}
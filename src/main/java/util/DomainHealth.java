@@ -0,0 +1,131 @@
+package util;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import exceptions.TemporaryFetchException;
+
+/**
+ * Health of a single zalando domain, used to limit the concurrent requests sent to it.
+ * <li>the limit grows by one request every full window of successes (additive increase)</li>
+ * <li>the limit is halved on rate limits, challenge pages, server errors and timeouts (multiplicative decrease)</li>
+ * <li>after too many consecutive failures the breaker opens and no request is sent until the cooldown expires</li>
+ * <li>when the cooldown expires a single probe request is allowed, if it succeeds the breaker closes</li>
+ */
+public class DomainHealth {
+
+	private static final double MIN_LIMIT = 1;
+	private static final double MAX_LIMIT = 8;
+	private static final double INITIAL_LIMIT = 2;
+
+	private static final int FAILURES_TO_OPEN = 5;
+	private static final long MIN_COOLDOWN_MILLIS = 60 * 1000;
+	private static final long MAX_COOLDOWN_MILLIS = 10 * 60 * 1000;
+
+	private static final Map<String, DomainHealth> DOMAINS = new ConcurrentHashMap<>();
+
+	private final String domain;
+
+	private double limit = INITIAL_LIMIT;
+	private int inFlight = 0;
+	private int consecutiveFailures = 0;
+
+	private long openUntil = 0;
+	private long cooldown = MIN_COOLDOWN_MILLIS;
+	private boolean halfOpen = false;
+
+	private DomainHealth(String domain) {
+		this.domain = domain;
+	}
+
+	/** Returns the health of the domain of the specified url. */
+	public static DomainHealth of(String url) {
+		final String host = URI.create(url).getHost();
+		return DOMAINS.computeIfAbsent(host == null ? "" : host, DomainHealth::new);
+	}
+
+	/** Returns the health of all the domains contacted so far. */
+	public static Map<String, DomainHealth> all() {
+		return Map.copyOf(DOMAINS);
+	}
+
+	public String getDomain() {
+		return domain;
+	}
+
+	/**
+	 * Waits for a free request slot on the domain.
+	 *
+	 * @throws TemporaryFetchException if the breaker is open.
+	 */
+	public synchronized void acquire() throws InterruptedException, TemporaryFetchException {
+		while (true) {
+			final long now = System.currentTimeMillis();
+			if (openUntil > now) {
+				throw new TemporaryFetchException("Breaker open for %s".formatted(domain), openUntil - now);
+			}
+
+			// the cooldown expired: let a single probe through
+			if (openUntil != 0) {
+				openUntil = 0;
+				halfOpen = true;
+			}
+
+			final int allowed = halfOpen ? 1 : (int) limit;
+			if (inFlight < allowed) {
+				inFlight++;
+				return;
+			}
+			wait(1000);
+		}
+	}
+
+	/** Frees the slot taken with {@link #acquire()}. */
+	public synchronized void release() {
+		inFlight--;
+		notifyAll();
+	}
+
+	/** Records a successful request. */
+	public synchronized void onSuccess() {
+		consecutiveFailures = 0;
+		if (halfOpen) {
+			halfOpen = false;
+			cooldown = MIN_COOLDOWN_MILLIS;
+		}
+		limit = Math.min(MAX_LIMIT, limit + 1 / limit);
+		notifyAll();
+	}
+
+	/** Records a failed request, opening the breaker if the domain keeps failing. */
+	public synchronized void onFailure() {
+		consecutiveFailures++;
+		limit = Math.max(MIN_LIMIT, limit / 2);
+
+		if (halfOpen || consecutiveFailures >= FAILURES_TO_OPEN) {
+			// every time the probe fails the cooldown doubles
+			if (halfOpen) { cooldown = Math.min(MAX_COOLDOWN_MILLIS, cooldown * 2); }
+			halfOpen = false;
+			openUntil = System.currentTimeMillis() + cooldown;
+			consecutiveFailures = 0;
+		}
+		notifyAll();
+	}
+
+	/** Indicates if the breaker is currently rejecting requests. */
+	public synchronized boolean isOpen() {
+		return openUntil > System.currentTimeMillis();
+	}
+
+	/** Returns the current number of concurrent requests allowed. */
+	public synchronized int getLimit() {
+		return (int) limit;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "DomainHealth [domain=" + domain + ", limit=" + limit + ", inFlight=" + inFlight + ", open=" + isOpen() + "]";
+	}
+
+}
@@ -0,0 +1,88 @@
+package util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+import pojo.TrackedItem;
+
+/**
+ * The freshness of what the users see: how long ago each item was last read from its page, and how long the notifications took from the
+ * check that found the change to the message sent.
+ * <p>
+ * Both are reported as distributions at the end of every period, the admin is alerted when the p95 of the staleness goes over the objective
+ * of the config and again when it's back under it.
+ */
+public class Freshness {
+
+	/** The delivery times kept in a period, enough for the percentiles */
+	private static final int MAX_DELIVERIES = 10_000;
+
+	private final List<Long> deliveries = new ArrayList<>();
+	private boolean overObjective = false;
+
+	/** The distribution of a duration, in milliseconds */
+	public record Percentiles(int count, long p50, long p95, long max) {
+
+		public static final Percentiles EMPTY = new Percentiles(0, 0, 0, 0);
+
+		/** Returns the nearest rank percentiles of the values. */
+		public static Percentiles of(List<Long> values) {
+			if (values.isEmpty()) { return EMPTY; }
+			final long[] sorted = values.stream().mapToLong(Long::longValue).sorted().toArray();
+			return new Percentiles(sorted.length, rank(sorted, 50), rank(sorted, 95), sorted[sorted.length - 1]);
+		}
+
+		private static long rank(long[] sorted, int percentile) {
+			return sorted[Math.max(0, (int) Math.ceil(sorted.length * percentile / 100.0) - 1)];
+		}
+
+		@Override
+		public String toString() {
+			return "%s - p50 %s, p95 %s, max %s".formatted(count, format(p50), format(p95), format(max));
+		}
+	}
+
+	/** Records a notification sent, the check that found the change created it at the specified time. */
+	public synchronized void delivered(long createdAt, long now) {
+		if (deliveries.size() < MAX_DELIVERIES) { deliveries.add(Math.max(0, now - createdAt)); }
+	}
+
+	/** Returns the distribution of the delivery times since the last call. */
+	public synchronized Percentiles drainDeliveries() {
+		final Percentiles result = Percentiles.of(deliveries);
+		deliveries.clear();
+		return result;
+	}
+
+	/** Returns the distribution of the time since the items were last read from their pages, the items never read since are left out. */
+	public static Percentiles staleness(Collection<TrackedItem> items, long now) {
+		final List<Long> values = new ArrayList<>(items.size());
+		for (final TrackedItem item : items) {
+			if (item.getLastChecked() > 0) { values.add(Math.max(0, now - item.getLastChecked())); }
+		}
+		return Percentiles.of(values);
+	}
+
+	/** Returns the message for the admin when the staleness goes over the objective or back under it, empty if nothing changed. */
+	public synchronized Optional<String> checkObjective(Percentiles staleness, long objectiveMillis) {
+		if (staleness.count() == 0) { return Optional.empty(); }
+
+		final boolean over = staleness.p95() > objectiveMillis;
+		if (over == overObjective) { return Optional.empty(); }
+		overObjective = over;
+		return Optional.of(over//
+				? "\u26A0\uFE0F The items are stale: p95 %s over the objective of %s (%s items, max %s)".formatted(format(staleness.p95()),
+						format(objectiveMillis), staleness.count(), format(staleness.max()))
+				: "\u2705 The items are fresh again: p95 %s under the objective of %s".formatted(format(staleness.p95()), format(objectiveMillis)));
+	}
+
+	/** Formats the milliseconds as seconds, minutes or hours. */
+	static String format(long millis) {
+		if (millis < 60_000) { return "%ss".formatted(millis / 1000); }
+		if (millis < 3_600_000) { return "%sm".formatted(millis / 60_000); }
+		return "%sh%sm".formatted(millis / 3_600_000, millis % 3_600_000 / 60_000);
+	}
+
+}
@@ -0,0 +1,76 @@
+package util;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+import pojo.TrackedItem.PriceHistory;
+
+/**
+ * The retention of the price histories: every change is kept for the recent days, the older ones are compacted.
+ * <li>from {@link #fullDays} days ago to {@link #dailyDays} days ago, the lowest, the highest and the last price of each day</li>
+ * <li>before {@link #dailyDays} days ago, the lowest, the highest and the last price of each week</li>
+ * <p>
+ * The entries kept are the original ones with their dates, so the lowest and the highest price of each day or week, and of the whole history,
+ * don't change. The last price of a period is kept so that the price at the start of the next period is still known.
+ */
+public record HistoryRetention(int fullDays, int dailyDays) {
+
+	public static final HistoryRetention DEFAULT = new HistoryRetention(180, 730);
+
+	/** Returns the compacted entries, the same list if nothing needs to be compacted. */
+	public List<PriceHistory> compact(List<PriceHistory> entries, LocalDate today) {
+		final LocalDate fullFrom = today.minusDays(fullDays);
+		final LocalDate dailyFrom = today.minusDays(dailyDays);
+		if (entries.isEmpty() || !entries.get(0).getLocalDate().isBefore(fullFrom)) { return entries; }
+
+		final List<PriceHistory> result = new ArrayList<>();
+		int start = 0;
+		while (start < entries.size()) {
+			final LocalDate period = period(entries.get(start).getLocalDate(), fullFrom, dailyFrom);
+			if (period == null) {
+				// recent, everything is kept
+				addChange(result, entries.get(start));
+				start++;
+				continue;
+			}
+
+			int end = start + 1;
+			while (end < entries.size() && period.equals(period(entries.get(end).getLocalDate(), fullFrom, dailyFrom))) {
+				end++;
+			}
+			keepExtremes(result, entries.subList(start, end));
+			start = end;
+		}
+		return result.size() == entries.size() ? entries : result;
+	}
+
+	/** Returns the first day of the period compacted together, null if the entries of the date are all kept. */
+	private static LocalDate period(LocalDate date, LocalDate fullFrom, LocalDate dailyFrom) {
+		if (!date.isBefore(fullFrom)) { return null; }
+		if (!date.isBefore(dailyFrom)) { return date; }
+		// the days of a week across the two periods after the start of the daily one are compacted by day
+		return date.with(DayOfWeek.MONDAY);
+	}
+
+	/** Adds the first lowest, the first highest and the last entry of the period, in the order they happened. */
+	private static void keepExtremes(List<PriceHistory> result, List<PriceHistory> period) {
+		int lowest = 0;
+		int highest = 0;
+		for (int i = 1; i < period.size(); i++) {
+			if (period.get(i).getPrice() < period.get(lowest).getPrice()) { lowest = i; }
+			if (period.get(i).getPrice() > period.get(highest).getPrice()) { highest = i; }
+		}
+		for (int i = 0; i < period.size(); i++) {
+			if (i == lowest || i == highest || i == period.size() - 1) { addChange(result, period.get(i)); }
+		}
+	}
+
+	/** Adds the entry if it changes the price, as {@link pojo.ProductHistory#record} does. */
+	private static void addChange(List<PriceHistory> result, PriceHistory entry) {
+		if (!result.isEmpty() && result.get(result.size() - 1).getStringPrice().equals(entry.getStringPrice())) { return; }
+		result.add(entry);
+	}
+
+}
@@ -0,0 +1,128 @@
+package util;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import exceptions.TemporaryFetchException;
+import util.LogicUtility.FetchedPage;
+import util.LogicUtility.PageBody;
+import util.Tracing.Scope;
+
+/**
+ * Fetches the pages of the items concurrently, a page is fetched once for all the users tracking it. The number of requests per domain is limited
+ * by {@link DomainHealth}.
+ * <p>
+ * The download and the reading of the pages are two {@link Stage}s, "fetch" and "parse", with their own threads: the fetch threads wait for
+ * the network and the domains, the parse threads use the cpu.
+ * <p>
+ * A page requested while it is being fetched joins the fetch in progress instead of fetching it again.
+ * <p>
+ * Pages that fail with a {@link TemporaryFetchException} are put in a retry queue and fetched again with an exponential backoff, so that a one-off
+ * error doesn't make the item wait for the next check.
+ */
+public class ItemFetcher {
+
+	private static final int THREADS = 16;
+	private static final int QUEUE_CAPACITY = 256;
+	private static final int MAX_ATTEMPTS = 4;
+	private static final long BASE_BACKOFF_MILLIS = 5 * 1000;
+
+	/** Retries scheduled further than this are given up, the item will be checked in the next cycle */
+	private static final long MAX_BACKOFF_MILLIS = 5 * 60 * 1000;
+
+	private final LogicUtility utility;
+
+	private final Stage fetchStage;
+	private final Stage parseStage;
+	private final ScheduledExecutorService retryQueue = Executors.newSingleThreadScheduledExecutor();
+
+	private final AtomicInteger retries = new AtomicInteger();
+	private final AtomicInteger joined = new AtomicInteger();
+	/** The pages being fetched, with their retries */
+	private final Map<String, CompletableFuture<FetchedPage>> inFlight = new ConcurrentHashMap<>();
+
+	public ItemFetcher(LogicUtility utility) {
+		this.utility = utility;
+		fetchStage = new Stage("fetch", utility.getStageThreads("fetch", THREADS), QUEUE_CAPACITY);
+		parseStage = new Stage("parse", utility.getStageThreads("parse", Runtime.getRuntime().availableProcessors()), QUEUE_CAPACITY);
+	}
+
+	/**
+	 * Fetches the page in background, or returns the fetch in progress of the same page. The future completes with the same exceptions of
+	 * {@link LogicUtility#fetchPage}.
+	 */
+	public CompletableFuture<FetchedPage> fetch(String url) {
+		final CompletableFuture<FetchedPage> result = new CompletableFuture<>();
+		final CompletableFuture<FetchedPage> running = inFlight.putIfAbsent(url, result);
+		if (running != null) {
+			joined.incrementAndGet();
+			return running;
+		}
+		result.whenComplete((page, error) -> inFlight.remove(url, result));
+		submit(url, Tracing.child(url), 1, result);
+		return result;
+	}
+
+	/** Fetches the page in background without retries, for the pages that can be missed, e.g. the other stores of a comparison. */
+	public CompletableFuture<FetchedPage> fetchOnce(String url) {
+		final CompletableFuture<FetchedPage> result = new CompletableFuture<>();
+		submit(url, Tracing.child(url), MAX_ATTEMPTS, result);
+		return result;
+	}
+
+	/** Indicates if a page can be fetched without waiting for a free place in the queue. */
+	public boolean hasRoom() {
+		return fetchStage.hasRoom();
+	}
+
+	private void submit(String url, String correlationId, int attempt, CompletableFuture<FetchedPage> result) {
+		fetchStage.execute(() -> {
+			try (Scope scope = Tracing.open(correlationId)) {
+				final PageBody body = utility.fetchBody(url);
+				// waits if the parse threads are behind
+				parseStage.execute(() -> parse(body, correlationId, attempt, result));
+			} catch (final TemporaryFetchException e) {
+				retry(url, correlationId, attempt, result, e);
+			} catch (final Throwable t) {
+				result.completeExceptionally(t);
+			}
+		});
+	}
+
+	private void parse(PageBody body, String correlationId, int attempt, CompletableFuture<FetchedPage> result) {
+		try (Scope scope = Tracing.open(correlationId)) {
+			result.complete(utility.parsePage(body));
+		} catch (final TemporaryFetchException e) {
+			retry(body.url(), correlationId, attempt, result, e);
+		} catch (final Throwable t) {
+			result.completeExceptionally(t);
+		}
+	}
+
+	private void retry(String url, String correlationId, int attempt, CompletableFuture<FetchedPage> result, TemporaryFetchException e) {
+		// 5s, 10s, 20s... unless the domain asked for more
+		final long backoff = Math.max(BASE_BACKOFF_MILLIS << (attempt - 1), e.getRetryAfterMillis());
+		if (attempt >= MAX_ATTEMPTS || backoff > MAX_BACKOFF_MILLIS) {
+			result.completeExceptionally(e);
+			return;
+		}
+		retries.incrementAndGet();
+		retryQueue.schedule(() -> submit(url, correlationId, attempt + 1, result), backoff, TimeUnit.MILLISECONDS);
+	}
+
+	/** Returns the number of retries scheduled since the last call. */
+	public int drainRetryCount() {
+		return retries.getAndSet(0);
+	}
+
+	/** Returns the number of fetches that joined one in progress since the last call. */
+	public int drainJoinedCount() {
+		return joined.getAndSet(0);
+	}
+
+}
@@ -0,0 +1,80 @@
+package util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import pojo.Offer;
+import pojo.Size;
+import pojo.TrackedItem;
+import pojo.TrackedItem.PriceHistory;
+import util.Tracing.PersistenceWrite;
+
+/**
+ * The shared gson instances, with the streaming adapters of the classes read and written the most, and the methods to read and write the
+ * json files without building the whole json in memory.
+ */
+public class JsonFiles {
+
+	/** Compact output, used also to read */
+	public static final Gson GSON = builder().create();
+	/** Indented output, easier to read while debugging */
+	public static final Gson PRETTY_GSON = builder().setPrettyPrinting().create();
+
+	private JsonFiles() {}
+
+	private static GsonBuilder builder() {
+		return new GsonBuilder()//
+				.registerTypeAdapter(TrackedItem.class, new TrackedItem.Adapter())//
+				.registerTypeAdapter(PriceHistory.class, new PriceHistory.Adapter())//
+				.registerTypeAdapter(Size.class, new Size.Adapter())//
+				.registerTypeAdapter(Offer.class, new Offer.Adapter());
+	}
+
+	/** Reads the json file streaming from the file. */
+	public static <T> T read(File file, Type type) throws IOException {
+		try (Reader reader = Files.newBufferedReader(file.toPath(), Charset.defaultCharset())) {
+			return GSON.fromJson(reader, type);
+		}
+	}
+
+	/**
+	 * Writes the value streaming to the file, creating the folders if needed. The value is written to a temporary file that then replaces the
+	 * old one, so the readers never see a file half written.
+	 */
+	public static void write(File file, Object value, Gson gson) throws IOException {
+		final PersistenceWrite event = new PersistenceWrite();
+		event.begin();
+
+		final Path folder = file.getAbsoluteFile().getParentFile().toPath();
+		Files.createDirectories(folder);
+		// a temporary file for each write, the same file can be saved by more threads
+		final Path temp = Files.createTempFile(folder, file.getName(), ".tmp");
+		try {
+			try (Writer writer = Files.newBufferedWriter(temp, Charset.defaultCharset())) {
+				gson.toJson(value, writer);
+			}
+			Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+
+		event.end();
+		if (event.shouldCommit()) {
+			event.correlationId = Tracing.correlationId();
+			event.file = file.getPath();
+			event.bytes = file.length();
+			event.commit();
+		}
+	}
+
+}
@@ -4,25 +4,34 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Type;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.net.http.HttpResponse.BodyHandlers;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Stream;
 
@@ -31,19 +40,36 @@ import org.telegram.telegrambots.meta.api.objects.User;
 import org.yaml.snakeyaml.Yaml;
 
 import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
 
 import exceptions.ItemRemovedException;
 import exceptions.SizeRemovedException;
+import exceptions.TemporaryFetchException;
+import pojo.AlertRule;
+import pojo.AlertRules;
+import pojo.Coupon;
+import pojo.CycleJournal;
+import pojo.ItemStore;
 import pojo.Offer;
 import pojo.Offer.InnerPrice;
 import pojo.Offer.Price;
+import pojo.PendingDigest;
+import pojo.ProductHistory;
 import pojo.Size;
-import pojo.Sizes;
 import pojo.TrackedItem;
 import pojo.TrackedItem.PriceHistory;
+import pojo.TrackedItem.TrackedSize;
 import pojo.TrackedItems;
+import pojo.UserSettings;
 import runner.TelegramBot;
+import util.CheckScheduler.FastLane;
+import util.PageScanner.ScanResult;
+import util.SaleDetector.Thresholds;
+import util.Tracing.BodyParse;
+import util.Tracing.CouponScan;
+import util.Tracing.ItemFetch;
 
 /**
  * Utility class for the bot's logic
@@ -53,27 +79,75 @@ public class LogicUtility {
 	public static final String CURRENT_FOLDER = System.getProperty("user.dir");
 
 	private static final String TRACKED_JSON_FILE = CURRENT_FOLDER + "/userdata/%s/tracked.json";
+	private static final String ALERTS_JSON_FILE = CURRENT_FOLDER + "/userdata/%s/alerts.json";
+	private static final String SETTINGS_JSON_FILE = CURRENT_FOLDER + "/userdata/%s/settings.json";
+	private static final String DIGEST_JSON_FILE = CURRENT_FOLDER + "/userdata/%s/digest.json";
+	private static final String CYCLE_JOURNAL_FILE = CURRENT_FOLDER + "/cycle.json";
+	private static final String PRODUCT_HISTORY_FILE = CURRENT_FOLDER + "/products/%s.json";
 
 	public static final String CONFIG_FILE = CURRENT_FOLDER + "/config.yml";
 	public static final String ADMIN_ID = "adminID";
 	public static final String BOT_USERNAME = "botUsername";
 	public static final String BOT_TOKEN = "botToken";
 	public static final String PUBLIC = "public";
+	public static final String ZALANDO_BASE_URL = "zalandoBaseUrl";
+	public static final String TELEGRAM_BASE_URL = "telegramBaseUrl";
+	public static final String COUPON_MARKERS = "couponMarkers";
+	public static final String PRETTY_JSON = "prettyJson";
+	public static final String FLIGHT_RECORDER = "flightRecorder";
+	public static final String CHECK_PERIOD_MINUTES = "checkPeriodMinutes";
+	public static final String STAGE_THREADS = "stageThreads";
+	public static final String COMPARE_DOMAINS = "compareDomains";
+	public static final String HISTORY_RETENTION = "historyRetention";
+	public static final String USER_BUDGETS = "userBudgets";
+	public static final String RESTOCK_LANE = "restockLane";
+	public static final String SALE_BOOST = "saleBoost";
+	public static final String STALENESS_OBJECTIVE_MINUTES = "stalenessObjectiveMinutes";
 
 	private final Map<String, Object> config;
+	private final PageScanner pageScanner;
+	private final PriceComparison priceComparison;
+	/** Used to write the user files, indented only if configured */
+	private final Gson gson;
 
 	// i use a map to reduce file reads
-	private static final Map<Long, List<TrackedItem>> ITEMS_CACHE = new ConcurrentHashMap<>();
+	private static final Map<Long, ItemStore> ITEMS_CACHE = new ConcurrentHashMap<>();
+	/** Incremented at every save of the items, used to know if what was built from the items is still valid */
+	private static final Map<Long, Long> ITEMS_VERSION = new ConcurrentHashMap<>();
+
+	/** The price histories shared by the users, one for each product */
+	private static final Map<String, ProductHistory> PRODUCT_HISTORIES = new ConcurrentHashMap<>();
+	/** The day the histories were compacted */
+	private static volatile LocalDate lastCompaction;
+
+	private static final Map<Long, List<AlertRule>> ALERTS_CACHE = new ConcurrentHashMap<>();
+	private static final Map<Long, UserSettings> SETTINGS_CACHE = new ConcurrentHashMap<>();
+
+	/** Rules written by the users, waiting for the choice of the item */
+	private static final Map<Long, AlertRule> PENDING_ALERTS = new ConcurrentHashMap<>();
 
 	/** Users waiting to be enabled. Useful to get the full user object after the admin approval callback */
 	private static final Map<Long, User> USERS_APPROVAL_QUEUE = new HashMap<>();
 
 	private static final Set<Long> USERS_TO_DELETE = new HashSet<>();
 
+	// a single client so that the connections are reused between requests
+	private static final HttpClient HTTP_CLIENT = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10)).build();
+	private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
+
+	/** The logs are appended by many threads, one at a time so that no line is lost */
+	private static final Object logLock = new Object();
+
+	// not an anonymous subclass, its generic signature would need the reflection configuration of the native image
+	private static final Type SIZE_LIST = TypeToken.getParameterized(List.class, Size.class).getType();
+
 	public LogicUtility() throws Exception {
 		final InputStream inputStream = new FileInputStream(CONFIG_FILE);
 		final Yaml yaml = new Yaml();
 		config = yaml.load(inputStream);
+		pageScanner = new PageScanner(getCouponMarkers());
+		priceComparison = new PriceComparison(getCompareDomains(), this::insertLog);
+		gson = isPrettyJson() ? JsonFiles.PRETTY_GSON : JsonFiles.GSON;
 	}
 
 	/** Returns the admin id */
@@ -99,6 +173,124 @@ public class LogicUtility {
 		return (boolean) config.get(PUBLIC);
 	}
 
+	/** Returns the base url that replaces the zalando hosts, null to contact zalando directly. */
+	public String getZalandoBaseUrl() {
+		return (String) config.get(ZALANDO_BASE_URL);
+	}
+
+	/** Returns the base url of the telegram bot api, null to use the default one. */
+	public String getTelegramBaseUrl() {
+		return (String) config.get(TELEGRAM_BASE_URL);
+	}
+
+	/** Returns the coupon markers for each domain, null if not configured. */
+	@SuppressWarnings("unchecked")
+	public Map<String, List<String>> getCouponMarkers() {
+		return (Map<String, List<String>>) config.get(COUPON_MARKERS);
+	}
+
+	/** Indicates if the flight recorder is started with the bot, see {@link Tracing}. */
+	public boolean isFlightRecorder() {
+		return Boolean.TRUE.equals(config.get(FLIGHT_RECORDER));
+	}
+
+	/** Indicates if the json files are written indented, easier to read but bigger. */
+	public boolean isPrettyJson() {
+		return Boolean.TRUE.equals(config.get(PRETTY_JSON));
+	}
+
+	/** Returns the ids of all the users. */
+	public List<Long> getUserIds() {
+		final File[] folders = new File(CURRENT_FOLDER + "/userdata").listFiles(File::isDirectory);
+		return folders == null ? List.of() : Stream.of(folders).map(f -> Long.valueOf(f.getName())).toList();
+	}
+
+	/** Returns the minutes between two checks of the same product, 60 if not configured. */
+	public int getCheckPeriodMinutes() {
+		final Object minutes = config.get(CHECK_PERIOD_MINUTES);
+		return minutes == null ? 60 : (Integer) minutes;
+	}
+
+	/** Returns the p95 of the staleness of the items over which the admin is alerted, twice the check period if not configured. */
+	public int getStalenessObjectiveMinutes() {
+		final Object minutes = config.get(STALENESS_OBJECTIVE_MINUTES);
+		return minutes instanceof final Integer value && value > 0 ? value : 2 * getCheckPeriodMinutes();
+	}
+
+	/** Returns the interval and the budget of the checks of the sold out items watched for a restock, see {@link CheckScheduler}. */
+	public FastLane getRestockLane() {
+		final Map<?, ?> lane = config.get(RESTOCK_LANE) instanceof final Map<?, ?> map ? map : Map.of();
+		final int minutes = lane.get("intervalMinutes") instanceof final Integer value && value > 0 ? value : 5;
+		final int maxFetches = lane.get("maxFetches") instanceof final Integer value && value >= 0 ? value : 120;
+		return new FastLane(minutes * 60_000L, maxFetches);
+	}
+
+	/** Returns the interval and the budget of the checks of the products of a domain on sale, see {@link SaleDetector}. */
+	public FastLane getSaleLane() {
+		final Map<?, ?> boost = config.get(SALE_BOOST) instanceof final Map<?, ?> map ? map : Map.of();
+		final int minutes = boost.get("intervalMinutes") instanceof final Integer value && value > 0 ? value : 15;
+		final int maxFetches = boost.get("maxFetches") instanceof final Integer value && value >= 0 ? value : 500;
+		return new FastLane(minutes * 60_000L, maxFetches);
+	}
+
+	/** Returns when a domain is considered on sale, see {@link SaleDetector}. */
+	public Thresholds getSaleThresholds() {
+		final Map<?, ?> boost = config.get(SALE_BOOST) instanceof final Map<?, ?> map ? map : Map.of();
+		final int minutes = boost.get("windowMinutes") instanceof final Integer value && value > 0 ? value : 60;
+		final int minDrops = boost.get("minDrops") instanceof final Integer value && value > 0 ? value : 10;
+		final double minShare = boost.get("minShare") instanceof final Number value ? value.doubleValue() : 0.25;
+		return new Thresholds(minutes * 60_000L, minDrops, minShare);
+	}
+
+	/** Returns the threads of the specified stage of the checks, see {@link Stage}. */
+	public int getStageThreads(String stage, int defaultThreads) {
+		final Object threads = config.get(STAGE_THREADS) instanceof final Map<?, ?> stages ? stages.get(stage) : null;
+		return threads instanceof final Integer value && value > 0 ? value : defaultThreads;
+	}
+
+	/** Returns the euro rate of each store compared by {@link PriceComparison}, the euro stores if not configured. */
+	public Map<String, Double> getCompareDomains() {
+		final Map<String, Double> rates = new HashMap<>();
+		if (config.get(COMPARE_DOMAINS) instanceof final Map<?, ?> domains) {
+			domains.forEach((domain, rate) -> rates.put((String) domain, rate instanceof final Number number ? number.doubleValue() : 1.0));
+		} else {
+			PriceComparison.DEFAULT_DOMAINS.forEach(domain -> rates.put(domain, 1.0));
+		}
+		return rates;
+	}
+
+	public PriceComparison getPriceComparison() {
+		return priceComparison;
+	}
+
+	/** Returns the retention of the price histories, {@link HistoryRetention#DEFAULT} for the values not configured. */
+	public HistoryRetention getHistoryRetention() {
+		if (!(config.get(HISTORY_RETENTION) instanceof final Map<?, ?> retention)) { return HistoryRetention.DEFAULT; }
+		final int fullDays = retention.get("fullDays") instanceof final Integer days ? days : HistoryRetention.DEFAULT.fullDays();
+		final int dailyDays = retention.get("dailyDays") instanceof final Integer days ? days : HistoryRetention.DEFAULT.dailyDays();
+		return new HistoryRetention(fullDays, Math.max(fullDays, dailyDays));
+	}
+
+	/**
+	 * Returns the items the specified user can track, multiplied by the weight of the user, {@link Integer#MAX_VALUE} if not limited. The admin
+	 * is never limited.
+	 */
+	public int getItemBudget(Long userId) throws IOException {
+		if (Objects.equals(userId, getAdminId())) { return Integer.MAX_VALUE; }
+		final int budget = getUserBudget("maxItems");
+		return budget <= 0 ? Integer.MAX_VALUE : (int) Math.ceil(budget * getUserSettings(userId).getWeight());
+	}
+
+	/** Returns the fetches of a user in a period for a weight of 1, 0 if not limited. A product tracked by more users is split among them. */
+	public int getFetchBudget() {
+		return getUserBudget("maxFetches");
+	}
+
+	private int getUserBudget(String name) {
+		final Object budget = config.get(USER_BUDGETS) instanceof final Map<?, ?> budgets ? budgets.get(name) : null;
+		return budget instanceof final Integer value ? value : 0;
+	}
+
 	/** Checks if the user's folder exists. */
 	public boolean userExists(Long userId) {
 		return new File(CURRENT_FOLDER + "/userdata/" + userId).exists();
@@ -150,6 +342,9 @@ public class LogicUtility {
 	public void deleteUsers() throws Exception {
 		for (final Long userId : USERS_TO_DELETE) {
 			ITEMS_CACHE.remove(userId);
+			ITEMS_VERSION.merge(userId, 1L, Long::sum);
+			ALERTS_CACHE.remove(userId);
+			SETTINGS_CACHE.remove(userId);
 			final File folder = new File(CURRENT_FOLDER + "/userdata/" + userId);
 			if (folder.exists()) {
 				FileUtils.deleteDirectory(folder);
@@ -159,33 +354,254 @@ public class LogicUtility {
 		USERS_TO_DELETE.clear();
 	}
 
-	/** Returns the items tracked by the specified user. */
+	/** Returns the items tracked by the specified user, sorted by name. The list can't be modified. */
 	public List<TrackedItem> getTrackedItems(Long userId) throws IOException {
+		return getItemStore(userId).asList();
+	}
+
+	/** Returns the items of the specified user, indexed to be found without going through the list. */
+	public ItemStore getItemStore(Long userId) throws IOException {
 		if (ITEMS_CACHE.containsKey(userId)) { return ITEMS_CACHE.get(userId); }
 
-		final File file = new File(TRACKED_JSON_FILE.formatted(userId));
-		final String json = FileUtils.readFileToString(file, Charset.defaultCharset());
+		final TrackedItems trackedItems = JsonFiles.read(new File(TRACKED_JSON_FILE.formatted(userId)), TrackedItems.class);
+
+		// the items saved with a single size are converted, they will be saved in the new format at the next change
+		trackedItems.getTrackedItems().forEach(TrackedItem::migrateLegacySize);
+
+		// the old files have an item for each size, the items of the same url are merged into the first one with the history it had, the
+		// others had the prices of a single size
+		final Map<String, TrackedItem> byUrl = new LinkedHashMap<>();
+		final Map<String, String> mergedUuids = new HashMap<>();
+		for (final TrackedItem item : trackedItems.getTrackedItems()) {
+			final TrackedItem first = byUrl.get(item.getUrl());
+			if (first == null) {
+				byUrl.put(item.getUrl(), item);
+				continue;
+			}
+			byUrl.put(item.getUrl(), first.withSizes(item.getSizes().stream().filter(s -> first.getSize(s.getSize()).isEmpty()).toList()));
+			mergedUuids.put(item.getUuid(), first.getUuid());
+		}
+		final List<TrackedItem> items = new ArrayList<>(byUrl.values());
+		if (!mergedUuids.isEmpty()) {
+			final List<AlertRule> rules = getAlertRules(userId);
+			rules.stream().filter(r -> mergedUuids.containsKey(r.getItemUuid())).forEach(r -> r.setItemUuid(mergedUuids.get(r.getItemUuid())));
+			saveAlertRules(userId, rules);
+		}
 
-		final TrackedItems trackedItems = new Gson().fromJson(json, TrackedItems.class);
-		final List<TrackedItem> result = trackedItems.getTrackedItems();
+		// the histories saved in the items are moved to the shared ones, the items are saved without them
+		boolean movedHistory = false;
+		for (final TrackedItem item : items) {
+			movedHistory = attachHistory(item, false) || movedHistory;
+		}
 
+		final ItemStore result = new ItemStore(items);
 		ITEMS_CACHE.put(userId, result);
+		if (movedHistory || !mergedUuids.isEmpty()) { saveItemStore(userId, result); }
 		return result;
 	}
 
-	/** Saves the specified items for the specified user. */
+	/**
+	 * Links the item to the shared history of its product.
+	 * <li>the history saved in the item is merged into the product one</li>
+	 * <li>if the watched sizes changed and the new product has no history, it starts with the one seen by the user</li>
+	 * <li>a new item sees the whole product history, the others keep seeing the history from when they were added</li>
+	 *
+	 * @param newItem If the item was just added
+	 * @return true if the item had its own history
+	 */
+	public boolean attachHistory(TrackedItem item, boolean newItem) throws IOException {
+		final String key = item.getHistoryKey();
+		if (item.getHistory() != null && item.getHistory().getKey().equals(key)) { return false; }
+
+		final ProductHistory history = getProductHistory(key);
+		final boolean ownHistory = item.getHistory() == null;
+		final List<PriceHistory> seen = item.getPriceHistory();
+		if (!seen.isEmpty() && (ownHistory || history.isEmpty()) && history.merge(seen)) { saveProductHistory(history); }
+
+		if (item.getTrackedSince() == null) { item.setTrackedSince(newItem || seen.isEmpty() ? history.getFirstDate() : seen.get(0).getDate()); }
+		item.setHistory(history);
+		return ownHistory && !seen.isEmpty();
+	}
+
+	/**
+	 * Records the price of the checked item in the history of its product. The users tracking the same product share the history, so the
+	 * price is added only by the first one.
+	 */
+	public void recordPrice(TrackedItem oldItem, TrackedItem item) throws IOException {
+		item.inheritHistory(oldItem);
+		attachHistory(item, false);
+		if (item.getPrice() != null && item.getHistory().record(new PriceHistory(item.getPrice(), today()))) { saveProductHistory(item.getHistory()); }
+	}
+
+	private ProductHistory getProductHistory(String key) throws IOException {
+		try {
+			return PRODUCT_HISTORIES.computeIfAbsent(key, k -> {
+				final File file = productHistoryFile(k);
+				if (!file.exists()) { return new ProductHistory(k, List.of()); }
+				try {
+					return JsonFiles.read(file, ProductHistory.class);
+				} catch (final IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (final UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	private void saveProductHistory(ProductHistory history) throws IOException {
+		// the check and the compaction can save the same history, the last file written has the last entries
+		synchronized (history) {
+			JsonFiles.write(productHistoryFile(history.getKey()), history, JsonFiles.GSON);
+		}
+	}
+
+	/**
+	 * Compacts the price histories of all the products with the configured retention, once a day. The histories in use are compacted in place,
+	 * so the items see the compacted entries. Returns the number of entries removed.
+	 */
+	public int compactHistories() throws IOException {
+		final LocalDate today = LocalDate.now();
+		if (today.equals(lastCompaction)) { return 0; }
+		lastCompaction = today;
+
+		final File[] files = new File(CURRENT_FOLDER + "/products").listFiles(file -> file.getName().endsWith(".json"));
+		if (files == null) { return 0; }
+
+		final HistoryRetention retention = getHistoryRetention();
+		int removed = 0;
+		for (final File file : files) {
+			final ProductHistory read;
+			try {
+				read = JsonFiles.read(file, ProductHistory.class);
+			} catch (final JsonParseException e) {
+				// corrupted, left as it is
+				continue;
+			}
+			if (read == null) { continue; }
+			// the history read becomes the shared one if the product is not in use, so the checks lock and save the same object
+			final ProductHistory history = PRODUCT_HISTORIES.computeIfAbsent(read.getKey(), k -> read);
+			final int count = history.compact(entries -> retention.compact(entries, today));
+			if (count > 0) { saveProductHistory(history); }
+			removed += count;
+		}
+		return removed;
+	}
+
+	/** The keys contain the urls, the file name is derived from them. */
+	private static File productHistoryFile(String key) {
+		return new File(PRODUCT_HISTORY_FILE.formatted(UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8))));
+	}
+
+	/** Returns the current date as saved in the price histories, e.g. "5-3-2024". */
+	private static String today() {
+		final LocalDate now = LocalDate.now();
+		return "%s-%s-%s".formatted(now.getDayOfMonth(), now.getMonthValue(), now.getYear());
+	}
+
+	/** Saves the items tracked by the specified user. */
 	public void saveTrackedItems(Long userId, List<TrackedItem> items) throws Exception {
-		final List<TrackedItem> toSave = new ArrayList<>(items);
-		toSave.sort(Comparator.comparing(TrackedItem::getName));
-		final File file = new File(TRACKED_JSON_FILE.formatted(userId));
-		final String json = new GsonBuilder().setPrettyPrinting().create().toJson(new TrackedItems(toSave));
-		FileUtils.write(file, json, Charset.defaultCharset());
-		ITEMS_CACHE.put(userId, toSave);
+		saveItemStore(userId, new ItemStore(items));
+	}
+
+	/** Saves the items of the specified user, the store is already sorted by name. */
+	public void saveItemStore(Long userId, ItemStore store) throws IOException {
+		JsonFiles.write(new File(TRACKED_JSON_FILE.formatted(userId)), new TrackedItems(store.asList()), gson);
+		ITEMS_CACHE.put(userId, store);
+		ITEMS_VERSION.merge(userId, 1L, Long::sum);
+	}
+
+	/** Returns the version of the items of the specified user, it changes every time the items are saved. */
+	public long getItemsVersion(Long userId) {
+		return ITEMS_VERSION.getOrDefault(userId, 0L);
+	}
+
+	/** Returns the alert rules of the specified user. */
+	public List<AlertRule> getAlertRules(Long userId) throws IOException {
+		if (ALERTS_CACHE.containsKey(userId)) { return ALERTS_CACHE.get(userId); }
+
+		final File file = new File(ALERTS_JSON_FILE.formatted(userId));
+		List<AlertRule> result = new ArrayList<>();
+		if (file.exists()) {
+			result = JsonFiles.<AlertRules>read(file, AlertRules.class).getAlertRules();
+		}
+
+		ALERTS_CACHE.put(userId, result);
+		return result;
+	}
+
+	/** Saves the alert rules of the specified user. */
+	public void saveAlertRules(Long userId, List<AlertRule> rules) throws IOException {
+		final List<AlertRule> toSave = new ArrayList<>(rules);
+		JsonFiles.write(new File(ALERTS_JSON_FILE.formatted(userId)), new AlertRules(toSave), gson);
+		ALERTS_CACHE.put(userId, toSave);
+	}
+
+	/** Returns the settings of the specified user. */
+	public UserSettings getUserSettings(Long userId) throws IOException {
+		if (SETTINGS_CACHE.containsKey(userId)) { return SETTINGS_CACHE.get(userId); }
+
+		final File file = new File(SETTINGS_JSON_FILE.formatted(userId));
+		UserSettings result = new UserSettings();
+		if (file.exists()) {
+			result = JsonFiles.read(file, UserSettings.class);
+		}
+
+		SETTINGS_CACHE.put(userId, result);
+		return result;
+	}
+
+	/** Saves the settings of the specified user. */
+	public void saveUserSettings(Long userId, UserSettings settings) throws Exception {
+		JsonFiles.write(new File(SETTINGS_JSON_FILE.formatted(userId)), settings, gson);
+		SETTINGS_CACHE.put(userId, settings);
+	}
+
+	/** Returns the notifications waiting for the next digest of the specified user. */
+	public PendingDigest getPendingDigest(Long userId) throws IOException {
+		final File file = new File(DIGEST_JSON_FILE.formatted(userId));
+		if (!file.exists()) { return new PendingDigest(); }
+		return JsonFiles.read(file, PendingDigest.class);
+	}
+
+	/** Saves the notifications waiting for the next digest of the specified user. */
+	public void savePendingDigest(Long userId, PendingDigest digest) throws Exception {
+		JsonFiles.write(new File(DIGEST_JSON_FILE.formatted(userId)), digest, JsonFiles.GSON);
+	}
+
+	/** Returns the journal of the check interrupted by a restart, if any. */
+	public Optional<CycleJournal> getCycleJournal() throws IOException {
+		final File file = new File(CYCLE_JOURNAL_FILE);
+		if (!file.exists()) { return Optional.empty(); }
+		return Optional.ofNullable(JsonFiles.read(file, CycleJournal.class));
+	}
+
+	/** Saves the journal of the running check. */
+	public void saveCycleJournal(CycleJournal journal) throws IOException {
+		// the stages of the checks save it concurrently
+		synchronized (journal) {
+			JsonFiles.write(new File(CYCLE_JOURNAL_FILE), journal, JsonFiles.GSON);
+		}
+	}
+
+	/** Deletes the journal once the check is completed. */
+	public void deleteCycleJournal() throws IOException {
+		Files.deleteIfExists(Path.of(CYCLE_JOURNAL_FILE));
+	}
+
+	/** Keeps the rule written by the user until the item is chosen. */
+	public void setPendingAlert(Long userId, AlertRule rule) {
+		PENDING_ALERTS.put(userId, rule);
+	}
+
+	/** Returns and removes the rule waiting for the choice of the item. */
+	public Optional<AlertRule> takePendingAlert(Long userId) {
+		return Optional.ofNullable(PENDING_ALERTS.remove(userId));
 	}
 
 	private HttpResponse<String> httpGet(String url) throws Exception {
-		final HttpClient client = HttpClient.newHttpClient();
-		final HttpRequest request = HttpRequest.newBuilder(URI.create(url))
+		final HttpRequest request = HttpRequest.newBuilder(resolve(url))
+				.timeout(REQUEST_TIMEOUT)//
 				.setHeader("User-Agent", "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/137.0.0.0 Safari/537.36")//
 				.setHeader("Accept",
 						"text/html,application/xhtml+xml,application/xml;q=0.9,image/avif,image/webp,image/apng,*/*;q=0.8,application/signed-exchange;v=b3;q=0.7")//
@@ -195,117 +611,249 @@ public class LogicUtility {
 				.setHeader("Accept-Encoding", "deflate")//
 				.build();
 
-		return client.send(request, BodyHandlers.ofString());
+		return HTTP_CLIENT.send(request, BodyHandlers.ofString());
 	}
 
-	/** Get all the existing sizes for the specified url. */
-	public List<String> getSizesFromUrl(String url) throws Exception {
-		final String responseBody = httpGet(url).body();
-		return getSizesFromBody(responseBody).stream().map(s -> s.size).toList();
+	/**
+	 * Returns the uri to contact for the specified zalando url. When a base url is configured the host becomes the first segment of the path, e.g.
+	 * <code>http://localhost:8080/www.zalando.it/item.html</code>
+	 */
+	private URI resolve(String url) {
+		final URI uri = URI.create(url);
+		final String baseUrl = getZalandoBaseUrl();
+		if (baseUrl == null) { return uri; }
+
+		final String query = uri.getRawQuery() == null ? "" : "?" + uri.getRawQuery();
+		return URI.create(baseUrl + "/" + uri.getHost() + uri.getRawPath() + query);
 	}
 
-	/** Gets all the item sizes from the specified body. */
-	private List<Size> getSizesFromBody(String body) {
-		final String size = "\"size\":";
-		final String simples = "\"simples\":";
+	/**
+	 * Fetches the page of the specified url respecting the health of its domain and returns its sizes.
+	 *
+	 * @throws ItemRemovedException    if the page doesn't exist anymore.
+	 * @throws TemporaryFetchException if the domain is rate limiting, struggling or the request timed out.
+	 */
+	public FetchedPage fetchPage(String url) throws Exception {
+		return parsePage(fetchBody(url));
+	}
 
-		// the body has a json with all the info so i look for it
+	/**
+	 * Downloads the page of the specified url respecting the health of its domain, {@link #parsePage(PageBody)} reads it. A redirect is
+	 * followed once, the body has the url redirected to.
+	 *
+	 * @throws TemporaryFetchException if the domain is rate limiting, struggling or the request timed out.
+	 */
+	public PageBody fetchBody(String url) throws Exception {
+		return fetchBody(url, true);
+	}
 
-		final int start = body.indexOf(simples);
-		if (start < 0) { return Collections.emptyList(); }
+	private PageBody fetchBody(String url, boolean followRedirect) throws Exception {
+		final DomainHealth health = DomainHealth.of(url);
+		health.acquire();
 
-		String partial = body.substring(start);
-		partial = partial.substring(partial.indexOf("["));
-		int openBrackets = 0;
-		int closedBrackets = 0;
-		int arrayEndIndex = -1;
+		final ItemFetch fetchEvent = new ItemFetch();
+		fetchEvent.begin();
+		final HttpResponse<String> response;
+		try {
+			response = httpGet(url);
+		} catch (final IOException e) {
+			// timeouts and dropped connections
+			health.onFailure();
+			commit(fetchEvent, health, -1, 0);
+			throw new TemporaryFetchException("%s for %s".formatted(e.getClass().getSimpleName(), url));
+		} finally {
+			health.release();
+		}
+		commit(fetchEvent, health, response.statusCode(), response.body().length());
+
+		final int status = response.statusCode();
+		if (status == 429 || status == 403 || status >= 500) {
+			health.onFailure();
+			// Retry-After can also be a date, in that case the backoff is enough
+			final long retryAfter = response.headers().firstValue("Retry-After")//
+					.filter(v -> !v.isBlank() && v.chars().allMatch(Character::isDigit))//
+					.map(Long::valueOf).orElse(0L) * 1000;
+			throw new TemporaryFetchException("Status code %s for %s".formatted(status, url), retryAfter);
+		}
 
-		for (int i = 0; i < partial.length(); i++) {
-			final String character = String.valueOf(partial.charAt(i));
+		// e.g. the other stores of a comparison are asked by sku, the store redirects to the page of the product
+		final Optional<String> location = response.headers().firstValue("Location");
+		if (followRedirect && status >= 300 && status < 400 && location.isPresent()) { return fetchBody(URI.create(url).resolve(location.get()).toString(), false); }
+		return new PageBody(url, status, response.body());
+	}
 
-			if (Objects.equals(character, "[")) { openBrackets++; }
-			if (Objects.equals(character, "]")) { closedBrackets++; }
+	/**
+	 * Reads the sizes and the coupon of a downloaded page.
+	 *
+	 * @throws ItemRemovedException    if the page doesn't exist anymore.
+	 * @throws TemporaryFetchException if the page has no sizes, usually a challenge page.
+	 */
+	public FetchedPage parsePage(PageBody page) throws ItemRemovedException, TemporaryFetchException, IOException {
+		final DomainHealth health = DomainHealth.of(page.url());
+
+		// a single pass finds both the sizes and the coupons
+		final String body = page.body();
+		final CouponScan scanEvent = new CouponScan();
+		scanEvent.begin();
+		final ScanResult scan = pageScanner.scan(page.url(), body);
+		scanEvent.end();
+		if (scanEvent.shouldCommit()) {
+			scanEvent.correlationId = Tracing.correlationId();
+			scanEvent.domain = health.getDomain();
+			scanEvent.couponFound = scan.coupon().isPresent();
+			scanEvent.commit();
+		}
 
-			if (openBrackets > 1 && openBrackets == closedBrackets) {
-				arrayEndIndex = i;
-				break;
+		final BodyParse parseEvent = new BodyParse();
+		parseEvent.begin();
+		final List<Size> sizes = getSizesFromBody(body, scan.simplesStarts());
+		parseEvent.end();
+		if (parseEvent.shouldCommit()) {
+			parseEvent.correlationId = Tracing.correlationId();
+			parseEvent.domain = health.getDomain();
+			parseEvent.sizes = sizes.size();
+			parseEvent.commit();
+		}
+		if (sizes.isEmpty()) {
+			if (page.status() == 404) {
+				health.onSuccess();
+				throw new ItemRemovedException();
 			}
+			// a page without sizes is usually a challenge page
+			health.onFailure();
+			throw new TemporaryFetchException("Item not fetched correctly. Status code: %s - %s".formatted(page.status(), page.url()));
 		}
 
-		final String stringedArray = partial.substring(0, arrayEndIndex + 1);
-		if (!stringedArray.contains(size)) { return getSizesFromBody(partial); }
+		health.onSuccess();
+		return new FetchedPage(page.url(), sizes, scan.coupon());
+	}
+
+	/** Commits the fetch event, the body length is in characters, the pages are not compressed. */
+	private static void commit(ItemFetch event, DomainHealth health, int status, long bytes) {
+		event.end();
+		if (!event.shouldCommit()) { return; }
+		event.correlationId = Tracing.correlationId();
+		event.domain = health.getDomain();
+		event.status = status;
+		event.bytes = bytes;
+		event.commit();
+	}
+
+	/**
+	 * Get all the existing sizes for the specified url, empty if the item doesn't exist.
+	 *
+	 * @throws TemporaryFetchException if Zalando is not answering, the url can be valid
+	 */
+	public List<String> getSizesFromUrl(String url) throws Exception {
+		try {
+			return fetchPage(url).sizes().stream().map(s -> s.size).toList();
+		} catch (final ItemRemovedException e) {
+			return Collections.emptyList();
+		}
+	}
+
+	/**
+	 * Gets all the item sizes from the specified body.
+	 *
+	 * @param simplesStarts The indexes after each sizes marker found by the {@link PageScanner}
+	 */
+	private List<Size> getSizesFromBody(String body, List<Integer> simplesStarts) throws IOException {
+		final String size = "\"size\":";
+
+		// the body has a json with all the info, the first array of the markers with the sizes is the right one
+		for (final int start : simplesStarts) {
+			final int arrayStart = body.indexOf('[', start);
+			if (arrayStart < 0) { break; }
+
+			int openBrackets = 0;
+			int closedBrackets = 0;
+			int arrayEndIndex = -1;
+
+			for (int i = arrayStart; i < body.length(); i++) {
+				final char character = body.charAt(i);
+
+				if (character == '[') { openBrackets++; }
+				if (character == ']') { closedBrackets++; }
+
+				if (openBrackets > 1 && openBrackets == closedBrackets) {
+					arrayEndIndex = i;
+					break;
+				}
+			}
+			if (arrayEndIndex < 0) { continue; }
+
+			final int sizeIndex = body.indexOf(size, arrayStart);
+			if (sizeIndex < 0 || sizeIndex > arrayEndIndex) { continue; }
 
-		final String simplesJson = "{" + simples + stringedArray + "}";
-		final Sizes sizes = new Gson().fromJson(simplesJson, Sizes.class);
-		final List<Size> toReturn = sizes.simples;
-		return toReturn == null ? Collections.emptyList() : toReturn;
+			// the array is read streaming from the body, without copying it
+			final StringReader reader = new StringReader(body);
+			reader.skip(arrayStart);
+			final List<Size> toReturn = JsonFiles.GSON.fromJson(new JsonReader(reader), SIZE_LIST);
+			return toReturn == null ? Collections.emptyList() : toReturn;
+		}
+		return Collections.emptyList();
 	}
 
 	/**
 	 * Fetches the specified item from its url.
 	 *
-	 * @throws ItemRemovedException if the item is no longer available.
-	 * @throws SizeRemovedException if the size is no longer available.
+	 * @throws ItemRemovedException    if the item is no longer available.
+	 * @throws SizeRemovedException    if the size is no longer available.
+	 * @throws TemporaryFetchException if the item couldn't be fetched for now, it's worth retrying later.
 	 */
 	public TrackedItem getItemFromUrl(Long userId, TrackedItem item, TelegramBot bot) throws Exception {
+		return getItemFromPage(item, fetchPage(item.getUrl()));
+	}
+
+	/**
+	 * Updates the item with the page fetched from its url, the same page updates the items of all the users tracking it.
+	 *
+	 * @throws SizeRemovedException if the size is no longer available.
+	 */
+	public TrackedItem getItemFromPage(TrackedItem item, FetchedPage page) throws SizeRemovedException {
 		final String url = item.getUrl();
-		final String size = item.getSize();
+		final List<Size> sizes = page.sizes();
+
+		// a single parse of the page updates all the watched sizes
+		final List<TrackedSize> fetchedSizes = new ArrayList<>();
+		boolean anyFound = false;
+		for (final TrackedSize oldSize : item.getSizes()) {
+			final Optional<Size> found = sizes.stream().filter(s -> Objects.equals(s.size, oldSize.getSize())).findFirst();
+			if (found.isEmpty()) {
+				fetchedSizes.add(oldSize.notFound());
+				continue;
+			}
+			anyFound = true;
 
-		final HttpResponse<String> response = httpGet(url);
-		final int responseStatus = response.statusCode();
-		final String responseBody = response.body();
-		final List<Size> sizes = getSizesFromBody(responseBody);
+			final Offer offer = found.get().offer;
+			final TrackedSize fetchedSize = new TrackedSize(oldSize.getSize(), formatPrice(offer.price), offer.stock.quantity, offer.isMeaningfulOffer);
 
-		if (sizes.isEmpty()) {
-			if (responseStatus == 404) { throw new ItemRemovedException(); }
-			throw new Exception("""
-					Item not fetched correctly. Status code: %s
-					%s - %s""".formatted(responseStatus, item.getName(), item.getUrl()));
+			// if out of stock then keep the old price to avoid tracking useless information
+			if (!fetchedSize.isAvailable() && oldSize.getPrice() != null) { fetchedSize.setPrice(oldSize.getPrice()); }
+			fetchedSizes.add(fetchedSize);
 		}
+		if (!anyFound) { throw new SizeRemovedException(); }
 
-		final Size found = sizes.stream().filter(s -> Objects.equals(s.size, size)).findFirst().orElseThrow(SizeRemovedException::new);
-		final Offer offer = found.offer;
-
-		final Price options = offer.price;
-		final InnerPrice priceObj = options.promotional == null ? options.original : options.promotional;
-		final String amount = String.valueOf(priceObj.amount);
-		final String price = amount.substring(0, amount.length() - 2) + "," + amount.substring(amount.length() - 2);
-
-		// looks for coupons using the substring
-		final boolean hasCoupon = getSearchCouponSubstring(url).map(responseBody::contains).orElse(false);
+		// the item price is the lowest last known price of the watched sizes, available or not: a size selling out or coming back at the same
+		// price doesn't change it, so the history records only real price changes
+		String price = TrackedSize.lowestPrice(fetchedSizes);
+		if (price == null) { price = item.getPrice(); }
 
 		// Create the new item
-		final TrackedItem fetchedItem = new TrackedItem(item.getUuid(), item.getName(), url, size, price, offer.stock.quantity, offer.isMeaningfulOffer, hasCoupon);
-
-		// if out of stock then keep the old price to avoid tracking useless information
-		if (!fetchedItem.isAvailable() && item.getPrice() != null) { fetchedItem.setPrice(item.getPrice()); }
+		final TrackedItem fetchedItem = new TrackedItem(item.getUuid(), item.getName(), url, fetchedSizes, price, page.coupon().orElse(null));
+		fetchedItem.inheritComparison(item);
+		fetchedItem.setWatchRestock(item.isWatchRestock());
 
-		final LocalDateTime now = LocalDateTime.now();
-		final String date = "%s-%s-%s".formatted(now.getDayOfMonth(), now.getMonthValue(), now.getYear());
-		fetchedItem.setPriceHistory(new ArrayList<>(Arrays.asList(new PriceHistory(fetchedItem.getPrice(), date))));
+		fetchedItem.setPriceHistory(new ArrayList<>(Arrays.asList(new PriceHistory(fetchedItem.getPrice(), today()))));
 
 		return fetchedItem;
 	}
 
-	/** Returns the substring used to search for coupons in the response body. */
-	private Optional<String> getSearchCouponSubstring(String url) throws Exception {
-		final String host = URI.create(url).getHost();
-		final String tld = host.replace("www.zalando.", "").toUpperCase();
-
-		// substrings used to search for coupons
-		// (searching only 'Enter your code at checkout' will give false positives)
-		final String substring = switch (tld) {
-		case "CO.UK" -> "on this and other selected items";
-		case "IE" -> "on this and other selected items";
-		case "IT" -> "su questo e altri articoli selezionati con il codice";
-		case "ES" -> "en este y otros artículos seleccionados con el código";
-		case "DE" -> "auf diesen und andere ausgewählte artikel";
-		case "FR" -> "sur cet article et bien d’autres";
-		case "NL" -> "op dit en andere geselecteerde items";
-		default -> null;
-		};
-
-		return Optional.ofNullable(substring);
+	/** Formats the promotional price, or the original one, as 12,34 */
+	public static String formatPrice(Price options) {
+		final InnerPrice priceObj = options.promotional == null ? options.original : options.promotional;
+		final String amount = String.valueOf(priceObj.amount);
+		return amount.substring(0, amount.length() - 2) + "," + amount.substring(amount.length() - 2);
 	}
 
 	/**
@@ -334,14 +882,11 @@ public class LogicUtility {
 			final String path = CURRENT_FOLDER + "/logs/";
 			final String fileName = "errors_" + now.getDayOfMonth() + now.getMonthValue() + now.getYear() + ".txt";
 			final File file = new File(path + fileName);
-			String existing = "";
 
 			final String log = "\n" + now.truncatedTo(ChronoUnit.SECONDS) + " " + message;
-
-			if (file.exists()) {
-				existing = FileUtils.readFileToString(file, Charset.defaultCharset()) + "\n";
+			synchronized (logLock) {
+				FileUtils.write(file, (file.exists() ? "\n" : "") + log, Charset.defaultCharset(), true);
 			}
-			FileUtils.write(file, existing + log, Charset.defaultCharset());
 
 			System.out.println("Error inserted:");
 			th.printStackTrace();
@@ -368,14 +913,11 @@ public class LogicUtility {
 			final String path = CURRENT_FOLDER + "/logs/";
 			final String fileName = "log_%s.txt".formatted(now.getMonth().toString() + now.getYear());
 			final File file = new File(path + fileName);
-			String existing = "";
 
 			final String log = (now.truncatedTo(ChronoUnit.SECONDS) + " ").replace("T", " ") + message;
-
-			if (file.exists()) {
-				existing = FileUtils.readFileToString(file, Charset.defaultCharset()) + "\n";
+			synchronized (logLock) {
+				FileUtils.write(file, (file.exists() ? "\n" : "") + log, Charset.defaultCharset(), true);
 			}
-			FileUtils.write(file, existing + log, Charset.defaultCharset());
 			System.out.println("Log inserted: " + message);
 
 		} catch (final IOException e) {
@@ -388,4 +930,10 @@ public class LogicUtility {
 		}
 	}
 
+	/** The page of an item as downloaded, before reading it */
+	public record PageBody(String url, int status, String body) {}
+
+	/** The sizes and the coupon read from the page of an item, the url is the one redirected to if any */
+	public record FetchedPage(String url, List<Size> sizes, Optional<Coupon> coupon) {}
+
 }
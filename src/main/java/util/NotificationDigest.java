@@ -0,0 +1,41 @@
+package util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import pojo.Notification;
+
+/**
+ * Builds the digest messages, grouping the notifications in as few messages as the telegram size limit allows.
+ */
+public class NotificationDigest {
+
+	/** Telegram accepts up to 4096 characters, some are left for the html entities */
+	private static final int MAX_MESSAGE_LENGTH = 4000;
+
+	private NotificationDigest() {}
+
+	/** Returns the messages with all the notifications, one line each. */
+	public static List<String> buildMessages(List<Notification> notifications) {
+		final List<String> messages = new ArrayList<>();
+		final String header = "<b>Your price updates (%s items)</b>\n".formatted(notifications.size());
+
+		StringBuilder message = new StringBuilder(header);
+		for (final Notification notification : notifications) {
+			final String line = "\n" + notification.getSummary();
+			if (message.length() + line.length() > MAX_MESSAGE_LENGTH && message.length() > header.length()) {
+				messages.add(message.toString());
+				message = new StringBuilder();
+			}
+			message.append(line);
+		}
+		messages.add(message.toString());
+		return messages;
+	}
+
+	/** Escapes the text to be used in the html messages. */
+	public static String escape(String text) {
+		return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+	}
+
+}
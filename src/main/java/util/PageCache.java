@@ -0,0 +1,46 @@
+package util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Caches the rendered pages of each user for a version of the user data, the pages of an older version are dropped on the first access.
+ *
+ * @param <V> The rendered page
+ */
+public class PageCache<V> {
+
+	/** A user rarely browses more than a few pages between two changes */
+	private static final int MAX_PAGES_PER_USER = 32;
+
+	private record UserPages<V>(long version, Map<String, V> pages) {}
+
+	private final Map<Long, UserPages<V>> cache = new ConcurrentHashMap<>();
+
+	/**
+	 * Returns the cached page, rendering it if missing or rendered for another version.
+	 *
+	 * @param version The version of the user data the page is built from
+	 * @param key     The page, e.g. mode and number
+	 */
+	public V get(Long userId, long version, String key, Supplier<V> renderer) {
+		final UserPages<V> userPages = cache.compute(userId, (id, old) -> old == null || old.version() != version ? new UserPages<>(version, new HashMap<>()) : old);
+		synchronized (userPages) {
+			final V cached = userPages.pages().get(key);
+			if (cached != null) { return cached; }
+
+			final V page = renderer.get();
+			if (userPages.pages().size() >= MAX_PAGES_PER_USER) { userPages.pages().clear(); }
+			userPages.pages().put(key, page);
+			return page;
+		}
+	}
+
+	/** Drops the pages of the user. */
+	public void invalidate(Long userId) {
+		cache.remove(userId);
+	}
+
+}
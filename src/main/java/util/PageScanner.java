@@ -0,0 +1,106 @@
+package util;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import pojo.Coupon;
+
+/**
+ * Scans the item pages with a single pass, finding where the sizes json starts and the coupon markers of the domain.
+ * <p>
+ * The markers are the sentences used by each domain to advertise a coupon (searching only 'Enter your code at checkout' will give false
+ * positives). They are compiled with the sizes marker in an {@link AhoCorasick} automaton for each domain.
+ */
+public class PageScanner {
+
+	public static final String SIMPLES = "\"simples\":";
+
+	/** Built-in markers, the ones in the config replace them for the same domain */
+	private static final Map<String, List<String>> DEFAULT_MARKERS = Map.of(//
+			"www.zalando.co.uk", List.of("on this and other selected items"), //
+			"www.zalando.ie", List.of("on this and other selected items"), //
+			"www.zalando.it", List.of("su questo e altri articoli selezionati con il codice"), //
+			"www.zalando.es", List.of("en este y otros artículos seleccionados con el código"), //
+			"www.zalando.de", List.of("auf diesen und andere ausgewählte artikel"), //
+			"www.zalando.fr", List.of("sur cet article et bien d’autres"), //
+			"www.zalando.nl", List.of("op dit en andere geselecteerde items"));
+
+	/** Characters around a marker where the discount and the code are searched */
+	private static final int DISCOUNT_WINDOW = 150;
+	private static final int CODE_WINDOW = 80;
+
+	private static final Pattern DISCOUNT = Pattern.compile("(?<!\\d)(\\d{1,2})\\s?%");
+	private static final Pattern CODE = Pattern.compile("\\b(?=[A-Z0-9]*[A-Z])[A-Z0-9]{4,20}\\b");
+
+	private final Map<String, List<String>> markers = new HashMap<>(DEFAULT_MARKERS);
+	private final Map<String, AhoCorasick> automata = new ConcurrentHashMap<>();
+
+	/**
+	 * @param configMarkers The markers of the config for each domain, can be null
+	 */
+	public PageScanner(Map<String, List<String>> configMarkers) {
+		if (configMarkers != null) { markers.putAll(configMarkers); }
+	}
+
+	/** Scans the body of the page of the specified url. */
+	public ScanResult scan(String url, String body) {
+		final String host = URI.create(url).getHost();
+		final AhoCorasick automaton = automata.computeIfAbsent(host == null ? "" : host, this::compile);
+
+		final List<Integer> simplesStarts = new ArrayList<>();
+		final int[] coupon = { -1, -1 };
+		automaton.scan(body, (pattern, end) -> {
+			if (pattern == 0) {
+				simplesStarts.add(end);
+			} else if (coupon[0] < 0) {
+				coupon[0] = end - automaton.getPatterns().get(pattern).length();
+				coupon[1] = end;
+			}
+		});
+
+		final Optional<Coupon> found = coupon[0] < 0 ? Optional.empty() : Optional.of(describeCoupon(body, coupon[0], coupon[1]));
+		return new ScanResult(simplesStarts, found);
+	}
+
+	private AhoCorasick compile(String host) {
+		final List<String> patterns = new ArrayList<>();
+		patterns.add(SIMPLES);
+		patterns.addAll(markers.getOrDefault(host, List.of()));
+		return new AhoCorasick(patterns);
+	}
+
+	/** Looks for the discount percentage and the code near the marker. */
+	private Coupon describeCoupon(String body, int start, int end) {
+		String discount = null;
+		final Matcher discountMatcher = DISCOUNT.matcher(body).region(Math.max(0, start - DISCOUNT_WINDOW), Math.min(body.length(), end + DISCOUNT_WINDOW));
+		int bestDistance = Integer.MAX_VALUE;
+		while (discountMatcher.find()) {
+			final int distance = discountMatcher.start() < start ? start - discountMatcher.end() : discountMatcher.start() - end;
+			if (distance < bestDistance) {
+				bestDistance = distance;
+				discount = discountMatcher.group(1) + "%";
+			}
+		}
+
+		final Matcher codeMatcher = CODE.matcher(body).region(end, Math.min(body.length(), end + CODE_WINDOW));
+		final String code = codeMatcher.find() ? codeMatcher.group() : null;
+
+		return new Coupon(discount, code);
+	}
+
+	/**
+	 * The result of a scan
+	 *
+	 * @param simplesStarts The indexes after each sizes marker
+	 * @param coupon        The coupon, if any marker was found
+	 */
+	public record ScanResult(List<Integer> simplesStarts, Optional<Coupon> coupon) {}
+
+}
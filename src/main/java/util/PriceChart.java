@@ -0,0 +1,213 @@
+package util;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import javax.imageio.ImageIO;
+
+import pojo.TrackedItem.PriceHistory;
+
+/**
+ * Renders the price history of an item as a step chart, the price is kept until the next change and up to today.
+ * <p>
+ * The images are cached by item, history version, day and size, together with the telegram file id once sent so the same image is not uploaded
+ * again.
+ */
+public class PriceChart {
+
+	public static final int WIDTH = 800;
+	public static final int HEIGHT = 450;
+	public static final String NO_PRICE = "no price recorded yet";
+
+	private static final int MAX_CACHED = 200;
+	private static final int MARGIN_LEFT = 70;
+	private static final int MARGIN_RIGHT = 30;
+	private static final int MARGIN_TOP = 20;
+	private static final int MARGIN_BOTTOM = 40;
+	private static final int GRID_LINES = 5;
+
+	private static final Color BACKGROUND = Color.WHITE;
+	private static final Color GRID = new Color(225, 225, 225);
+	private static final Color TEXT = new Color(90, 90, 90);
+	private static final Color LINE = new Color(255, 105, 0);
+	private static final DateTimeFormatter DATE_LABEL = DateTimeFormatter.ofPattern("dd/MM/yy");
+
+	/** A rendered chart, the file id is set after the first upload */
+	public static class Chart {
+		private final byte[] png;
+		private volatile String fileId;
+
+		private Chart(byte[] png) {
+			this.png = png;
+		}
+
+		public byte[] getPng() {
+			return png;
+		}
+
+		public String getFileId() {
+			return fileId;
+		}
+
+		public void setFileId(String fileId) {
+			this.fileId = fileId;
+		}
+	}
+
+	// i use a linked map in access order to drop the charts not viewed for the longest time
+	private static final Map<String, Chart> CACHE = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Chart> eldest) {
+			return size() > MAX_CACHED;
+		}
+	});
+
+	static {
+		System.setProperty("java.awt.headless", "true");
+	}
+
+	private PriceChart() {}
+
+	/** Returns the chart of the price history of the item, rendering it only if the history changed. Empty if there is no price to draw. */
+	public static Optional<Chart> get(String itemUuid, List<PriceHistory> history) throws IOException {
+		if (history.isEmpty()) { return Optional.empty(); }
+
+		// the line goes up to today, so the chart is rendered again every day
+		final String key = "%s/%s/%s/%sx%s".formatted(itemUuid, historyVersion(history), LocalDate.now(), WIDTH, HEIGHT);
+		final Chart cached = CACHE.get(key);
+		if (cached != null) { return Optional.of(cached); }
+
+		final Chart chart = new Chart(render(history, WIDTH, HEIGHT));
+		CACHE.put(key, chart);
+		return Optional.of(chart);
+	}
+
+	/** Changes whenever an entry is added, removed or changed. */
+	private static String historyVersion(List<PriceHistory> history) {
+		int hash = 1;
+		for (final PriceHistory entry : history) {
+			hash = 31 * hash + entry.getStringPrice().hashCode();
+			hash = 31 * hash + entry.getDate().hashCode();
+		}
+		return history.size() + "-" + Integer.toHexString(hash);
+	}
+
+	/** Returns the summary of the price history, used as caption of the chart. */
+	public static String describe(String name, List<PriceHistory> history) {
+		if (history.isEmpty()) { return "<b>%s</b>\n%s".formatted(NotificationDigest.escape(name), NO_PRICE); }
+
+		final PriceHistory last = history.get(history.size() - 1);
+		final PriceHistory min = Collections.min(history, Comparator.comparing(PriceHistory::getPrice));
+		final PriceHistory max = Collections.max(history, Comparator.comparing(PriceHistory::getPrice));
+		return """
+				<b>%s</b>
+				now: %s
+				min: %s - %s
+				max: %s - %s
+				changes: %s since %s""".formatted(NotificationDigest.escape(name), last.getStringPrice(), min.getStringPrice(), min.getDate(),
+				max.getStringPrice(), max.getDate(), history.size() - 1, history.get(0).getDate());
+	}
+
+	/** Renders the chart as png, only the background and the {@link #NO_PRICE} label if the history is empty. */
+	static byte[] render(List<PriceHistory> history, int width, int height) throws IOException {
+		final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		final Graphics2D g = image.createGraphics();
+		try {
+			g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+			g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+			g.setColor(BACKGROUND);
+			g.fillRect(0, 0, width, height);
+
+			g.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, 13));
+			final FontMetrics metrics = g.getFontMetrics();
+			if (history.isEmpty()) {
+				g.setColor(TEXT);
+				g.drawString(NO_PRICE, (width - metrics.stringWidth(NO_PRICE)) / 2, height / 2);
+				return png(image);
+			}
+
+			// the days and the prices to show, with some space above and below the prices
+			final long firstDay = history.get(0).getLocalDate().toEpochDay();
+			final long lastDay = Math.max(LocalDate.now().toEpochDay(), history.get(history.size() - 1).getLocalDate().toEpochDay());
+			final long days = Math.max(1, lastDay - firstDay);
+			double minPrice = history.stream().mapToDouble(PriceHistory::getPrice).min().getAsDouble();
+			double maxPrice = history.stream().mapToDouble(PriceHistory::getPrice).max().getAsDouble();
+			final double padding = Math.max(1, (maxPrice - minPrice) * 0.1);
+			minPrice = Math.max(0, minPrice - padding);
+			maxPrice = maxPrice + padding;
+
+			final int plotWidth = width - MARGIN_LEFT - MARGIN_RIGHT;
+			final int plotHeight = height - MARGIN_TOP - MARGIN_BOTTOM;
+			final double priceRange = maxPrice - minPrice;
+
+			// the horizontal grid with the prices
+			for (int i = 0; i <= GRID_LINES; i++) {
+				final double price = minPrice + priceRange * i / GRID_LINES;
+				final int y = MARGIN_TOP + plotHeight - (int) Math.round(plotHeight * (double) i / GRID_LINES);
+				g.setColor(GRID);
+				g.drawLine(MARGIN_LEFT, y, width - MARGIN_RIGHT, y);
+				g.setColor(TEXT);
+				final String label = "%.2f".formatted(price).replace(".", ",");
+				g.drawString(label, MARGIN_LEFT - 8 - metrics.stringWidth(label), y + metrics.getAscent() / 2 - 1);
+			}
+
+			// the dates of the first and last day
+			g.setColor(TEXT);
+			final String firstLabel = LocalDate.ofEpochDay(firstDay).format(DATE_LABEL);
+			final String lastLabel = LocalDate.ofEpochDay(lastDay).format(DATE_LABEL);
+			final int labelY = height - MARGIN_BOTTOM + 8 + metrics.getAscent();
+			g.drawString(firstLabel, MARGIN_LEFT, labelY);
+			g.drawString(lastLabel, width - MARGIN_RIGHT - metrics.stringWidth(lastLabel), labelY);
+
+			// the price line
+			final Path2D.Double path = new Path2D.Double();
+			double previousY = 0;
+			for (int i = 0; i < history.size(); i++) {
+				final PriceHistory entry = history.get(i);
+				final double x = MARGIN_LEFT + plotWidth * (double) (entry.getLocalDate().toEpochDay() - firstDay) / days;
+				final double y = MARGIN_TOP + plotHeight * (maxPrice - entry.getPrice()) / priceRange;
+				if (i == 0) {
+					path.moveTo(x, y);
+				} else {
+					path.lineTo(x, previousY);
+					path.lineTo(x, y);
+				}
+				previousY = y;
+			}
+			path.lineTo(MARGIN_LEFT + plotWidth, previousY);
+
+			g.setColor(LINE);
+			g.setStroke(new BasicStroke(3f, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
+			g.draw(path);
+			g.fillOval(MARGIN_LEFT + plotWidth - 5, (int) previousY - 5, 10, 10);
+		} finally {
+			g.dispose();
+		}
+		return png(image);
+	}
+
+	private static byte[] png(BufferedImage image) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(image, "png", out);
+		return out.toByteArray();
+	}
+
+}
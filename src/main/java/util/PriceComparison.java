@@ -0,0 +1,157 @@
+package util;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import exceptions.ItemRemovedException;
+import pojo.Notification;
+import pojo.Size;
+import pojo.TrackedItem;
+import pojo.TrackedItem.TrackedSize;
+import util.LogicUtility.FetchedPage;
+
+/**
+ * Compares the price of an item with the same product on the other Zalando stores, for the items that ask for it.
+ * <p>
+ * A product has the same sku on every store, at the end of the path of its url, while the rest of the path is translated. The page on
+ * another store is asked by sku, the store redirects it to the page of the product and the url redirected to is used from then on. The
+ * prices are converted to euro with the rate of each store, another store is cheaper only if the difference is more than 1 euro. The stores
+ * not configured are not compared.
+ */
+public class PriceComparison {
+
+	/** The euro stores, compared when the config has no stores */
+	public static final List<String> DEFAULT_DOMAINS = List.of("www.zalando.it", "www.zalando.de", "www.zalando.fr", "www.zalando.es",
+			"www.zalando.nl", "www.zalando.be", "www.zalando.at", "www.zalando.ie");
+
+	/** The key of the notifications of the comparison, they don't replace the price notification of the same item */
+	private static final String NOTIFICATION_SUFFIX = "/compare";
+
+	/** The sku at the end of the url, e.g. to112o0ib-a11 in .../tommy-hilfiger-polo-to112o0ib-a11.html */
+	private static final Pattern SKU = Pattern.compile("([a-z0-9]+-[a-z0-9]+)\\.html$", Pattern.CASE_INSENSITIVE);
+
+	/** The cheapest offer of another store, the price as shown by the store */
+	public record StoreOffer(String domain, String url, String price, double euro) {}
+
+	/** The euro rate of each store */
+	private final Map<String, Double> rates;
+	private final Consumer<String> log;
+	/** The url of the products on the other stores, by store and sku, once the store redirected to it */
+	private final Map<String, String> resolved = new ConcurrentHashMap<>();
+	/** The products not resolved on a store, already logged */
+	private final Set<String> unresolved = ConcurrentHashMap.newKeySet();
+
+	public PriceComparison(Map<String, Double> rates, Consumer<String> log) {
+		this.rates = Map.copyOf(rates);
+		this.log = log;
+	}
+
+	/** Returns the urls of the same product on the other stores, none if the store of the url is not compared or the url has no sku. */
+	public List<String> otherUrls(String url) {
+		final URI uri = URI.create(url);
+		final Optional<String> sku = sku(uri);
+		if (!rates.containsKey(uri.getHost()) || sku.isEmpty()) { return List.of(); }
+		return rates.keySet().stream().filter(d -> !d.equals(uri.getHost())).sorted()//
+				.map(d -> resolved.getOrDefault(key(d, sku.get()), "https://%s/%s.html".formatted(d, sku.get())))//
+				.toList();
+	}
+
+	private static Optional<String> sku(URI uri) {
+		final Matcher matcher = SKU.matcher(uri.getRawPath() == null ? "" : uri.getRawPath());
+		return matcher.find() ? Optional.of(matcher.group(1).toLowerCase()) : Optional.empty();
+	}
+
+	private static String key(String domain, String sku) {
+		return domain + "/" + sku;
+	}
+
+	/**
+	 * Updates the cheaper store of the item with the pages of the other stores, waiting for them. Returns the notification if a cheaper
+	 * store is found for the first time, or a store is cheaper than the last one notified. The pages not found are ignored.
+	 */
+	public Optional<Notification> compare(TrackedItem item, Map<String, CompletableFuture<FetchedPage>> pages) {
+		final Double ownRate = rates.get(URI.create(item.getUrl()).getHost());
+		// the item price includes the last price of the sizes sold out, the other stores are compared with the sizes on sale
+		final String ownPrice = TrackedSize.lowestPrice(item.getSizes().stream().filter(TrackedSize::isAvailable).toList());
+		if (ownRate == null || ownPrice == null) { return Optional.empty(); }
+		final double ownEuro = parse(ownPrice) * ownRate;
+
+		StoreOffer cheapest = null;
+		for (final String url : otherUrls(item.getUrl())) {
+			final Optional<StoreOffer> offer = offer(item, url, pages.get(url));
+			if (offer.isPresent() && (cheapest == null || offer.get().euro() < cheapest.euro())) { cheapest = offer.get(); }
+		}
+
+		final String previousDomain = item.getCheaperDomain();
+		final String previousPrice = item.getCheaperPrice();
+		if (cheapest == null || ownEuro - cheapest.euro() <= 1) {
+			item.setCheaperStore(null, null);
+			return Optional.empty();
+		}
+		item.setCheaperStore(cheapest.domain(), cheapest.price());
+
+		// the same store at the same or a higher price was already notified
+		final boolean known = Objects.equals(previousDomain, cheapest.domain())
+				&& parse(previousPrice) * rates.getOrDefault(previousDomain, 1.0) <= cheapest.euro();
+		if (known) { return Optional.empty(); }
+
+		final String euro = ownRate == 1 && rates.get(cheapest.domain()) == 1 ? "" : " (%.2f \u20AC vs %.2f \u20AC)".formatted(cheapest.euro(), ownEuro);
+		final String message = """
+				Cheaper on %s!
+				%s
+				<b>%s</b> instead of %s%s
+				%s""".formatted(cheapest.domain(), item.getName(), cheapest.price(), ownPrice, euro, cheapest.url());
+		final String summary = "<a href=\"%s\">%s</a>: %s on %s".formatted(cheapest.url(), NotificationDigest.escape(item.getName()), cheapest.price(),
+				cheapest.domain());
+		return Optional.of(new Notification(item.getUuid() + NOTIFICATION_SUFFIX, message, summary, false, System.currentTimeMillis()));
+	}
+
+	/** Returns the lowest price of the available watched sizes on the page of the store. */
+	private Optional<StoreOffer> offer(TrackedItem item, String url, CompletableFuture<FetchedPage> page) {
+		if (page == null) { return Optional.empty(); }
+		final String domain = URI.create(url).getHost();
+		final String key = key(domain, sku(URI.create(item.getUrl())).orElse(""));
+		final FetchedPage fetched;
+		try {
+			fetched = page.get();
+		} catch (final ExecutionException e) {
+			// not sold on that store, or the store is struggling and it's asked again at the next check
+			final boolean notFound = e.getCause() instanceof ItemRemovedException;
+			if (notFound) { resolved.remove(key); }
+			if (!resolved.containsKey(key) && unresolved.add(key)) {
+				log.accept("Price comparison: %s not resolved on %s - %s".formatted(item.getUrl(), domain, notFound ? "not found" : e.getCause().getMessage()));
+			}
+			return Optional.empty();
+		} catch (final Exception e) {
+			return Optional.empty();
+		}
+		// the page of the sku redirected to the product, the next checks ask for it directly
+		resolved.put(key, fetched.url());
+		unresolved.remove(key);
+
+		final List<String> prices = new ArrayList<>();
+		for (final Size size : fetched.sizes()) {
+			if (!item.getSizeNames().contains(size.size) || size.offer == null || size.offer.price == null || !size.offer.isMeaningfulOffer) { continue; }
+			prices.add(LogicUtility.formatPrice(size.offer.price));
+		}
+		return prices.stream().min((a, b) -> Double.compare(parse(a), parse(b)))
+				.map(price -> new StoreOffer(domain, fetched.url(), price, parse(price) * rates.get(domain)));
+	}
+
+	/** Parses a price formatted as 12,34 */
+	private static double parse(String price) {
+		return Double.parseDouble(price.replace(".", "").replace(',', '.'));
+	}
+
+}
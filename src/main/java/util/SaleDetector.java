@@ -0,0 +1,74 @@
+package util;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Detects the sales of a whole store: many products of the same domain lowering their price in a short time.
+ * <p>
+ * The checks of the products, once whatever their users, and their price drops are counted for each domain in buckets of a minute. A domain
+ * goes on sale when in the window there are at least {@link Thresholds#minDrops} drops and they are at least {@link Thresholds#minShare} of
+ * the checks, the sale ends when they fall under half of both, so a sale doesn't start and end at every check. Called by any thread.
+ */
+public class SaleDetector {
+
+	private static final long BUCKET_MILLIS = 60 * 1000;
+
+	/** When a domain is considered on sale */
+	public record Thresholds(long windowMillis, int minDrops, double minShare) {}
+
+	/** The checks and the drops of a domain in a minute */
+	private static class Bucket {
+		private final long start;
+		private int checks = 0;
+		private int drops = 0;
+
+		private Bucket(long start) {
+			this.start = start;
+		}
+	}
+
+	private final Map<String, ArrayDeque<Bucket>> buckets = new HashMap<>();
+	private final Set<String> onSale = new HashSet<>();
+
+	/** Records the check of a product of the domain, and if its price dropped. */
+	public synchronized void record(String domain, boolean dropped, long now) {
+		final ArrayDeque<Bucket> domainBuckets = buckets.computeIfAbsent(domain, k -> new ArrayDeque<>());
+		final long start = now - Math.floorMod(now, BUCKET_MILLIS);
+		if (domainBuckets.isEmpty() || domainBuckets.peekLast().start != start) { domainBuckets.addLast(new Bucket(start)); }
+		domainBuckets.peekLast().checks++;
+		if (dropped) { domainBuckets.peekLast().drops++; }
+	}
+
+	/** Drops the checks out of the window and returns the domains on sale. */
+	public synchronized Set<String> update(Thresholds thresholds, long now) {
+		final Iterator<Map.Entry<String, ArrayDeque<Bucket>>> domains = buckets.entrySet().iterator();
+		while (domains.hasNext()) {
+			final Map.Entry<String, ArrayDeque<Bucket>> entry = domains.next();
+			final ArrayDeque<Bucket> domainBuckets = entry.getValue();
+			while (!domainBuckets.isEmpty() && domainBuckets.peekFirst().start + BUCKET_MILLIS <= now - thresholds.windowMillis()) {
+				domainBuckets.pollFirst();
+			}
+
+			int checks = 0;
+			int drops = 0;
+			for (final Bucket bucket : domainBuckets) {
+				checks += bucket.checks;
+				drops += bucket.drops;
+			}
+			final double scale = onSale.contains(entry.getKey()) ? 0.5 : 1;
+			if (drops > 0 && drops >= thresholds.minDrops() * scale && drops >= thresholds.minShare() * scale * checks) {
+				onSale.add(entry.getKey());
+			} else {
+				onSale.remove(entry.getKey());
+			}
+			if (domainBuckets.isEmpty()) { domains.remove(); }
+		}
+		return Set.copyOf(onSale);
+	}
+
+}
@@ -0,0 +1,164 @@
+package util;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A stage of the checks: a bounded queue of tasks run by its own threads. When the queue is full the thread adding a task waits, so a slow
+ * stage slows down the stages before it instead of piling up pages and items in memory.
+ * <p>
+ * Each stage counts its tasks and the time its threads were busy, {@link #all()} returns the stages in the order they were created, that is
+ * the order of the checks.
+ */
+public class Stage implements Executor {
+
+	private static final Map<String, Stage> STAGES = new LinkedHashMap<>();
+
+	private final String name;
+	private final int threads;
+	private final int capacity;
+	private final BlockingQueue<Runnable> queue;
+
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong busyNanos = new AtomicLong();
+	/** The time the threads of the previous stages waited for a free place in the queue */
+	private final AtomicLong blockedNanos = new AtomicLong();
+	private final AtomicInteger peakDepth = new AtomicInteger();
+
+	// the values of the previous report
+	private long reportTime = System.nanoTime();
+	private long reportCompleted = 0;
+	private long reportFailed = 0;
+	private long reportBusy = 0;
+	private long reportBlocked = 0;
+
+	/** The activity of a stage since the previous report */
+	public record Stats(String name, int threads, int depth, int peakDepth, int capacity, long completed, long failed, double perSecond,
+			double busy, long blockedMillis) {
+		@Override
+		public String toString() {
+			return "%s [queue %s/%s, peak %s, %s done, %.1f/s, %s failed, busy %.0f%% of %s threads, blocked %s ms]".formatted(name, depth, capacity,
+					peakDepth, completed, perSecond, failed, busy * 100, threads, blockedMillis);
+		}
+	}
+
+	public Stage(String name, int threads, int capacity) {
+		this.name = name;
+		this.threads = threads;
+		this.capacity = capacity;
+		queue = new ArrayBlockingQueue<>(capacity);
+		for (int i = 1; i <= threads; i++) {
+			final Thread thread = new Thread(this::work, "%s-%s".formatted(name, i));
+			thread.setDaemon(true);
+			thread.start();
+		}
+		synchronized (STAGES) {
+			STAGES.put(name, this);
+		}
+	}
+
+	/** Returns all the stages, in the order of the checks. */
+	public static List<Stage> all() {
+		synchronized (STAGES) {
+			return List.copyOf(STAGES.values());
+		}
+	}
+
+	/** Queues the task, waiting while the queue is full. */
+	@Override
+	public void execute(Runnable task) {
+		if (!queue.offer(task)) {
+			final long start = System.nanoTime();
+			try {
+				queue.put(task);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RejectedExecutionException("Interrupted waiting for the %s stage".formatted(name), e);
+			} finally {
+				blockedNanos.addAndGet(System.nanoTime() - start);
+			}
+		}
+		peakDepth.accumulateAndGet(queue.size(), Math::max);
+	}
+
+	/** Indicates if a task can be queued without waiting. */
+	public boolean hasRoom() {
+		return queue.remainingCapacity() > 0;
+	}
+
+	private void work() {
+		while (true) {
+			final Runnable task;
+			try {
+				task = queue.take();
+			} catch (final InterruptedException e) {
+				return;
+			}
+
+			final long start = System.nanoTime();
+			try {
+				task.run();
+			} catch (final Throwable t) {
+				// the tasks log their own errors, this only keeps the thread alive
+				failed.incrementAndGet();
+			}
+			busyNanos.addAndGet(System.nanoTime() - start);
+			completed.incrementAndGet();
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/** Returns the tasks waiting in the queue. */
+	public int getDepth() {
+		return queue.size();
+	}
+
+	/** Returns the tasks completed since the stage was created. */
+	public long getCompleted() {
+		return completed.get();
+	}
+
+	/** Returns the activity since the previous call. */
+	public synchronized Stats drainStats() {
+		final long now = System.nanoTime();
+		final long elapsed = Math.max(1, now - reportTime);
+		final long done = completed.get() - reportCompleted;
+		final long busy = busyNanos.get() - reportBusy;
+		final long failures = failed.get() - reportFailed;
+		final long blocked = blockedNanos.get() - reportBlocked;
+		final Stats result = new Stats(name, threads, queue.size(), peakDepth.getAndSet(queue.size()), capacity, done, failures, done * 1e9 / elapsed,
+				(double) busy / elapsed / threads, blocked / 1_000_000);
+
+		reportTime = now;
+		reportCompleted += done;
+		reportFailed += failures;
+		reportBusy += busy;
+		reportBlocked += blocked;
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return "Stage [name=" + name + ", threads=" + threads + ", depth=" + queue.size() + "/" + capacity + ", completed=" + completed + "]";
+	}
+
+}
@@ -0,0 +1,167 @@
+package util;
+
+import java.util.function.Consumer;
+
+/**
+ * A hierarchical timing wheel: adding and cancelling a timer cost O(1) whatever the number of timers, advancing costs O(1) for each tick and for
+ * each timer expired or moved to a lower wheel.
+ * <p>
+ * Each wheel has 64 slots, the first one a slot for each tick, the next ones 64 times longer slots. A timer is put in the lowest wheel that
+ * covers its deadline and moved down when its slot comes, so with 4 wheels the deadlines up to 64^4 ticks are handled (194 days with ticks of
+ * one second), the later ones wait in the last slot. The class is not thread safe.
+ */
+public class TimingWheel<T> {
+
+	private static final int BITS = 6;
+	private static final int SLOTS = 1 << BITS;
+	private static final int MASK = SLOTS - 1;
+	private static final int LEVELS = 4;
+	private static final long MAX_TICKS = 1L << (BITS * LEVELS);
+
+	/** A scheduled value, can be cancelled until it expires */
+	public static class Timer<T> {
+		private final T value;
+		private final long deadline;
+		private Timer<T> previous;
+		private Timer<T> next;
+		private Slot<T> slot;
+
+		private Timer(T value, long deadline) {
+			this.value = value;
+			this.deadline = deadline;
+		}
+
+		public T getValue() {
+			return value;
+		}
+
+		/** Returns the tick of the deadline. */
+		public long getDeadline() {
+			return deadline;
+		}
+
+		public boolean isScheduled() {
+			return slot != null;
+		}
+	}
+
+	/** A doubly linked list, so a timer is removed without searching it */
+	private static class Slot<T> {
+		private Timer<T> head;
+
+		private void add(Timer<T> timer) {
+			timer.slot = this;
+			timer.previous = null;
+			timer.next = head;
+			if (head != null) { head.previous = timer; }
+			head = timer;
+		}
+
+		private void remove(Timer<T> timer) {
+			if (timer.previous == null) {
+				head = timer.next;
+			} else {
+				timer.previous.next = timer.next;
+			}
+			if (timer.next != null) { timer.next.previous = timer.previous; }
+			timer.slot = null;
+			timer.previous = null;
+			timer.next = null;
+		}
+
+		/** Empties the slot and returns its timers as a list linked by next. */
+		private Timer<T> clear() {
+			final Timer<T> first = head;
+			head = null;
+			return first;
+		}
+	}
+
+	private final long tickMillis;
+	private final Slot<T>[][] wheels;
+	private long currentTick;
+	private int size;
+
+	@SuppressWarnings("unchecked")
+	public TimingWheel(long tickMillis, long nowMillis) {
+		this.tickMillis = tickMillis;
+		this.currentTick = nowMillis / tickMillis;
+		wheels = new Slot[LEVELS][SLOTS];
+		for (final Slot<T>[] wheel : wheels) {
+			for (int i = 0; i < SLOTS; i++) {
+				wheel[i] = new Slot<>();
+			}
+		}
+	}
+
+	/** Schedules the value at the specified time, a time already passed expires at the next tick. */
+	public Timer<T> schedule(T value, long deadlineMillis) {
+		final Timer<T> timer = new Timer<>(value, Math.max(currentTick + 1, deadlineMillis / tickMillis));
+		place(timer);
+		size++;
+		return timer;
+	}
+
+	/** Removes the timer if not expired yet. Returns true if it was removed. */
+	public boolean cancel(Timer<T> timer) {
+		if (timer.slot == null) { return false; }
+		timer.slot.remove(timer);
+		size--;
+		return true;
+	}
+
+	/** Moves the wheels up to the specified time, passing the values of the expired timers to the consumer. */
+	public void advance(long nowMillis, Consumer<T> expired) {
+		final long target = nowMillis / tickMillis;
+		while (currentTick < target) {
+			currentTick++;
+
+			// when a wheel completes a turn, the timers of the next slot of the upper wheel are moved down
+			for (int level = 1; level < LEVELS && (currentTick & ((1L << (BITS * level)) - 1)) == 0; level++) {
+				cascade(wheels[level][(int) ((currentTick >>> (BITS * level)) & MASK)]);
+			}
+
+			Timer<T> timer = wheels[0][(int) (currentTick & MASK)].clear();
+			while (timer != null) {
+				final Timer<T> next = timer.next;
+				timer.slot = null;
+				timer.previous = null;
+				timer.next = null;
+				size--;
+				expired.accept(timer.value);
+				timer = next;
+			}
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/** Returns the current tick in milliseconds. */
+	public long getTime() {
+		return currentTick * tickMillis;
+	}
+
+	private void cascade(Slot<T> slot) {
+		Timer<T> timer = slot.clear();
+		while (timer != null) {
+			final Timer<T> next = timer.next;
+			place(timer);
+			timer = next;
+		}
+	}
+
+	private void place(Timer<T> timer) {
+		// the deadlines too far away wait in the last slot and are placed again when it comes, while cascading the deadline can be the current
+		// tick, its slot is expired right after
+		final long deadline = Math.min(timer.deadline, currentTick + MAX_TICKS - 1);
+		final long delta = deadline - currentTick;
+		int level = 0;
+		while (level < LEVELS - 1 && delta >= 1L << (BITS * (level + 1))) {
+			level++;
+		}
+		wheels[level][(int) ((deadline >>> (BITS * level)) & MASK)].add(timer);
+	}
+
+}
@@ -0,0 +1,200 @@
+package util;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Reports the top time consumers of a flight recording of the bot, see {@link Tracing}.
+ * <p>
+ * <code>java -cp bot.jar util.TraceSummary logs/pricetracker.jfr [top]</code> or <code>gradlew traceSummary -Pjfr=logs/pricetracker.jfr</code>
+ */
+public class TraceSummary {
+
+	private static final int DEFAULT_TOP = 10;
+
+	/** The events of a single product, their correlation id ends with its url */
+	private static final Set<String> ITEM_EVENTS = Set.of("pricetracker.ItemFetch", "pricetracker.BodyParse", "pricetracker.CouponScan");
+
+	// getDuration is overloaded, the method reference is ambiguous
+	private static final Comparator<RecordedEvent> SLOWEST_FIRST = Comparator.comparing((RecordedEvent e) -> e.getDuration()).reversed();
+
+	/** Count and durations of a group of events */
+	private static class Stats {
+		private long count;
+		private long totalNanos;
+		private long maxNanos;
+		private long failures;
+
+		private void add(Duration duration) {
+			count++;
+			totalNanos += duration.toNanos();
+			maxNanos = Math.max(maxNanos, duration.toNanos());
+		}
+
+		private String describe() {
+			return "%8s %12s %10s %10s".formatted(count, millis(totalNanos), millis(count == 0 ? 0 : totalNanos / count), millis(maxNanos));
+		}
+	}
+
+	/** The samples of the queue of a stage */
+	private static class StageSamples {
+		private long count;
+		private long totalDepth;
+		private int maxDepth;
+		private int capacity;
+		private int threads;
+		private Instant firstTime;
+		private long firstCompleted;
+		private Instant lastTime;
+		private long lastCompleted;
+
+		private void add(RecordedEvent event) {
+			final int depth = event.getInt("depth");
+			count++;
+			totalDepth += depth;
+			maxDepth = Math.max(maxDepth, depth);
+			capacity = event.getInt("capacity");
+			threads = event.getInt("threads");
+			if (firstTime == null) {
+				firstTime = event.getStartTime();
+				firstCompleted = event.getLong("completed");
+			}
+			lastTime = event.getStartTime();
+			lastCompleted = event.getLong("completed");
+		}
+
+		private String describe() {
+			final double seconds = Duration.between(firstTime, lastTime).toMillis() / 1000.0;
+			return "%8s %10.1f %10s %10s %10.1f".formatted(threads, (double) totalDepth / count, maxDepth, capacity,
+					seconds == 0 ? 0 : (lastCompleted - firstCompleted) / seconds);
+		}
+	}
+
+	private TraceSummary() {}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0) {
+			System.out.println("Usage: TraceSummary <recording.jfr> [top]");
+			return;
+		}
+		final int top = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_TOP;
+
+		final Map<String, Stats> byEvent = new HashMap<>();
+		final Map<String, Stats> byDomain = new HashMap<>();
+		final Map<String, Stats> byItem = new HashMap<>();
+		final Map<String, Stats> byTelegramMethod = new HashMap<>();
+		final Map<String, StageSamples> byStage = new LinkedHashMap<>();
+		final Map<String, Long> hotMethods = new HashMap<>();
+		final List<RecordedEvent> slowest = new ArrayList<>();
+		long samples = 0;
+
+		try (RecordingFile recording = new RecordingFile(Path.of(args[0]))) {
+			while (recording.hasMoreEvents()) {
+				final RecordedEvent event = recording.readEvent();
+				final String name = event.getEventType().getName();
+
+				// the methods on top of the stack of the sampled threads
+				if (name.equals("jdk.ExecutionSample")) {
+					final RecordedStackTrace stackTrace = event.getStackTrace();
+					if (stackTrace != null && !stackTrace.getFrames().isEmpty()) {
+						final RecordedFrame frame = stackTrace.getFrames().get(0);
+						hotMethods.merge(frame.getMethod().getType().getName() + "." + frame.getMethod().getName(), 1L, Long::sum);
+						samples++;
+					}
+					continue;
+				}
+				if (name.equals("pricetracker.StageStats")) {
+					byStage.computeIfAbsent(event.getString("stage"), k -> new StageSamples()).add(event);
+					continue;
+				}
+				if (!name.startsWith("pricetracker.")) { continue; }
+
+				byEvent.computeIfAbsent(event.getEventType().getLabel(), k -> new Stats()).add(event.getDuration());
+				if (ITEM_EVENTS.contains(name)) { byItem.computeIfAbsent(event.getString("correlationId"), k -> new Stats()).add(event.getDuration()); }
+				if (name.equals("pricetracker.ItemFetch")) {
+					final Stats stats = byDomain.computeIfAbsent(event.getString("domain"), k -> new Stats());
+					stats.add(event.getDuration());
+					final int status = event.getInt("status");
+					if (status < 0 || status == 429 || status == 403 || status >= 500) { stats.failures++; }
+				}
+				if (name.equals("pricetracker.TelegramCall")) {
+					final Stats stats = byTelegramMethod.computeIfAbsent(event.getString("method"), k -> new Stats());
+					stats.add(event.getDuration());
+					if (!event.getBoolean("succeeded")) { stats.failures++; }
+				}
+
+				// only the slowest events are kept
+				slowest.add(event);
+				if (slowest.size() > top * 10) {
+					slowest.sort(SLOWEST_FIRST);
+					slowest.subList(top, slowest.size()).clear();
+				}
+			}
+		}
+
+		System.out.println("== Time by event ==");
+		System.out.println("%-20s %8s %12s %10s %10s".formatted("event", "count", "total ms", "avg ms", "max ms"));
+		sorted(byEvent, byEvent.size()).forEach(e -> System.out.println("%-20s %s".formatted(e.getKey(), e.getValue().describe())));
+
+		System.out.println();
+		System.out.println("== Fetches by domain ==");
+		System.out.println("%-20s %8s %12s %10s %10s %8s".formatted("domain", "count", "total ms", "avg ms", "max ms", "failures"));
+		sorted(byDomain, byDomain.size()).forEach(e -> System.out.println("%-20s %s %8s".formatted(e.getKey(), e.getValue().describe(), e.getValue().failures)));
+
+		System.out.println();
+		System.out.println("== Telegram calls by method ==");
+		System.out.println("%-20s %8s %12s %10s %10s %8s".formatted("method", "count", "total ms", "avg ms", "max ms", "failures"));
+		sorted(byTelegramMethod, byTelegramMethod.size())
+				.forEach(e -> System.out.println("%-20s %s %8s".formatted(e.getKey(), e.getValue().describe(), e.getValue().failures)));
+
+		System.out.println();
+		System.out.println("== Stages of the checks, a full queue is the bottleneck ==");
+		System.out.println("%-10s %8s %10s %10s %10s %10s".formatted("stage", "threads", "avg queue", "max queue", "capacity", "tasks/s"));
+		byStage.forEach((stage, stats) -> System.out.println("%-10s %s".formatted(stage, stats.describe())));
+
+		System.out.println();
+		System.out.println("== Slowest products (fetches with retries, scans and parses) ==");
+		sorted(byItem, top).forEach(e -> System.out.println("%10s ms in %s events  %s".formatted(millis(e.getValue().totalNanos), e.getValue().count, e.getKey())));
+
+		System.out.println();
+		System.out.println("== Slowest events ==");
+		slowest.sort(SLOWEST_FIRST);
+		slowest.stream().limit(top).forEach(e -> System.out.println("%10s ms  %-18s %s".formatted(millis(e.getDuration().toNanos()),
+				e.getEventType().getLabel(), e.hasField("correlationId") ? e.getString("correlationId") : "")));
+
+		System.out.println();
+		System.out.println("== Hot methods (%s execution samples) ==".formatted(samples));
+		final long totalSamples = samples;
+		hotMethods.entrySet().stream()//
+				.sorted(Map.Entry.<String, Long>comparingByValue().reversed())//
+				.limit(top)//
+				.forEach(e -> System.out.println("%6.1f%%  %s".formatted(100.0 * e.getValue() / totalSamples, e.getKey())));
+	}
+
+	/** Returns the groups that took the most time. */
+	private static List<Map.Entry<String, Stats>> sorted(Map<String, Stats> stats, int limit) {
+		return stats.entrySet().stream()//
+				.sorted(Comparator.comparing((Map.Entry<String, Stats> e) -> e.getValue().totalNanos).reversed())//
+				.limit(limit)//
+				.toList();
+	}
+
+	private static String millis(long nanos) {
+		return "%.1f".formatted(nanos / 1_000_000.0);
+	}
+
+}
@@ -0,0 +1,248 @@
+package util;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.Duration;
+import java.util.List;
+
+import jdk.jfr.Category;
+import jdk.jfr.Configuration;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.Recording;
+import jdk.jfr.StackTrace;
+
+/**
+ * The flight recorder events of the checks and of the bot, they cost almost nothing when no recording is running.
+ * <p>
+ * Every event has a correlation id made of the ids of the work it belongs to, e.g. <code>cycleId/url</code> for the fetch of a product during a
+ * check, <code>cycleId/userId</code> for the update of the items of a user or <code>update-123</code> for the requests of a telegram update, so a
+ * slow product can be followed from the fetch to the saved files. The id is kept per thread, {@link #open(String)} sets it and the returned scope restores the previous one.
+ * <p>
+ * The recording is started with the <code>flightRecorder</code> config key, or from outside with
+ * <code>jcmd &lt;pid&gt; JFR.start settings=default</code>. {@link TraceSummary} reports the top time consumers of a recording.
+ */
+public class Tracing {
+
+	public static final String CATEGORY = "Price Tracker";
+	public static final String RECORDING_NAME = "pricetracker";
+
+	private static final Duration MAX_AGE = Duration.ofHours(24);
+	private static final long MAX_SIZE = 250L * 1024 * 1024;
+	private static final Duration STAGE_STATS_PERIOD = Duration.ofSeconds(10);
+
+	private static final ThreadLocal<String> CORRELATION_ID = new ThreadLocal<>();
+
+	@Name("pricetracker.CheckCycle")
+	@Label("Check cycle")
+	@Category(CATEGORY)
+	@StackTrace(false)
+	public static class CheckCycle extends Event {
+		@Label("Correlation id")
+		public String correlationId;
+		@Label("Users")
+		public int users;
+		@Label("Items")
+		public int items;
+		@Label("Skipped items")
+		public int skippedItems;
+	}
+
+	@Name("pricetracker.UserCheck")
+	@Label("User check")
+	@Description("The items of a user waited, compared and saved, the notifications sent")
+	@Category(CATEGORY)
+	@StackTrace(false)
+	public static class UserCheck extends Event {
+		@Label("Correlation id")
+		public String correlationId;
+		@Label("User id")
+		public long userId;
+		@Label("Items")
+		public int items;
+		@Label("Notifications")
+		public int notifications;
+	}
+
+	@Name("pricetracker.ItemFetch")
+	@Label("Item fetch")
+	@Description("The http request of an item page, the wait for a free slot of the domain excluded")
+	@Category(CATEGORY)
+	@StackTrace(false)
+	public static class ItemFetch extends Event {
+		@Label("Correlation id")
+		public String correlationId;
+		@Label("Domain")
+		public String domain;
+		@Label("Status code")
+		@Description("-1 if the request failed")
+		public int status;
+		@Label("Body size")
+		@DataAmount
+		public long bytes;
+	}
+
+	@Name("pricetracker.BodyParse")
+	@Label("Body parse")
+	@Description("The sizes json read from the page")
+	@Category(CATEGORY)
+	@StackTrace(false)
+	public static class BodyParse extends Event {
+		@Label("Correlation id")
+		public String correlationId;
+		@Label("Domain")
+		public String domain;
+		@Label("Sizes")
+		public int sizes;
+	}
+
+	@Name("pricetracker.CouponScan")
+	@Label("Coupon scan")
+	@Description("The single pass on the page looking for the sizes json and the coupon markers")
+	@Category(CATEGORY)
+	@StackTrace(false)
+	public static class CouponScan extends Event {
+		@Label("Correlation id")
+		public String correlationId;
+		@Label("Domain")
+		public String domain;
+		@Label("Coupon found")
+		public boolean couponFound;
+	}
+
+	@Name("pricetracker.PersistenceWrite")
+	@Label("Persistence write")
+	@Category(CATEGORY)
+	@StackTrace(false)
+	public static class PersistenceWrite extends Event {
+		@Label("Correlation id")
+		public String correlationId;
+		@Label("File")
+		public String file;
+		@Label("Size")
+		@DataAmount
+		public long bytes;
+	}
+
+	@Name("pricetracker.TelegramCall")
+	@Label("Telegram call")
+	@Category(CATEGORY)
+	@StackTrace(false)
+	public static class TelegramCall extends Event {
+		@Label("Correlation id")
+		public String correlationId;
+		@Label("Method")
+		public String method;
+		@Label("Succeeded")
+		public boolean succeeded;
+	}
+
+	@Name("pricetracker.StageStats")
+	@Label("Stage stats")
+	@Description("The queue and the completed tasks of a stage of the checks")
+	@Category(CATEGORY)
+	@StackTrace(false)
+	@Period("10 s")
+	public static class StageStats extends Event {
+		@Label("Stage")
+		public String stage;
+		@Label("Threads")
+		public int threads;
+		@Label("Queue depth")
+		public int depth;
+		@Label("Queue capacity")
+		public int capacity;
+		@Label("Completed tasks")
+		@Description("Since the start of the bot")
+		public long completed;
+	}
+
+	/** The correlation id of the current thread, restored when closed */
+	public static class Scope implements AutoCloseable {
+		private final String previous;
+
+		private Scope(String previous) {
+			this.previous = previous;
+		}
+
+		@Override
+		public void close() {
+			if (previous == null) {
+				CORRELATION_ID.remove();
+			} else {
+				CORRELATION_ID.set(previous);
+			}
+		}
+	}
+
+	private Tracing() {}
+
+	/** Sets the correlation id of the events sent by the current thread until the scope is closed. */
+	public static Scope open(String correlationId) {
+		final Scope scope = new Scope(CORRELATION_ID.get());
+		CORRELATION_ID.set(correlationId);
+		return scope;
+	}
+
+	/** Returns the correlation id of the current thread, "-" if none. */
+	public static String correlationId() {
+		final String id = CORRELATION_ID.get();
+		return id == null ? "-" : id;
+	}
+
+	/** Returns the correlation id of the current thread followed by the specified ids, e.g. <code>cycleId/userId</code>. */
+	public static String child(Object... ids) {
+		final StringBuilder builder = new StringBuilder(correlationId());
+		for (final Object id : ids) {
+			builder.append('/').append(id);
+		}
+		return builder.toString();
+	}
+
+	private static void emitStageStats() {
+		for (final Stage stage : Stage.all()) {
+			final StageStats event = new StageStats();
+			event.stage = stage.getName();
+			event.threads = stage.getThreads();
+			event.depth = stage.getDepth();
+			event.capacity = stage.getCapacity();
+			event.completed = stage.getCompleted();
+			event.commit();
+		}
+	}
+
+	/**
+	 * Starts a recording with the default settings of the jdk and the events of the bot, kept for 24 hours on disk. It's written to the folder
+	 * when the bot stops, <code>jcmd &lt;pid&gt; JFR.dump name=pricetracker</code> saves it while running.
+	 */
+	public static Recording startRecording(Path folder) throws IOException, ParseException {
+		Files.createDirectories(folder);
+		final Recording recording = new Recording(Configuration.getConfiguration("default"));
+		recording.setName(RECORDING_NAME);
+		recording.setToDisk(true);
+		recording.setMaxAge(MAX_AGE);
+		recording.setMaxSize(MAX_SIZE);
+		recording.setDumpOnExit(true);
+		recording.setDestination(folder.resolve(RECORDING_NAME + ".jfr"));
+
+		// every occurrence is recorded, they are a few thousands for each check
+		for (final Class<? extends Event> event : List.of(CheckCycle.class, UserCheck.class, ItemFetch.class, BodyParse.class, CouponScan.class,
+				PersistenceWrite.class, TelegramCall.class)) {
+			recording.enable(event).withoutThreshold();
+		}
+
+		// a sample of the queues of the stages every 10 seconds
+		FlightRecorder.addPeriodicEvent(StageStats.class, Tracing::emitStageStats);
+		recording.enable(StageStats.class).withPeriod(STAGE_STATS_PERIOD);
+		recording.start();
+		return recording;
+	}
+
+}